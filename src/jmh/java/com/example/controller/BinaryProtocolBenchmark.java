@@ -0,0 +1,89 @@
+package com.example.controller;
+
+import com.example.model.RateLimiterConfig;
+import com.example.model.RateLimiterType;
+import com.example.service.LocalRateLimiter;
+import com.example.service.RateLimiterService;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.openjdk.jmh.annotations.*;
+import redis.clients.jedis.HostAndPort;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Pipelined acquires over the binary protocol, one connection per benchmark thread, with
+ * Redis disabled so the protocol and the in-memory engine are what is measured. Each op is
+ * one batch of {@link #BATCH} acquires over 10k keys; divide by it for decisions per second.
+ */
+@State(Scope.Benchmark)
+@Warmup(time = 1, timeUnit = TimeUnit.SECONDS)
+@Measurement(time = 2, timeUnit = TimeUnit.SECONDS)
+public class BinaryProtocolBenchmark {
+    static final int BATCH = 64;
+
+    private RateLimiterService service;
+    private BinaryAcquireServer server;
+
+    @State(Scope.Thread)
+    public static class Client {
+        SocketChannel channel;
+        final ByteBuffer requests = ByteBuffer.allocate(BATCH * 32);
+        final ByteBuffer responses = ByteBuffer.allocate(BATCH * BinaryAcquireServer.RESPONSE_BYTES);
+        int next;
+
+        @Setup
+        public void connect(BinaryProtocolBenchmark benchmark) throws IOException {
+            channel = SocketChannel.open(new InetSocketAddress("127.0.0.1", benchmark.server.getPort()));
+            channel.socket().setTcpNoDelay(true);
+        }
+
+        @TearDown
+        public void disconnect() throws IOException {
+            channel.close();
+        }
+    }
+
+    @Setup
+    public void setUp() throws IOException {
+        service = new RateLimiterService(new SimpleMeterRegistry(),
+                Collections.singletonList(new HostAndPort("localhost", 6379)),
+                RateLimiterService.poolConfig(8, 8, 0, RateLimiterService.DEFAULT_REDIS_TIMEOUT_MS),
+                RateLimiterService.DEFAULT_REDIS_TIMEOUT_MS, LocalRateLimiter.DEFAULT_MAX_BUCKETS, false, false,
+                false, 0, Collections.emptyList());
+        service.setConfig("user:*", new RateLimiterConfig(1_000_000, 1_000_000, RateLimiterType.TOKEN_BUCKET));
+        server = new BinaryAcquireServer(service, true, "127.0.0.1", 0);
+        server.start();
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        server.stop();
+        service.shutdown();
+    }
+
+    @Benchmark
+    public int pipelinedAcquire(Client client) throws IOException {
+        ByteBuffer requests = client.requests;
+        requests.clear();
+        for (int i = 0; i < BATCH; i++) {
+            byte[] key = ("user:" + (client.next++ % 10_000)).getBytes(StandardCharsets.UTF_8);
+            requests.putInt(7 + key.length).put(BinaryAcquireServer.OP_ACQUIRE).putInt(i).putShort((short) 1).put(key);
+        }
+        requests.flip();
+        while (requests.hasRemaining()) {
+            client.channel.write(requests);
+        }
+        ByteBuffer responses = client.responses;
+        responses.clear();
+        while (responses.hasRemaining()) {
+            client.channel.read(responses);
+        }
+        return responses.get(4);
+    }
+}
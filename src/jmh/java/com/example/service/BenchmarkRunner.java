@@ -0,0 +1,62 @@
+package com.example.service;
+
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs the benchmarks at 1, 2, 4 ... N threads, once for throughput (ops/s) and once
+ * for sampled latency percentiles (ns/op), both with the GC profiler for allocations per op.
+ * Each run writes a JSON result file so releases can be compared.
+ *
+ * <p>Usage: {@code mvn -Pbenchmarks test-compile exec:exec -Djmh.args=<include regex>}.
+ * Tuning goes through {@code -Djmh.jvmArgs="-Djmh.maxThreads=8 ..."}; supported properties are
+ * {@code jmh.maxThreads}, {@code jmh.warmup}, {@code jmh.iterations}, {@code jmh.forks}
+ * and {@code jmh.resultDir}.
+ */
+public final class BenchmarkRunner {
+
+    private BenchmarkRunner() {
+    }
+
+    public static void main(String[] args) throws RunnerException, IOException {
+        String include = args.length > 0 ? args[0] : ".*Benchmark.*";
+        int maxThreads = Integer.getInteger("jmh.maxThreads", Runtime.getRuntime().availableProcessors());
+        Path resultDir = Paths.get(System.getProperty("jmh.resultDir", "target/jmh"));
+        Files.createDirectories(resultDir);
+
+        for (int threads = 1; ; threads = Math.min(threads * 2, maxThreads)) {
+            run(include, threads, Mode.Throughput, TimeUnit.SECONDS, resultDir.resolve("throughput-" + threads + "t.json"));
+            run(include, threads, Mode.SampleTime, TimeUnit.NANOSECONDS, resultDir.resolve("latency-" + threads + "t.json"));
+            if (threads >= maxThreads) {
+                break;
+            }
+        }
+    }
+
+    private static void run(String include, int threads, Mode mode, TimeUnit unit, Path result) throws RunnerException {
+        Options options = new OptionsBuilder()
+                .include(include)
+                .threads(threads)
+                .mode(mode)
+                .timeUnit(unit)
+                .warmupIterations(Integer.getInteger("jmh.warmup", 3))
+                .measurementIterations(Integer.getInteger("jmh.iterations", 5))
+                .forks(Integer.getInteger("jmh.forks", 1))
+                .addProfiler(GCProfiler.class)
+                .resultFormat(ResultFormatType.JSON)
+                .result(result.toString())
+                .build();
+        new Runner(options).run();
+    }
+}
@@ -0,0 +1,60 @@
+package com.example.service;
+
+import com.example.model.RateLimiterConfig;
+import com.example.model.RateLimiterType;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * In-memory acquire path: one contended key versus many uniformly chosen keys, with the
+ * buckets in the map of bucket objects or in the primitive {@link BucketTable}.
+ * The bucket is sized so every acquire succeeds and takes the write path.
+ */
+@State(Scope.Benchmark)
+@Warmup(time = 1, timeUnit = TimeUnit.SECONDS)
+@Measurement(time = 2, timeUnit = TimeUnit.SECONDS)
+public class LocalAcquireBenchmark {
+
+    @Param({"TOKEN_BUCKET", "LEAKY_BUCKET"})
+    public RateLimiterType type;
+
+    @Param({"10000", "1000000"})
+    public int keyCount;
+
+    @Param({"map", "table"})
+    public String store;
+
+    private RateLimiterService service;
+    private RateLimiterConfig config;
+    private String[] keys;
+
+    @Setup
+    public void setUp() {
+        service = new RateLimiterService(new SimpleMeterRegistry(), "localhost", 6379,
+                LocalRateLimiter.DEFAULT_MAX_BUCKETS, false, "table".equals(store));
+        config = new RateLimiterConfig(1_000_000, 1_000_000, type);
+        keys = new String[keyCount];
+        for (int i = 0; i < keyCount; i++) {
+            keys[i] = "user:" + i;
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        service.shutdown();
+    }
+
+    @Benchmark
+    public boolean singleKey() {
+        return service.acquireInMemory("hot", config, System.currentTimeMillis());
+    }
+
+    @Benchmark
+    public boolean uniformKeys() {
+        String key = keys[ThreadLocalRandom.current().nextInt(keys.length)];
+        return service.acquireInMemory(key, config, System.currentTimeMillis());
+    }
+}
@@ -0,0 +1,81 @@
+package com.example.service;
+
+import redis.clients.jedis.Jedis;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+
+/**
+ * A throwaway {@code redis-server} process for benchmarks. Set {@code redis.host}
+ * and {@code redis.port} to use an already running server instead.
+ */
+final class LocalRedisServer implements AutoCloseable {
+    private final Process process;
+    private final String host;
+    private final int port;
+
+    private LocalRedisServer(Process process, String host, int port) {
+        this.process = process;
+        this.host = host;
+        this.port = port;
+    }
+
+    static LocalRedisServer start() throws IOException, InterruptedException {
+        String externalPort = System.getProperty("redis.port");
+        if (externalPort != null) {
+            return new LocalRedisServer(null, System.getProperty("redis.host", "localhost"), Integer.parseInt(externalPort));
+        }
+        return startProcess();
+    }
+
+    /** Always starts a new {@code redis-server}, for benchmarks that need several distinct nodes. */
+    static LocalRedisServer startProcess() throws IOException, InterruptedException {
+        int port;
+        try (ServerSocket socket = new ServerSocket(0)) {
+            port = socket.getLocalPort();
+        }
+        Process process = new ProcessBuilder(System.getProperty("redis.server", "redis-server"),
+                "--port", String.valueOf(port), "--save", "", "--appendonly", "no")
+                .redirectErrorStream(true)
+                .redirectOutput(ProcessBuilder.Redirect.DISCARD)
+                .start();
+        LocalRedisServer server = new LocalRedisServer(process, "localhost", port);
+        server.awaitReady();
+        return server;
+    }
+
+    String getHost() {
+        return host;
+    }
+
+    int getPort() {
+        return port;
+    }
+
+    private void awaitReady() throws InterruptedException {
+        for (int i = 0; i < 100; i++) {
+            try (Jedis jedis = new Jedis(host, port)) {
+                if ("PONG".equals(jedis.ping())) {
+                    return;
+                }
+            } catch (Exception ex) {
+                Thread.sleep(50);
+            }
+        }
+        close();
+        throw new IllegalStateException("redis-server did not start on port " + port);
+    }
+
+    void flushAll() {
+        try (Jedis jedis = new Jedis(host, port)) {
+            jedis.flushAll();
+        }
+    }
+
+    @Override
+    public void close() {
+        if (process != null) {
+            process.destroy();
+        }
+    }
+}
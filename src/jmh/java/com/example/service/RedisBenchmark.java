@@ -0,0 +1,86 @@
+package com.example.service;
+
+import com.example.model.RateLimiterConfig;
+import com.example.model.RateLimiterStatus;
+import com.example.model.RateLimiterType;
+import com.example.model.StatusPage;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Redis-backed paths against a local {@code redis-server}: acquire for each
+ * bucket type, single-key status and the admin bulk status (configured keys,
+ * and a full cursor scan of the keyspace).
+ */
+@State(Scope.Benchmark)
+@Warmup(time = 1, timeUnit = TimeUnit.SECONDS)
+@Measurement(time = 2, timeUnit = TimeUnit.SECONDS)
+public class RedisBenchmark {
+
+    @Param({"TOKEN_BUCKET", "LEAKY_BUCKET"})
+    public RateLimiterType type;
+
+    // Token and leaky buckets as one hash per bucket instead of two string keys
+    @Param({"false", "true"})
+    public boolean compactLayout;
+
+    // Keys with an explicit config, i.e. what getAllStatuses walks
+    @Param({"100"})
+    public int configuredKeys;
+
+    private LocalRedisServer redis;
+    private RateLimiterService service;
+    private String[] keys;
+
+    @Setup
+    public void setUp() throws Exception {
+        redis = LocalRedisServer.start();
+        redis.flushAll();
+        service = new RateLimiterService(new SimpleMeterRegistry(), redis.getHost(), redis.getPort(),
+                LocalRateLimiter.DEFAULT_MAX_BUCKETS, compactLayout);
+        RateLimiterConfig config = new RateLimiterConfig(1_000_000, 1_000_000, type);
+        keys = new String[configuredKeys];
+        for (int i = 0; i < configuredKeys; i++) {
+            keys[i] = "user:" + i;
+            service.setConfig(keys[i], config);
+            service.acquire(keys[i]);
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        service.shutdown();
+        redis.close();
+    }
+
+    @Benchmark
+    public boolean acquire() {
+        return service.acquire(keys[ThreadLocalRandom.current().nextInt(keys.length)]);
+    }
+
+    @Benchmark
+    public RateLimiterStatus getStatus() {
+        return service.getStatus(keys[ThreadLocalRandom.current().nextInt(keys.length)]);
+    }
+
+    @Benchmark
+    public Map<String, RateLimiterStatus> getAllStatuses() {
+        return service.getAllStatuses();
+    }
+
+    @Benchmark
+    public int scanAllStatuses() {
+        int buckets = 0;
+        String cursor = "0";
+        do {
+            StatusPage page = service.getStatusPage(cursor, 1000);
+            buckets += page.getStatuses().size();
+            cursor = page.getCursor();
+        } while (!"0".equals(cursor));
+        return buckets;
+    }
+}
@@ -0,0 +1,64 @@
+package com.example.service;
+
+import com.example.model.RateLimiterConfig;
+import com.example.model.RateLimiterType;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.openjdk.jmh.annotations.*;
+import redis.clients.jedis.HostAndPort;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@code acquire()} over 10k keys spread across 1, 2 and 4 local {@code redis-server}
+ * processes. With enough threads, throughput should grow close to linearly with the
+ * node count. Always starts its own servers; {@code redis.port} is not used here.
+ */
+@State(Scope.Benchmark)
+@Warmup(time = 1, timeUnit = TimeUnit.SECONDS)
+@Measurement(time = 2, timeUnit = TimeUnit.SECONDS)
+public class RedisShardBenchmark {
+
+    @Param({"1", "2", "4"})
+    public int nodes;
+
+    private final List<LocalRedisServer> servers = new ArrayList<>();
+    private RateLimiterService service;
+    private String[] keys;
+
+    @Setup
+    public void setUp() throws Exception {
+        List<HostAndPort> addresses = new ArrayList<>();
+        for (int i = 0; i < nodes; i++) {
+            LocalRedisServer server = LocalRedisServer.startProcess();
+            servers.add(server);
+            addresses.add(new HostAndPort(server.getHost(), server.getPort()));
+        }
+        // A pool per node sized for the benchmark's threads, so the pool is not what is measured
+        int threads = Runtime.getRuntime().availableProcessors();
+        service = new RateLimiterService(new SimpleMeterRegistry(), addresses,
+                RateLimiterService.poolConfig(threads, threads, 0, RateLimiterService.DEFAULT_REDIS_TIMEOUT_MS),
+                RateLimiterService.DEFAULT_REDIS_TIMEOUT_MS, LocalRateLimiter.DEFAULT_MAX_BUCKETS, false, false);
+        service.setConfig("user:*", new RateLimiterConfig(1_000_000, 1_000_000, RateLimiterType.TOKEN_BUCKET));
+        keys = new String[10_000];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = "user:" + i;
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        service.shutdown();
+        for (LocalRedisServer server : servers) {
+            server.close();
+        }
+        servers.clear();
+    }
+
+    @Benchmark
+    public boolean acquire() {
+        return service.acquire(keys[ThreadLocalRandom.current().nextInt(keys.length)]);
+    }
+}
@@ -0,0 +1,90 @@
+package com.example.service;
+
+import com.example.model.RateLimiterConfig;
+import com.example.model.RateLimiterType;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The limits as they are meant to work, with none of the engines' shortcuts, for judging
+ * their decisions in {@link TraceReplay}. Single-threaded and unbounded: requests must
+ * arrive in time order, and every key is kept.
+ *
+ * <p>Token buckets, leaky buckets and GCRA all admit as a bucket of {@code capacity}
+ * tokens refilling continuously at {@code refillRate} per second. Both sliding windows
+ * admit as an exact log over a window of {@code capacity / refillRate} seconds, which the
+ * counter only approximates.
+ */
+final class ReferenceLimiter {
+
+    private static final class Bucket {
+        double tokens;
+        double lastMillis;
+    }
+
+    private static final class Window {
+        // {time, permits} of each admission still in the window, oldest first
+        final ArrayDeque<double[]> admissions = new ArrayDeque<>();
+        long inWindow;
+    }
+
+    private final Map<String, Object> states = new HashMap<>();
+
+    boolean tryAcquire(String key, RateLimiterConfig config, double nowMillis, int permits) {
+        RateLimiterType type = config.getType();
+        if (type == RateLimiterType.SLIDING_WINDOW_LOG || type == RateLimiterType.SLIDING_WINDOW_COUNTER) {
+            return window(key, config, nowMillis, permits);
+        }
+        return bucket(key, config, nowMillis, permits);
+    }
+
+    int size() {
+        return states.size();
+    }
+
+    private boolean bucket(String key, RateLimiterConfig config, double nowMillis, int permits) {
+        Object state = states.get(key);
+        Bucket bucket;
+        if (state instanceof Bucket) {
+            bucket = (Bucket) state;
+            double refilled = Math.max(0, nowMillis - bucket.lastMillis) * config.getRefillRate() / 1000;
+            bucket.tokens = Math.min(config.getCapacity(), bucket.tokens + refilled);
+        } else {
+            // New key, or its config changed type: starts full, like the engines
+            bucket = new Bucket();
+            bucket.tokens = config.getCapacity();
+            states.put(key, bucket);
+        }
+        bucket.lastMillis = Math.max(bucket.lastMillis, nowMillis);
+        if (bucket.tokens < permits) {
+            return false;
+        }
+        bucket.tokens -= permits;
+        return true;
+    }
+
+    private boolean window(String key, RateLimiterConfig config, double nowMillis, int permits) {
+        Object state = states.get(key);
+        Window window;
+        if (state instanceof Window) {
+            window = (Window) state;
+        } else {
+            window = new Window();
+            states.put(key, window);
+        }
+        if (config.getRefillRate() > 0) {
+            double start = nowMillis - SlidingWindowMath.windowMillis(config);
+            while (!window.admissions.isEmpty() && window.admissions.peekFirst()[0] <= start) {
+                window.inWindow -= (long) window.admissions.pollFirst()[1];
+            }
+        }
+        if (window.inWindow + permits > config.getCapacity()) {
+            return false;
+        }
+        window.admissions.addLast(new double[]{nowMillis, permits});
+        window.inWindow += permits;
+        return true;
+    }
+}
@@ -0,0 +1,625 @@
+package com.example.service;
+
+import com.example.model.RateLimiterConfig;
+import com.example.model.RateLimiterType;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.HdrHistogram.ConcurrentHistogram;
+import org.HdrHistogram.Histogram;
+import redis.clients.jedis.HostAndPort;
+import redis.clients.jedis.Jedis;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Replays a recorded trace against {@link RateLimiterService}, in process or over
+ * {@code POST /acquire}, to size Redis and nodes for real traffic and to check each
+ * engine's decisions before rollout.
+ *
+ * <p>The trace is JSONL, one request per line: {@code {"ts": 1712.5, "key": "user:42"}},
+ * with {@code ts} in milliseconds (any origin, in time order) and an optional
+ * {@code permits} (default 1). It is streamed, so traces may be larger than memory.
+ *
+ * <p>Arrivals are open loop: each request is issued at its trace time divided by
+ * {@code --speed}, whether or not earlier ones have completed, and its response time is
+ * measured from that scheduled time. A slow engine therefore shows up as growing response
+ * times instead of as a lower request rate, which would hide the very stalls being
+ * measured (coordinated omission). Every decision is also checked against
+ * {@link ReferenceLimiter}, fed the same requests at their scheduled times.
+ *
+ * <p>Usage: {@code mvn -Pbenchmarks test-compile exec:exec -Dbench.main=com.example.service.TraceReplay
+ * -Djmh.args="<trace.jsonl> [options]"}, or {@code -Djmh.args="generate <out.jsonl> [options]"}
+ * for a synthetic trace. Options are listed in {@link #USAGE}.
+ */
+public final class TraceReplay {
+    static final String USAGE = String.join("\n",
+            "Usage: TraceReplay <trace.jsonl> [options]",
+            "  --target inprocess|http     where decisions are made (default inprocess)",
+            "  --url <base url>            service for --target http (default http://localhost:8080)",
+            "  --engine redis|local        in-process engine: Redis, or the in-memory engine alone (default redis)",
+            "  --redis <host:port,...>     Redis nodes of the in-process engine, and whose commands are counted",
+            "                              (default localhost:6379 in process, none over HTTP)",
+            "  --pool <n>                  connections per Redis node in process (default 8)",
+            "  --compact-layout            in process: hash layout for token and leaky buckets",
+            "  --primitive-table           in process: primitive in-memory bucket table",
+            "  --config <key>=<capacity>:<refillRate>:<TYPE>[:leased]",
+            "                              limits for a key or pattern, repeatable (default global=10:1:TOKEN_BUCKET)",
+            "  --speed <factor>            time compression; 10 replays a 10-minute trace in 1 minute (default 1)",
+            "  --threads <n>               driver threads (default 4 per core)",
+            "  --virtual                   one virtual thread per request instead (Java 21+)",
+            "  --async                     use the non-blocking acquire (in process) or HTTP client",
+            "  --limit <n>                 stop after n requests",
+            "  --flush                     FLUSHALL the --redis nodes first; only for throwaway Redis",
+            "",
+            "Usage: TraceReplay generate <out.jsonl> [--keys 10000] [--rate 1000] [--seconds 60] [--zipf 1.1] [--seed 1]");
+
+    private static final ObjectMapper JSON = new ObjectMapper();
+    // Longest response time the histograms track: ten minutes, in nanoseconds
+    private static final long MAX_TRACKED_NANOS = TimeUnit.MINUTES.toNanos(10);
+
+    private final Options options;
+    private final Map<String, RateLimiterConfig> exactConfigs = new HashMap<>();
+    private final ConfigRules configRules = new ConfigRules(100_000);
+    private final ReferenceLimiter reference = new ReferenceLimiter();
+
+    // Scheduled start to completion, and issue to completion, in nanoseconds
+    private final Histogram responseTimes = new ConcurrentHistogram(MAX_TRACKED_NANOS, 3);
+    private final Histogram serviceTimes = new ConcurrentHistogram(MAX_TRACKED_NANOS, 3);
+    private final LongAdder allowed = new LongAdder();
+    private final LongAdder denied = new LongAdder();
+    private final LongAdder errors = new LongAdder();
+    // Allowed where the reference denies, and denied where it allows
+    private final LongAdder overAdmitted = new LongAdder();
+    private final LongAdder underAdmitted = new LongAdder();
+    private final LongAdder completed = new LongAdder();
+
+    private TraceReplay(Options options) {
+        this.options = options;
+    }
+
+    public static void main(String[] args) throws Exception {
+        try {
+            if (args.length > 0 && "generate".equals(args[0])) {
+                generate(args);
+            } else {
+                new TraceReplay(Options.parse(args)).run();
+            }
+        } catch (IllegalArgumentException ex) {
+            System.err.println(ex.getMessage());
+            System.err.println(USAGE);
+            System.exit(2);
+        }
+    }
+
+    private void run() throws Exception {
+        for (Map.Entry<String, RateLimiterConfig> entry : options.configs.entrySet()) {
+            if (ConfigRules.isPattern(entry.getKey())) {
+                configRules.put(entry.getKey(), entry.getValue());
+            } else {
+                exactConfigs.put(entry.getKey(), entry.getValue());
+            }
+        }
+        if (options.flush) {
+            for (HostAndPort node : options.redisNodes) {
+                try (Jedis jedis = new Jedis(node.getHost(), node.getPort())) {
+                    jedis.flushAll();
+                }
+            }
+        }
+        Map<String, Long> commandsBefore = commandStats(options.redisNodes);
+        ExecutorService drivers = options.virtualThreads ? virtualThreadExecutor()
+                : Executors.newFixedThreadPool(options.threads, r -> {
+                    Thread t = new Thread(r, "trace-replay-driver");
+                    t.setDaemon(true);
+                    return t;
+                });
+        try (Target target = options.http ? new HttpTarget(options.url) : new InProcessTarget(options)) {
+            for (Map.Entry<String, RateLimiterConfig> entry : options.configs.entrySet()) {
+                target.configure(entry.getKey(), entry.getValue());
+            }
+            long start = System.nanoTime();
+            Replayed replayed = dispatch(target, drivers, start);
+            while (completed.sum() < replayed.requests) {
+                Thread.sleep(10);
+            }
+            long wallNanos = System.nanoTime() - start;
+            drivers.shutdown();
+            Map<String, Long> commands = diff(commandsBefore, commandStats(options.redisNodes));
+            report(replayed, wallNanos, commands, target.fallbackDecisions());
+        }
+    }
+
+    private static final class Replayed {
+        long requests;
+        long referenceAllowed;
+        double spanMillis;
+        // How late the dispatcher itself issued a request at worst; large values mean the replay was not open loop
+        long maxDispatchLagNanos;
+    }
+
+    // Reads the trace and issues each request at its scheduled time, deciding it in the reference model first
+    private Replayed dispatch(Target target, ExecutorService drivers, long start) throws IOException {
+        Replayed replayed = new Replayed();
+        double first = Double.NaN;
+        long lineNumber = 0;
+        try (BufferedReader reader = Files.newBufferedReader(options.trace)) {
+            for (String line; replayed.requests < options.limit && (line = reader.readLine()) != null; ) {
+                lineNumber++;
+                if (line.isBlank()) {
+                    continue;
+                }
+                JsonNode request = JSON.readTree(line);
+                JsonNode keyNode = request.get("key");
+                JsonNode tsNode = request.get("ts");
+                if (keyNode == null || tsNode == null) {
+                    throw new IllegalArgumentException("Line " + lineNumber + " of the trace has no \"key\" or \"ts\"");
+                }
+                String key = keyNode.asText();
+                int permits = request.path("permits").asInt(1);
+                double ts = tsNode.asDouble();
+                if (Double.isNaN(first)) {
+                    first = ts;
+                }
+                double offsetMillis = (ts - first) / options.speed;
+                long scheduled = start + (long) (offsetMillis * 1_000_000);
+                boolean expected = reference.tryAcquire(key, resolve(key), offsetMillis, permits);
+                if (expected) {
+                    replayed.referenceAllowed++;
+                }
+                waitUntil(scheduled);
+                replayed.maxDispatchLagNanos = Math.max(replayed.maxDispatchLagNanos, System.nanoTime() - scheduled);
+                drivers.execute(() -> issue(target, key, permits, scheduled, expected));
+                replayed.requests++;
+                replayed.spanMillis = Math.max(replayed.spanMillis, ts - first);
+            }
+        }
+        return replayed;
+    }
+
+    private static void waitUntil(long nanoTime) {
+        for (long wait; (wait = nanoTime - System.nanoTime()) > 0; ) {
+            if (wait > 100_000) {
+                LockSupport.parkNanos(wait - 50_000);
+            } else {
+                Thread.onSpinWait();
+            }
+        }
+    }
+
+    private void issue(Target target, String key, int permits, long scheduled, boolean expected) {
+        long issued = System.nanoTime();
+        if (options.async) {
+            target.acquireAsync(key, permits).whenComplete(
+                    (allowed, ex) -> record(scheduled, issued, ex == null && allowed, ex != null, expected));
+            return;
+        }
+        boolean result;
+        try {
+            result = target.acquire(key, permits);
+        } catch (Exception ex) {
+            record(scheduled, issued, false, true, expected);
+            return;
+        }
+        record(scheduled, issued, result, false, expected);
+    }
+
+    private void record(long scheduled, long issued, boolean wasAllowed, boolean failed, boolean expected) {
+        long now = System.nanoTime();
+        responseTimes.recordValue(Math.min(MAX_TRACKED_NANOS, Math.max(0, now - scheduled)));
+        serviceTimes.recordValue(Math.min(MAX_TRACKED_NANOS, Math.max(0, now - issued)));
+        if (failed) {
+            errors.increment();
+        } else if (wasAllowed) {
+            allowed.increment();
+            if (!expected) {
+                overAdmitted.increment();
+            }
+        } else {
+            denied.increment();
+            if (expected) {
+                underAdmitted.increment();
+            }
+        }
+        completed.increment();
+    }
+
+    // Same order as the service: the key's own config, the most specific rule, then global
+    private RateLimiterConfig resolve(String key) {
+        RateLimiterConfig config = exactConfigs.get(key);
+        if (config == null) {
+            config = configRules.resolve(key);
+        }
+        return config != null ? config : exactConfigs.get("global");
+    }
+
+    private void report(Replayed replayed, long wallNanos, Map<String, Long> commands, long fallbackDecisions) {
+        double wallSeconds = wallNanos / 1e9;
+        System.out.printf(Locale.ROOT, "Replayed %d requests from %s: %s, %s, speed %sx%n", replayed.requests,
+                options.trace, options.http ? "HTTP " + options.url : "in process, engine " + options.engine,
+                options.virtualThreads ? "virtual threads" : options.threads + " driver threads"
+                        + (options.async ? ", async" : ""), options.speed);
+        System.out.printf(Locale.ROOT, "Trace span %.1f s, replayed in %.1f s: offered %.0f req/s, completed %.0f req/s%n",
+                replayed.spanMillis / 1000, wallSeconds,
+                replayed.requests / Math.max(1e-3, replayed.spanMillis / 1000 / options.speed),
+                replayed.requests / wallSeconds);
+        System.out.printf(Locale.ROOT, "Dispatcher lag at worst %.3f ms%n", replayed.maxDispatchLagNanos / 1e6);
+        printPercentiles("Response time from schedule", responseTimes);
+        printPercentiles("Service time", serviceTimes);
+        long decided = allowed.sum() + denied.sum();
+        System.out.printf(Locale.ROOT, "Decisions: %d allowed, %d denied, %d errors%n",
+                allowed.sum(), denied.sum(), errors.sum());
+        if (fallbackDecisions >= 0) {
+            System.out.printf(Locale.ROOT, "Fallback decisions (Redis not asked): %d%n", fallbackDecisions);
+        }
+        System.out.printf(Locale.ROOT,
+                "Against the exact reference (%d keys): %.3f%% agree, %d over-admitted (%.3f%%), %d under-admitted (%.3f%%)%n",
+                reference.size(), percent(decided - overAdmitted.sum() - underAdmitted.sum(), decided),
+                overAdmitted.sum(), percent(overAdmitted.sum(), decided),
+                underAdmitted.sum(), percent(underAdmitted.sum(), decided));
+        // A request admitted a little early or late shows up above as one over- and one under-admission;
+        // the net difference is what matters for capacity
+        long excess = allowed.sum() - replayed.referenceAllowed;
+        System.out.printf(Locale.ROOT, "Allowed %d where the reference allows %d: net %+d (%+.3f%%)%n",
+                allowed.sum(), replayed.referenceAllowed, excess, percent(excess, replayed.referenceAllowed));
+        if (!options.redisNodes.isEmpty()) {
+            long total = commands.values().stream().mapToLong(Long::longValue).sum();
+            System.out.printf(Locale.ROOT, "Redis commands: %d in total, %.2f per request%n",
+                    total, total / (double) Math.max(1, replayed.requests));
+            commands.entrySet().stream()
+                    .sorted(Map.Entry.<String, Long>comparingByValue().reversed())
+                    .forEach(entry -> System.out.printf(Locale.ROOT, "  %-16s %d%n", entry.getKey(), entry.getValue()));
+        }
+    }
+
+    private static void printPercentiles(String name, Histogram histogram) {
+        System.out.printf(Locale.ROOT, "%s (ms): p50 %.3f  p90 %.3f  p99 %.3f  p99.9 %.3f  max %.3f%n", name,
+                histogram.getValueAtPercentile(50) / 1e6, histogram.getValueAtPercentile(90) / 1e6,
+                histogram.getValueAtPercentile(99) / 1e6, histogram.getValueAtPercentile(99.9) / 1e6,
+                histogram.getMaxValue() / 1e6);
+    }
+
+    private static double percent(long part, long whole) {
+        return whole == 0 ? 0 : 100.0 * part / whole;
+    }
+
+    // Calls per command, summed over the nodes, from INFO commandstats
+    private static Map<String, Long> commandStats(List<HostAndPort> nodes) {
+        Map<String, Long> calls = new HashMap<>();
+        for (HostAndPort node : nodes) {
+            try (Jedis jedis = new Jedis(node.getHost(), node.getPort())) {
+                for (String line : jedis.info("commandstats").split("\r?\n")) {
+                    if (!line.startsWith("cmdstat_")) {
+                        continue;
+                    }
+                    int colon = line.indexOf(':');
+                    int callsStart = line.indexOf("calls=", colon) + "calls=".length();
+                    int callsEnd = line.indexOf(',', callsStart);
+                    calls.merge(line.substring("cmdstat_".length(), colon),
+                            Long.parseLong(line.substring(callsStart, callsEnd < 0 ? line.length() : callsEnd)),
+                            Long::sum);
+                }
+            } catch (RuntimeException ex) {
+                System.err.println("Not counting commands of " + node + ": " + ex.getMessage());
+            }
+        }
+        return calls;
+    }
+
+    // The replay's own INFO and FLUSHALL calls are left out
+    private static Map<String, Long> diff(Map<String, Long> before, Map<String, Long> after) {
+        Map<String, Long> delta = new HashMap<>();
+        for (Map.Entry<String, Long> entry : after.entrySet()) {
+            long calls = entry.getValue() - before.getOrDefault(entry.getKey(), 0L);
+            if (calls > 0 && !"info".equals(entry.getKey()) && !"flushall".equals(entry.getKey())) {
+                delta.put(entry.getKey(), calls);
+            }
+        }
+        return delta;
+    }
+
+    private static ExecutorService virtualThreadExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException ex) {
+            throw new IllegalArgumentException("--virtual needs Java 21 or later");
+        }
+    }
+
+    // Poisson arrivals over Zipf-distributed keys, the usual shape of API traffic
+    private static void generate(String[] args) throws IOException {
+        if (args.length < 2) {
+            throw new IllegalArgumentException("generate needs an output file");
+        }
+        Map<String, String> flags = flags(args, 2);
+        int keys = Integer.parseInt(flags.getOrDefault("keys", "10000"));
+        double rate = Double.parseDouble(flags.getOrDefault("rate", "1000"));
+        double seconds = Double.parseDouble(flags.getOrDefault("seconds", "60"));
+        double zipf = Double.parseDouble(flags.getOrDefault("zipf", "1.1"));
+        Random random = new Random(Long.parseLong(flags.getOrDefault("seed", "1")));
+        double[] cumulative = new double[keys];
+        double sum = 0;
+        for (int i = 0; i < keys; i++) {
+            sum += 1 / Math.pow(i + 1, zipf);
+            cumulative[i] = sum;
+        }
+        long written = 0;
+        try (BufferedWriter out = Files.newBufferedWriter(Paths.get(args[1]))) {
+            for (double ts = 0; ts < seconds * 1000; ts += -Math.log(1 - random.nextDouble()) * 1000 / rate) {
+                int index = Arrays.binarySearch(cumulative, random.nextDouble() * sum);
+                int key = Math.min(keys - 1, index < 0 ? -index - 1 : index);
+                out.write(String.format(Locale.ROOT, "{\"ts\":%.3f,\"key\":\"user:%d\"}%n", ts, key));
+                written++;
+            }
+        }
+        System.out.printf(Locale.ROOT, "Wrote %d requests over %.0f s to %s%n", written, seconds, args[1]);
+    }
+
+    // --name value pairs, and bare --name switches as "true"; repeated names keep every value, comma-separated
+    private static Map<String, String> flags(String[] args, int from) {
+        Map<String, String> flags = new LinkedHashMap<>();
+        for (int i = from; i < args.length; i++) {
+            if (!args[i].startsWith("--")) {
+                throw new IllegalArgumentException("Unexpected argument " + args[i]);
+            }
+            String name = args[i].substring(2);
+            String value = i + 1 < args.length && !args[i + 1].startsWith("--") ? args[++i] : "true";
+            flags.merge(name, value, (a, b) -> a + "," + b);
+        }
+        return flags;
+    }
+
+    private static final class Options {
+        Path trace;
+        boolean http;
+        String url = "http://localhost:8080";
+        String engine = "redis";
+        List<HostAndPort> redisNodes;
+        int pool = 8;
+        boolean compactLayout;
+        boolean primitiveTable;
+        final Map<String, RateLimiterConfig> configs = new LinkedHashMap<>();
+        double speed = 1;
+        int threads = 4 * Runtime.getRuntime().availableProcessors();
+        boolean virtualThreads;
+        boolean async;
+        long limit = Long.MAX_VALUE;
+        boolean flush;
+
+        static Options parse(String[] args) {
+            if (args.length == 0 || args[0].startsWith("--")) {
+                throw new IllegalArgumentException("No trace file given");
+            }
+            Options options = new Options();
+            options.trace = Paths.get(args[0]);
+            options.configs.put("global", new RateLimiterConfig(10, 1, RateLimiterType.TOKEN_BUCKET));
+            for (Map.Entry<String, String> flag : flags(args, 1).entrySet()) {
+                String value = flag.getValue();
+                switch (flag.getKey()) {
+                    case "target":
+                        if (!"http".equals(value) && !"inprocess".equals(value)) {
+                            throw new IllegalArgumentException("--target must be inprocess or http");
+                        }
+                        options.http = "http".equals(value);
+                        break;
+                    case "url":
+                        options.url = value.replaceAll("/+$", "");
+                        break;
+                    case "engine":
+                        if (!"redis".equals(value) && !"local".equals(value)) {
+                            throw new IllegalArgumentException("--engine must be redis or local");
+                        }
+                        options.engine = value;
+                        break;
+                    case "redis":
+                        options.redisNodes = RedisShards.parseNodes(value);
+                        break;
+                    case "pool":
+                        options.pool = Integer.parseInt(value);
+                        break;
+                    case "compact-layout":
+                        options.compactLayout = true;
+                        break;
+                    case "primitive-table":
+                        options.primitiveTable = true;
+                        break;
+                    case "config":
+                        for (String config : value.split(",")) {
+                            parseConfig(options.configs, config);
+                        }
+                        break;
+                    case "speed":
+                        options.speed = Double.parseDouble(value);
+                        break;
+                    case "threads":
+                        options.threads = Integer.parseInt(value);
+                        break;
+                    case "virtual":
+                        options.virtualThreads = true;
+                        break;
+                    case "async":
+                        options.async = true;
+                        break;
+                    case "limit":
+                        options.limit = Long.parseLong(value);
+                        break;
+                    case "flush":
+                        options.flush = true;
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Unknown option --" + flag.getKey());
+                }
+            }
+            if (options.redisNodes == null) {
+                boolean ownRedis = !options.http && "redis".equals(options.engine);
+                options.redisNodes = ownRedis ? RedisShards.parseNodes("localhost:6379") : Collections.emptyList();
+            }
+            if (options.speed <= 0) {
+                throw new IllegalArgumentException("--speed must be positive");
+            }
+            return options;
+        }
+
+        // <key>=<capacity>:<refillRate>:<TYPE>[:leased]
+        private static void parseConfig(Map<String, RateLimiterConfig> configs, String config) {
+            int equals = config.lastIndexOf('=');
+            String[] parts = config.substring(equals + 1).split(":");
+            if (equals <= 0 || parts.length < 3 || parts.length > 4 || parts.length == 4 && !"leased".equals(parts[3])) {
+                throw new IllegalArgumentException("--config must be <key>=<capacity>:<refillRate>:<TYPE>[:leased], got "
+                        + config);
+            }
+            configs.put(config.substring(0, equals), new RateLimiterConfig(Integer.parseInt(parts[0]),
+                    Integer.parseInt(parts[1]), RateLimiterType.valueOf(parts[2]), parts.length == 4));
+        }
+    }
+
+    private interface Target extends AutoCloseable {
+        void configure(String key, RateLimiterConfig config) throws Exception;
+
+        boolean acquire(String key, int permits) throws Exception;
+
+        CompletableFuture<Boolean> acquireAsync(String key, int permits);
+
+        /** Decisions the engine made in memory because Redis could not be asked, or -1 if unknown. */
+        long fallbackDecisions();
+
+        @Override
+        void close();
+    }
+
+    private static final class InProcessTarget implements Target {
+        private final SimpleMeterRegistry registry = new SimpleMeterRegistry();
+        private final RateLimiterService service;
+
+        InProcessTarget(Options options) {
+            List<HostAndPort> nodes = options.redisNodes.isEmpty()
+                    ? RedisShards.parseNodes("localhost:6379") : options.redisNodes;
+            service = new RateLimiterService(registry, nodes,
+                    RateLimiterService.poolConfig(options.pool, options.pool, 0, RateLimiterService.DEFAULT_REDIS_TIMEOUT_MS),
+                    RateLimiterService.DEFAULT_REDIS_TIMEOUT_MS, LocalRateLimiter.DEFAULT_MAX_BUCKETS,
+                    options.compactLayout, options.primitiveTable, "redis".equals(options.engine), 0,
+                    Collections.emptyList());
+        }
+
+        @Override
+        public void configure(String key, RateLimiterConfig config) {
+            service.setConfig(key, config);
+        }
+
+        @Override
+        public boolean acquire(String key, int permits) {
+            return service.acquireWithResult(key, permits).isAllowed();
+        }
+
+        @Override
+        public CompletableFuture<Boolean> acquireAsync(String key, int permits) {
+            return service.acquireWithResultAsync(key, permits).thenApply(result -> result.isAllowed());
+        }
+
+        @Override
+        public long fallbackDecisions() {
+            return (long) registry.find("ratelimiter_fallback_decisions").counters().stream()
+                    .mapToDouble(Counter::count).sum();
+        }
+
+        @Override
+        public void close() {
+            service.shutdown();
+        }
+    }
+
+    private static final class HttpTarget implements Target {
+        private final HttpClient client = HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_1_1)
+                .connectTimeout(Duration.ofSeconds(5))
+                .build();
+        private final String url;
+
+        HttpTarget(String url) {
+            this.url = url;
+        }
+
+        @Override
+        public void configure(String key, RateLimiterConfig config) throws Exception {
+            HttpResponse<String> response = client.send(post("/config?key=" + encode(key)
+                    + "&capacity=" + config.getCapacity() + "&refillRate=" + config.getRefillRate()
+                    + "&type=" + config.getType() + "&leased=" + config.isLeased()), HttpResponse.BodyHandlers.ofString());
+            if (response.statusCode() / 100 != 2) {
+                throw new IllegalStateException("Setting the config of " + key + " failed: HTTP " + response.statusCode());
+            }
+        }
+
+        @Override
+        public boolean acquire(String key, int permits) throws Exception {
+            return allowed(client.send(acquireRequest(key, permits), HttpResponse.BodyHandlers.discarding()));
+        }
+
+        @Override
+        public CompletableFuture<Boolean> acquireAsync(String key, int permits) {
+            return client.sendAsync(acquireRequest(key, permits), HttpResponse.BodyHandlers.discarding())
+                    .thenApply(HttpTarget::allowed);
+        }
+
+        @Override
+        public long fallbackDecisions() {
+            return -1;
+        }
+
+        @Override
+        public void close() {
+            // The client's connections close with it
+        }
+
+        private HttpRequest acquireRequest(String key, int permits) {
+            return post("/acquire?key=" + encode(key) + "&permits=" + permits);
+        }
+
+        private HttpRequest post(String path) {
+            return HttpRequest.newBuilder(URI.create(url + path))
+                    .timeout(Duration.ofSeconds(10))
+                    .POST(HttpRequest.BodyPublishers.noBody())
+                    .build();
+        }
+
+        private static boolean allowed(HttpResponse<?> response) {
+            if (response.statusCode() == 200) {
+                return true;
+            }
+            if (response.statusCode() == 429) {
+                return false;
+            }
+            throw new IllegalStateException("HTTP " + response.statusCode());
+        }
+
+        private static String encode(String value) {
+            return URLEncoder.encode(value, StandardCharsets.UTF_8);
+        }
+    }
+}
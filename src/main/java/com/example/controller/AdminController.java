@@ -1,20 +1,66 @@
 package com.example.controller;
 
 import com.example.model.RateLimiterStatus;
+import com.example.model.StatusPage;
 import com.example.service.RateLimiterService;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
 import java.util.*;
 
 @RestController
 @RequestMapping("/admin")
 public class AdminController {
+    private static final String NDJSON = "application/x-ndjson";
+    private static final int MAX_PAGE_SIZE = 10_000;
+
     @Autowired
     private RateLimiterService rateLimiterService;
 
-    @GetMapping("/all-status")
-    public Map<String, RateLimiterStatus> allStatus() {
-        return rateLimiterService.getAllStatuses();
+    @Autowired
+    private ObjectMapper objectMapper;
+
+    // One page of buckets with state in Redis; follow "cursor" until it is "0"
+    @GetMapping(value = "/all-status", produces = MediaType.APPLICATION_JSON_VALUE)
+    public StatusPage allStatus(@RequestParam(defaultValue = "0") String cursor,
+                                @RequestParam(defaultValue = "1000") int count) {
+        return rateLimiterService.getStatusPage(cursor, Math.min(count, MAX_PAGE_SIZE));
+    }
+
+    // Every bucket as one JSON object per line, written page by page off the request thread
+    @GetMapping(value = "/all-status", produces = NDJSON)
+    public StreamingResponseBody allStatusStream(@RequestParam(defaultValue = "1000") int count) {
+        int pageSize = Math.min(count, MAX_PAGE_SIZE);
+        return out -> {
+            String cursor = "0";
+            do {
+                StatusPage page = rateLimiterService.getStatusPage(cursor, pageSize);
+                for (Map.Entry<String, RateLimiterStatus> entry : page.getStatuses().entrySet()) {
+                    ObjectNode line = objectMapper.valueToTree(entry.getValue());
+                    line.put("key", entry.getKey());
+                    out.write(objectMapper.writeValueAsBytes(line));
+                    out.write('\n');
+                }
+                out.flush();
+                cursor = page.getCursor();
+            } while (!"0".equals(cursor));
+        };
+    }
+
+    // Remove the config of a key or pattern; the key then falls back to a matching rule or global
+    @DeleteMapping("/config")
+    public ResponseEntity<String> removeConfig(@RequestParam String key) {
+        return rateLimiterService.removeConfig(key) ? ResponseEntity.ok("Config removed")
+                : ResponseEntity.notFound().build();
+    }
+
+    @ExceptionHandler(IllegalArgumentException.class)
+    public ResponseEntity<String> badRequest(IllegalArgumentException ex) {
+        return ResponseEntity.badRequest().body(ex.getMessage());
     }
-}
\ No newline at end of file
+}
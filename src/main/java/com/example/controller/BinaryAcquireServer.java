@@ -0,0 +1,336 @@
+package com.example.controller;
+
+import com.example.model.AcquireResult;
+import com.example.model.RateLimiterStatus;
+import com.example.service.RateLimiterService;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Optional TCP listener for a compact binary acquire protocol, next to {@code POST /acquire}.
+ * It skips the servlet, security and JSON layers, so a decision costs little more than the
+ * service call itself. Backed by the same {@link RateLimiterService}.
+ *
+ * <p>Requests, all big-endian: {@code int32} length of the rest of the frame, {@code int8}
+ * opcode ({@link #OP_ACQUIRE} or {@link #OP_STATUS}), {@code int32} request id,
+ * {@code int16} permits (ignored for status), then the key in UTF-8.
+ *
+ * <p>Responses are always {@link #RESPONSE_BYTES} bytes: {@code int32} request id,
+ * {@code int8} result ({@link #DENIED}, {@link #ALLOWED}, {@link #BAD_REQUEST} or
+ * {@link #ERROR}), {@code int32} remaining tokens (-1: unknown), {@code int32} retry-after
+ * in ms (-1: never refills), {@code int32} time until the bucket is full in ms (-1: unknown). A status request
+ * answers {@link #ALLOWED} while the bucket has tokens.
+ *
+ * <p>Clients may pipeline any number of requests on one connection. Responses are written as
+ * decisions complete, which is not always in request order, so clients match them by id.
+ * One selector thread serves every connection; acquires never block it, since they go
+ * through {@link RateLimiterService#acquireWithResultAsync(String, int)}, which pipelines
+ * Redis calls and renews empty leases on its own threads. Status reads run on an executor.
+ */
+@Component
+public class BinaryAcquireServer {
+    public static final byte OP_ACQUIRE = 1;
+    public static final byte OP_STATUS = 2;
+
+    public static final byte DENIED = 0;
+    public static final byte ALLOWED = 1;
+    public static final byte BAD_REQUEST = 2;
+    public static final byte ERROR = 3;
+
+    public static final int RESPONSE_BYTES = 17;
+    // Largest request frame after the length prefix; a longer one closes the connection
+    static final int MAX_FRAME = 4096;
+    private static final int FRAME_HEADER = 7;
+    // Requests a connection may have awaiting a decision before it stops being read
+    static final int MAX_IN_FLIGHT = 8192;
+    private static final int OUTPUT_BUFFER = 64 * 1024;
+
+    private final RateLimiterService rateLimiterService;
+    private final boolean enabled;
+    private final String host;
+    private final int port;
+
+    private ServerSocketChannel server;
+    private Selector selector;
+    private Thread eventLoop;
+    // Status reads may wait on Redis, so they run here rather than on the selector thread
+    private ExecutorService statusExecutor;
+    // Connections with responses queued from other threads, and whether the selector was already woken for them
+    private final Queue<Connection> ready = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean wakeupPending = new AtomicBoolean();
+    private volatile boolean running;
+
+    @Autowired
+    public BinaryAcquireServer(RateLimiterService rateLimiterService,
+                               @Value("${rate.limiter.binary.enabled:false}") boolean enabled,
+                               @Value("${rate.limiter.binary.host:127.0.0.1}") String host,
+                               @Value("${rate.limiter.binary.port:7070}") int port) {
+        this.rateLimiterService = rateLimiterService;
+        this.enabled = enabled;
+        this.host = host;
+        this.port = port;
+    }
+
+    @PostConstruct
+    public void start() throws IOException {
+        if (!enabled) {
+            return;
+        }
+        selector = Selector.open();
+        server = ServerSocketChannel.open();
+        server.bind(new InetSocketAddress(host, port));
+        server.configureBlocking(false);
+        server.register(selector, SelectionKey.OP_ACCEPT);
+        statusExecutor = Executors.newFixedThreadPool(2, r -> {
+            Thread t = new Thread(r, "rate-limiter-binary-status");
+            t.setDaemon(true);
+            return t;
+        });
+        running = true;
+        eventLoop = new Thread(this::run, "rate-limiter-binary");
+        eventLoop.setDaemon(true);
+        eventLoop.start();
+    }
+
+    @PreDestroy
+    public void stop() throws IOException {
+        if (!running) {
+            return;
+        }
+        running = false;
+        selector.wakeup();
+        try {
+            eventLoop.join(1000);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        statusExecutor.shutdownNow();
+        for (SelectionKey key : selector.keys()) {
+            key.channel().close();
+        }
+        selector.close();
+    }
+
+    /** The bound port, which differs from the configured one when that is {@code 0}. */
+    public int getPort() throws IOException {
+        return ((InetSocketAddress) server.getLocalAddress()).getPort();
+    }
+
+    private void run() {
+        try {
+            while (running) {
+                selector.select();
+                wakeupPending.set(false);
+                for (Connection connection; (connection = ready.poll()) != null; ) {
+                    write(connection);
+                }
+                for (SelectionKey key : selector.selectedKeys()) {
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isAcceptable()) {
+                        accept();
+                        continue;
+                    }
+                    Connection connection = (Connection) key.attachment();
+                    if (key.isReadable()) {
+                        read(connection);
+                    }
+                    if (key.isValid() && key.isWritable()) {
+                        write(connection);
+                    }
+                }
+                selector.selectedKeys().clear();
+            }
+        } catch (IOException | ClosedSelectorException ex) {
+            // Shutting down
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel = server.accept();
+        if (channel == null) {
+            return;
+        }
+        channel.configureBlocking(false);
+        channel.socket().setTcpNoDelay(true);
+        Connection connection = new Connection(channel);
+        connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+    }
+
+    private void read(Connection connection) {
+        ByteBuffer in = connection.in;
+        int read;
+        try {
+            read = connection.channel.read(in);
+        } catch (IOException ex) {
+            close(connection);
+            return;
+        }
+        if (read < 0) {
+            close(connection);
+            return;
+        }
+        in.flip();
+        while (in.remaining() >= 4) {
+            int length = in.getInt(in.position());
+            if (length < FRAME_HEADER || length > MAX_FRAME) {
+                // Not a frame of this protocol; there is no way to find the next one
+                close(connection);
+                return;
+            }
+            if (in.remaining() < 4 + length) {
+                break;
+            }
+            in.getInt();
+            byte op = in.get();
+            int requestId = in.getInt();
+            int permits = in.getShort();
+            String key = new String(in.array(), in.arrayOffset() + in.position(), length - FRAME_HEADER,
+                    StandardCharsets.UTF_8);
+            in.position(in.position() + length - FRAME_HEADER);
+            handle(connection, op, requestId, permits, key);
+        }
+        in.compact();
+        if (connection.flushAfterRead) {
+            // One write for every response decided while this batch of requests was parsed
+            connection.flushAfterRead = false;
+            write(connection);
+        }
+        if (connection.inFlight.get() >= MAX_IN_FLIGHT) {
+            connection.key.interestOps(connection.key.interestOps() & ~SelectionKey.OP_READ);
+        }
+    }
+
+    private void handle(Connection connection, byte op, int requestId, int permits, String key) {
+        if (key.isEmpty() || op == OP_ACQUIRE && permits < 1 || op != OP_ACQUIRE && op != OP_STATUS) {
+            connection.respond(response(requestId, BAD_REQUEST, -1, 0, -1));
+            connection.flushAfterRead = true;
+            return;
+        }
+        connection.inFlight.incrementAndGet();
+        CompletableFuture<byte[]> response;
+        if (op == OP_ACQUIRE) {
+            response = rateLimiterService.acquireWithResultAsync(key, permits)
+                    .thenApply(result -> response(requestId, result));
+        } else {
+            response = CompletableFuture.supplyAsync(() -> response(requestId, rateLimiterService.getStatus(key)),
+                    statusExecutor);
+        }
+        response.whenComplete((bytes, ex) -> {
+            connection.inFlight.decrementAndGet();
+            connection.respond(ex == null ? bytes : response(requestId, ERROR, -1, 0, -1));
+            if (Thread.currentThread() == eventLoop) {
+                // Decided without waiting, while the requests are being parsed
+                connection.flushAfterRead = true;
+            } else {
+                ready.add(connection);
+                if (wakeupPending.compareAndSet(false, true)) {
+                    selector.wakeup();
+                }
+            }
+        });
+    }
+
+    // Copies queued responses into the connection's buffer and writes as much as the socket takes
+    private void write(Connection connection) {
+        if (!connection.channel.isOpen()) {
+            return;
+        }
+        ByteBuffer out = connection.out;
+        for (byte[] bytes; out.remaining() >= RESPONSE_BYTES && (bytes = connection.responses.poll()) != null; ) {
+            out.put(bytes);
+        }
+        out.flip();
+        try {
+            connection.channel.write(out);
+        } catch (IOException ex) {
+            close(connection);
+            return;
+        }
+        out.compact();
+        boolean pending = out.position() > 0 || !connection.responses.isEmpty();
+        int ops = SelectionKey.OP_READ;
+        if (pending) {
+            ops |= SelectionKey.OP_WRITE;
+        }
+        if (connection.inFlight.get() >= MAX_IN_FLIGHT) {
+            ops &= ~SelectionKey.OP_READ;
+        }
+        if (connection.key.isValid()) {
+            connection.key.interestOps(ops);
+        }
+    }
+
+    private void close(Connection connection) {
+        connection.key.cancel();
+        try {
+            connection.channel.close();
+        } catch (IOException ignored) {
+            // Already gone
+        }
+    }
+
+    static byte[] response(int requestId, AcquireResult result) {
+        return response(requestId, result.isAllowed() ? ALLOWED : DENIED, result.getRemaining(),
+                result.getRetryAfterMillis(), result.getResetMillis());
+    }
+
+    static byte[] response(int requestId, RateLimiterStatus status) {
+        return response(requestId, status.getTokensLeft() > 0 ? ALLOWED : DENIED, status.getTokensLeft(), 0, -1);
+    }
+
+    static byte[] response(int requestId, byte result, long remaining, long retryAfterMillis, long resetMillis) {
+        return ByteBuffer.allocate(RESPONSE_BYTES)
+                .putInt(requestId)
+                .put(result)
+                .putInt(clamp(remaining))
+                .putInt(clamp(retryAfterMillis))
+                .putInt(clamp(resetMillis))
+                .array();
+    }
+
+    private static int clamp(long value) {
+        return (int) Math.max(Integer.MIN_VALUE, Math.min(Integer.MAX_VALUE, value));
+    }
+
+    private static final class Connection {
+        final SocketChannel channel;
+        final ByteBuffer in = ByteBuffer.allocate(4 + MAX_FRAME);
+        final ByteBuffer out = ByteBuffer.allocate(OUTPUT_BUFFER);
+        // Responses completed on any thread, written by the selector thread
+        final Queue<byte[]> responses = new ConcurrentLinkedQueue<>();
+        final AtomicInteger inFlight = new AtomicInteger();
+        SelectionKey key;
+        // Only touched on the selector thread
+        boolean flushAfterRead;
+
+        Connection(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        void respond(byte[] response) {
+            responses.add(response);
+        }
+    }
+}
@@ -0,0 +1,32 @@
+package com.example.controller;
+
+import com.example.service.RateLimiterService;
+import org.springframework.boot.actuate.endpoint.annotation.Endpoint;
+import org.springframework.boot.actuate.endpoint.annotation.ReadOperation;
+import org.springframework.stereotype.Component;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * {@code /actuator/hotkeys}: the keys with the most decisions and the most denials lately,
+ * by name. Prometheus only gets the counts by rank ({@code ratelimiter_top_key_decisions}),
+ * so key names never become metric tags. Requires a JWT, like the admin endpoints.
+ */
+@Component
+@Endpoint(id = "hotkeys")
+public class HotKeysEndpoint {
+    private final RateLimiterService rateLimiterService;
+
+    public HotKeysEndpoint(RateLimiterService rateLimiterService) {
+        this.rateLimiterService = rateLimiterService;
+    }
+
+    @ReadOperation
+    public Map<String, Map<String, Long>> hotKeys() {
+        Map<String, Map<String, Long>> lists = new LinkedHashMap<>();
+        lists.put("hot", rateLimiterService.getHotKeys());
+        lists.put("denied", rateLimiterService.getMostDeniedKeys());
+        return lists;
+    }
+}
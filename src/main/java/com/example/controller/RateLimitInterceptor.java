@@ -0,0 +1,137 @@
+package com.example.controller;
+
+import com.example.model.AcquireResult;
+import com.example.model.RateLimiterConfig;
+import com.example.security.JwtAuthenticationFilter;
+import com.example.service.RateLimiterService;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import org.springframework.core.annotation.AnnotatedElementUtils;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.web.method.HandlerMethod;
+import org.springframework.web.servlet.HandlerInterceptor;
+import org.springframework.web.servlet.HandlerMapping;
+
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+/**
+ * Enforces {@link RateLimited} on handler methods by calling {@link RateLimiterService}
+ * in-process. Each annotation is resolved once per handler method into a {@link Plan};
+ * after that a request costs a map lookup, a header or attribute read, and the acquire.
+ * {@link RateLimitWebConfig} resolves every mapped handler at startup, so a bad annotation
+ * fails the boot rather than the first request.
+ */
+public class RateLimitInterceptor implements HandlerInterceptor {
+    public static final String REMAINING_HEADER = "X-RateLimit-Remaining";
+    public static final String LIMIT_HEADER = "X-RateLimit-Limit";
+    // Seconds until the bucket is full again
+    public static final String RESET_HEADER = "X-RateLimit-Reset";
+
+    // Marks handlers without @RateLimited so the annotation lookup is not repeated
+    private static final Plan UNLIMITED = new Plan(null, null, null);
+
+    private final RateLimiterService rateLimiterService;
+    private final Map<Method, Plan> plans = new ConcurrentHashMap<>();
+
+    public RateLimitInterceptor(RateLimiterService rateLimiterService) {
+        this.rateLimiterService = rateLimiterService;
+    }
+
+    @Override
+    public boolean preHandle(HttpServletRequest request, HttpServletResponse response, Object handler)
+            throws IOException {
+        if (!(handler instanceof HandlerMethod)) {
+            return true;
+        }
+        Plan plan = plans.computeIfAbsent(((HandlerMethod) handler).getMethod(), RateLimitInterceptor::compile);
+        if (plan == UNLIMITED) {
+            return true;
+        }
+        String value = plan.keyExtractor.apply(request);
+        if (value == null || value.isEmpty()) {
+            value = request.getRemoteAddr();
+        }
+        RateLimiterConfig config = rateLimiterService.getConfig(plan.configKey);
+        AcquireResult result = rateLimiterService.acquireWithResult(plan.bucketPrefix + value, config);
+        response.setHeader(LIMIT_HEADER, String.valueOf(config.getCapacity()));
+        if (result.getRemaining() >= 0) {
+            response.setHeader(REMAINING_HEADER, String.valueOf(result.getRemaining()));
+        }
+        if (result.getResetMillis() >= 0) {
+            response.setHeader(RESET_HEADER, String.valueOf((result.getResetMillis() + 999) / 1000));
+        }
+        if (result.isAllowed()) {
+            return true;
+        }
+        if (result.getRetryAfterMillis() > 0) {
+            response.setHeader(HttpHeaders.RETRY_AFTER, String.valueOf((result.getRetryAfterMillis() + 999) / 1000));
+        }
+        response.setStatus(HttpStatus.TOO_MANY_REQUESTS.value());
+        response.getWriter().write("Rate limit exceeded");
+        return false;
+    }
+
+    /**
+     * Resolves the plans of {@code handlers} up front.
+     *
+     * @throws IllegalArgumentException if a {@link RateLimited} key is not supported
+     */
+    void compileAll(Collection<HandlerMethod> handlers) {
+        for (HandlerMethod handler : handlers) {
+            plans.computeIfAbsent(handler.getMethod(), RateLimitInterceptor::compile);
+        }
+    }
+
+    static Plan compile(Method method) {
+        RateLimited limit = AnnotatedElementUtils.findMergedAnnotation(method, RateLimited.class);
+        if (limit == null) {
+            limit = AnnotatedElementUtils.findMergedAnnotation(method.getDeclaringClass(), RateLimited.class);
+        }
+        if (limit == null) {
+            return UNLIMITED;
+        }
+        return new Plan(limit.config(), limit.config() + ":", keyExtractor(limit.key(), method));
+    }
+
+    private static Function<HttpServletRequest, String> keyExtractor(String key, Method method) {
+        if (key.isEmpty()) {
+            return request -> "*";
+        }
+        if (key.equals("subject")) {
+            return request -> (String) request.getAttribute(JwtAuthenticationFilter.SUBJECT_ATTRIBUTE);
+        }
+        if (key.startsWith("header:") && key.length() > "header:".length()) {
+            String header = key.substring("header:".length());
+            return request -> request.getHeader(header);
+        }
+        if (key.startsWith("path:") && key.length() > "path:".length()) {
+            String variable = key.substring("path:".length());
+            return request -> {
+                @SuppressWarnings("unchecked")
+                Map<String, String> variables = (Map<String, String>)
+                        request.getAttribute(HandlerMapping.URI_TEMPLATE_VARIABLES_ATTRIBUTE);
+                return variables == null ? null : variables.get(variable);
+            };
+        }
+        throw new IllegalArgumentException("Unsupported @RateLimited key '" + key + "' on " + method
+                + "; expected header:<name>, path:<variable>, subject or empty");
+    }
+
+    static final class Plan {
+        final String configKey;
+        final String bucketPrefix;
+        final Function<HttpServletRequest, String> keyExtractor;
+
+        Plan(String configKey, String bucketPrefix, Function<HttpServletRequest, String> keyExtractor) {
+            this.configKey = configKey;
+            this.bucketPrefix = bucketPrefix;
+            this.keyExtractor = keyExtractor;
+        }
+    }
+}
@@ -0,0 +1,32 @@
+package com.example.controller;
+
+import com.example.service.RateLimiterService;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.event.ContextRefreshedEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.web.servlet.config.annotation.InterceptorRegistry;
+import org.springframework.web.servlet.config.annotation.WebMvcConfigurer;
+import org.springframework.web.servlet.mvc.method.annotation.RequestMappingHandlerMapping;
+
+@Configuration
+public class RateLimitWebConfig implements WebMvcConfigurer {
+    private final RateLimitInterceptor interceptor;
+
+    public RateLimitWebConfig(RateLimiterService rateLimiterService) {
+        this.interceptor = new RateLimitInterceptor(rateLimiterService);
+    }
+
+    @Override
+    public void addInterceptors(InterceptorRegistry registry) {
+        registry.addInterceptor(interceptor);
+    }
+
+    // Checks every @RateLimited handler once the mappings exist; a bad key fails the refresh, and with it the boot
+    @EventListener
+    public void validateRateLimits(ContextRefreshedEvent event) {
+        for (RequestMappingHandlerMapping mapping
+                : event.getApplicationContext().getBeansOfType(RequestMappingHandlerMapping.class).values()) {
+            interceptor.compileAll(mapping.getHandlerMethods().values());
+        }
+    }
+}
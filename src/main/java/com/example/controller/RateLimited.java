@@ -0,0 +1,29 @@
+package com.example.controller;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Rate limits a handler method (or every handler in a controller) in-process, without a
+ * call to {@code POST /acquire}. Each caller gets its own bucket named
+ * {@code <config>:<key value>}, limited by the config set for {@code config}.
+ *
+ * <p>{@code key} selects what identifies a caller:
+ * <ul>
+ *   <li>{@code "header:X-Api-Key"} - the value of a request header</li>
+ *   <li>{@code "path:userId"} - a URI template variable</li>
+ *   <li>{@code "subject"} - the subject of the request's verified JWT</li>
+ *   <li>{@code ""} - one bucket shared by all callers</li>
+ * </ul>
+ * Requests without the header, variable, or JWT are keyed by client address.
+ */
+@Target({ElementType.METHOD, ElementType.TYPE})
+@Retention(RetentionPolicy.RUNTIME)
+public @interface RateLimited {
+    String key() default "";
+
+    // Config key whose limits apply; falls back to the global config like any other key
+    String config() default "global";
+}
@@ -6,20 +6,70 @@ import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.http.*;
 import org.springframework.web.bind.annotation.*;
 
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
 @RestController
 @RequestMapping("/")
 public class RateLimiterController {
     @Autowired
     private RateLimiterService rateLimiterService;
 
+    /**
+     * Takes {@code permits} tokens at once. Completes asynchronously: the servlet thread is
+     * released while the decision is pipelined to Redis. With {@code reserve=true} the tokens
+     * are booked even if they have not refilled yet, provided the wait is at most
+     * {@code maxWaitMs} (default: one full refill); the wait comes back as {@code Retry-After}.
+     */
     @PostMapping("/acquire")
-    public ResponseEntity<String> acquire(@RequestParam String key) {
-        boolean allowed = rateLimiterService.acquire(key);
-        if (allowed) {
-            return ResponseEntity.ok("Allowed");
-        } else {
-            return ResponseEntity.status(HttpStatus.TOO_MANY_REQUESTS).body("Rate limit exceeded");
+    public CompletableFuture<ResponseEntity<String>> acquire(
+            @RequestParam String key,
+            @RequestParam(defaultValue = "1") int permits,
+            @RequestParam(defaultValue = "false") boolean reserve,
+            @RequestParam(defaultValue = "-1") long maxWaitMs) {
+        if (permits < 1) {
+            return CompletableFuture.completedFuture(ResponseEntity.badRequest().body("permits must be at least 1"));
+        }
+        if (reserve) {
+            return CompletableFuture.completedFuture(toResponse(rateLimiterService.reserve(key, permits, maxWaitMs)));
+        }
+        return rateLimiterService.acquireWithResultAsync(key, permits).thenApply(this::toResponse);
+    }
+
+    private ResponseEntity<String> toResponse(AcquireResult result) {
+        ResponseEntity.BodyBuilder response = ResponseEntity.status(
+                result.isAllowed() ? HttpStatus.OK : HttpStatus.TOO_MANY_REQUESTS);
+        if (result.getRemaining() >= 0) {
+            response.header(RateLimitInterceptor.REMAINING_HEADER, String.valueOf(result.getRemaining()));
+        }
+        if (result.getResetMillis() >= 0) {
+            response.header(RateLimitInterceptor.RESET_HEADER, String.valueOf(toSeconds(result.getResetMillis())));
+        }
+        // Denied: when to retry. Allowed by a reservation: how long to wait before going ahead
+        if (result.getRetryAfterMillis() > 0) {
+            response.header(HttpHeaders.RETRY_AFTER, String.valueOf(toSeconds(result.getRetryAfterMillis())));
+        }
+        if (!result.isAllowed()) {
+            return response.body("Rate limit exceeded");
         }
+        return response.body(result.getRetryAfterMillis() > 0 ? "Reserved" : "Allowed");
+    }
+
+    private static long toSeconds(long millis) {
+        return (millis + 999) / 1000;
+    }
+
+    // Acquire one token for each key in the JSON array body, in a single Redis round trip
+    @PostMapping("/acquire/batch")
+    public Map<String, Boolean> acquireBatch(@RequestBody List<String> keys) {
+        return rateLimiterService.acquireAll(keys);
+    }
+
+    // Acquire from every key of a limit chain (?key=user:1&key=tenant:acme&key=global), all or nothing
+    @PostMapping("/acquire/chain")
+    public ResponseEntity<String> acquireChain(@RequestParam("key") List<String> keys) {
+        return toResponse(rateLimiterService.acquireChain(keys));
     }
 
     @GetMapping("/status")
@@ -33,8 +83,15 @@ public class RateLimiterController {
             @RequestParam String key,
             @RequestParam int capacity,
             @RequestParam int refillRate,
-            @RequestParam RateLimiterType type) {
-        rateLimiterService.setConfig(key, new RateLimiterConfig(capacity, refillRate, type));
+            @RequestParam RateLimiterType type,
+            @RequestParam(defaultValue = "false") boolean leased) {
+        rateLimiterService.setConfig(key, new RateLimiterConfig(capacity, refillRate, type, leased));
         return ResponseEntity.ok("Config updated");
     }
-}
\ No newline at end of file
+
+    // Duplicate batch keys, empty chains and chains that cannot be refunded across nodes
+    @ExceptionHandler(IllegalArgumentException.class)
+    public ResponseEntity<String> badRequest(IllegalArgumentException ex) {
+        return ResponseEntity.badRequest().body(ex.getMessage());
+    }
+}
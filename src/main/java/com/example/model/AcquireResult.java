@@ -0,0 +1,43 @@
+package com.example.model;
+
+public class AcquireResult {
+    private static final AcquireResult ALLOWED = new AcquireResult(true, 0, -1);
+    private static final AcquireResult DENIED = new AcquireResult(false, 0, 0);
+
+    private boolean allowed;
+    // Denied: how long the caller should wait before retrying (0 when unknown, -1 when the bucket never refills).
+    // Allowed by a reservation: how long the caller must wait before using the booked permits
+    private long retryAfterMillis;
+    // Tokens left after this decision; -1 when unknown
+    private long remaining;
+    // How long until the bucket is back to full capacity; -1 when unknown
+    private long resetMillis;
+
+    public AcquireResult(boolean allowed, long retryAfterMillis) {
+        this(allowed, retryAfterMillis, allowed ? -1 : 0);
+    }
+
+    public AcquireResult(boolean allowed, long retryAfterMillis, long remaining) {
+        this(allowed, retryAfterMillis, remaining, -1);
+    }
+
+    public AcquireResult(boolean allowed, long retryAfterMillis, long remaining, long resetMillis) {
+        this.allowed = allowed;
+        this.retryAfterMillis = retryAfterMillis;
+        this.remaining = remaining;
+        this.resetMillis = resetMillis;
+    }
+
+    public static AcquireResult allowed() { return ALLOWED; }
+    public static AcquireResult allowed(long remaining) {
+        return remaining >= 0 ? new AcquireResult(true, 0, remaining) : ALLOWED;
+    }
+    public static AcquireResult denied(long retryAfterMillis) {
+        return retryAfterMillis != 0 ? new AcquireResult(false, retryAfterMillis, 0) : DENIED;
+    }
+
+    public boolean isAllowed() { return allowed; }
+    public long getRetryAfterMillis() { return retryAfterMillis; }
+    public long getRemaining() { return remaining; }
+    public long getResetMillis() { return resetMillis; }
+}
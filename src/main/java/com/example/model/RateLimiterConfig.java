@@ -4,14 +4,22 @@ public class RateLimiterConfig {
     private int capacity;
     private int refillRate;
     private RateLimiterType type;
+    // Serve decisions from a locally leased block of tokens instead of one Redis call per acquire
+    private boolean leased;
 
     public RateLimiterConfig(int capacity, int refillRate, RateLimiterType type) {
+        this(capacity, refillRate, type, false);
+    }
+
+    public RateLimiterConfig(int capacity, int refillRate, RateLimiterType type, boolean leased) {
         this.capacity = capacity;
         this.refillRate = refillRate;
         this.type = type;
+        this.leased = leased;
     }
 
     public int getCapacity() { return capacity; }
     public int getRefillRate() { return refillRate; }
     public RateLimiterType getType() { return type; }
+    public boolean isLeased() { return leased; }
 }
\ No newline at end of file
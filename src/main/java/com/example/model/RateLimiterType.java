@@ -2,5 +2,8 @@ package com.example.model;
 
 public enum RateLimiterType {
     TOKEN_BUCKET,
-    LEAKY_BUCKET
-}
\ No newline at end of file
+    LEAKY_BUCKET,
+    SLIDING_WINDOW_LOG,
+    SLIDING_WINDOW_COUNTER,
+    GCRA
+}
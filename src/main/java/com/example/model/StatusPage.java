@@ -0,0 +1,17 @@
+package com.example.model;
+
+import java.util.Map;
+
+public class StatusPage {
+    private Map<String, RateLimiterStatus> statuses;
+    // Pass back to fetch the next page; "0" when the scan is complete
+    private String cursor;
+
+    public StatusPage(Map<String, RateLimiterStatus> statuses, String cursor) {
+        this.statuses = statuses;
+        this.cursor = cursor;
+    }
+
+    public Map<String, RateLimiterStatus> getStatuses() { return statuses; }
+    public String getCursor() { return cursor; }
+}
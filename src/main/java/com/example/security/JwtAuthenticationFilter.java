@@ -17,6 +17,9 @@ import jakarta.servlet.http.HttpServletResponse;
 import java.io.IOException;
 
 public class JwtAuthenticationFilter extends OncePerRequestFilter {
+    // Request attribute holding the verified JWT subject, read by the rate limit interceptor
+    public static final String SUBJECT_ATTRIBUTE = JwtAuthenticationFilter.class.getName() + ".subject";
+
     private final String jwtSecret = "yourSecretKey"; // Use env/config in production
 
     @Override
@@ -31,6 +34,7 @@ public class JwtAuthenticationFilter extends OncePerRequestFilter {
                         .parseClaimsJws(jwt);
                 String username = claimsJws.getBody().getSubject();
                 if (username != null) {
+                    request.setAttribute(SUBJECT_ATTRIBUTE, username);
                     UsernamePasswordAuthenticationToken authentication =
                             new UsernamePasswordAuthenticationToken(username, null, java.util.Collections.emptyList());
                     authentication.setDetails(new WebAuthenticationDetailsSource().buildDetails(request));
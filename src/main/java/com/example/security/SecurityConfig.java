@@ -12,6 +12,8 @@ public class SecurityConfig {
             .csrf().disable()
             .authorizeHttpRequests(authz -> authz
                 .requestMatchers("/admin/**").authenticated()
+                // Lists key names, which may be API keys or user ids
+                .requestMatchers("/actuator/hotkeys").authenticated()
                 .anyRequest().permitAll()
             )
             .addFilterBefore(new JwtAuthenticationFilter(), org.springframework.security.web.authentication.UsernamePasswordAuthenticationFilter.class);
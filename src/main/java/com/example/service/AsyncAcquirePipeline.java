@@ -0,0 +1,100 @@
+package com.example.service;
+
+import com.example.model.AcquireResult;
+import com.example.model.RateLimiterConfig;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Auto-pipelining for asynchronous acquires. Callers enqueue a request and get a
+ * future back straight away; a small fixed set of flusher threads drains whatever has
+ * queued up and hands it to the flush callback as one batch, which sends it as a single
+ * Redis pipeline. While one batch is on the wire the next one accumulates, so in-flight
+ * requests scale with batch size rather than with connections or request threads.
+ */
+class AsyncAcquirePipeline {
+
+    static final class Pending {
+        final String key;
+        final RateLimiterConfig config;
+        final int permits;
+        // System.nanoTime() when the caller asked, for the decision latency
+        final long startNanos;
+        final CompletableFuture<AcquireResult> future = new CompletableFuture<>();
+
+        Pending(String key, RateLimiterConfig config, int permits, long startNanos) {
+            this.key = key;
+            this.config = config;
+            this.permits = permits;
+            this.startNanos = startNanos;
+        }
+    }
+
+    private final BlockingQueue<Pending> queue;
+    private final int maxBatch;
+    private final Consumer<List<Pending>> flush;
+    private final Thread[] flushers;
+    private volatile boolean running = true;
+
+    AsyncAcquirePipeline(int flusherCount, int queueCapacity, int maxBatch, Consumer<List<Pending>> flush) {
+        this.queue = new ArrayBlockingQueue<>(queueCapacity);
+        this.maxBatch = maxBatch;
+        this.flush = flush;
+        this.flushers = new Thread[flusherCount];
+        for (int i = 0; i < flusherCount; i++) {
+            flushers[i] = new Thread(this::run, "rate-limiter-pipeline-" + i);
+            flushers[i].setDaemon(true);
+            flushers[i].start();
+        }
+    }
+
+    /** Queues the request; returns {@code false} when the queue is full and the caller must decide itself. */
+    boolean submit(Pending pending) {
+        return running && queue.offer(pending);
+    }
+
+    int pending() {
+        return queue.size();
+    }
+
+    /** Stops the flushers and returns requests that were still queued. */
+    List<Pending> shutdown() {
+        running = false;
+        for (Thread flusher : flushers) {
+            flusher.interrupt();
+        }
+        List<Pending> remaining = new ArrayList<>();
+        queue.drainTo(remaining);
+        return remaining;
+    }
+
+    private void run() {
+        List<Pending> batch = new ArrayList<>(maxBatch);
+        while (running) {
+            try {
+                Pending first = queue.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                queue.drainTo(batch, maxBatch - 1);
+                flush.accept(batch);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (RuntimeException ex) {
+                for (Pending pending : batch) {
+                    pending.future.completeExceptionally(ex);
+                }
+            } finally {
+                batch.clear();
+            }
+        }
+    }
+}
@@ -0,0 +1,155 @@
+package com.example.service;
+
+import com.example.model.RateLimiterConfig;
+import com.example.model.RateLimiterType;
+
+/**
+ * Bucket arithmetic over a single {@code long} word so the state can live in an
+ * atomic field or a primitive table and be updated with one CAS.
+ *
+ * <p>Both algorithms are stored as a timestamp in microseconds:
+ * <ul>
+ *   <li>Token bucket: the time at which the bucket was (or will be) empty. Tokens
+ *       available at {@code now} are {@code (now - emptyAt) / interval}, capped at capacity.</li>
+ *   <li>Leaky bucket: the time at which the queued water will have drained.
+ *       Water at {@code now} is {@code (drainedAt - now) / interval}.</li>
+ *   <li>GCRA: the theoretical arrival time (TAT). This is the same arithmetic as the
+ *       leaky bucket, so both share the code paths below.</li>
+ * </ul>
+ * A state of {@code 0} is a full token bucket or an empty leaky bucket, so a
+ * missing entry and an idle one behave the same.
+ */
+final class BucketMath {
+    static final long DENIED = Long.MIN_VALUE;
+    static final long MICROS_PER_MILLI = 1000;
+    static final long MICROS_PER_SECOND = 1_000_000;
+    // Interval used when refillRate is 0: the bucket effectively never refills
+    private static final long NO_REFILL_INTERVAL = 1L << 40;
+    private static final long MAX_BURST = 1L << 60;
+
+    private BucketMath() {
+    }
+
+    static long toMicros(long millis) {
+        return millis * MICROS_PER_MILLI;
+    }
+
+    /** Microseconds between two refilled (or leaked) tokens. */
+    static long interval(int refillRate) {
+        return refillRate > 0 ? Math.max(1, MICROS_PER_SECOND / refillRate) : NO_REFILL_INTERVAL;
+    }
+
+    /** Microseconds it takes to refill (or drain) {@code capacity} tokens. */
+    static long burst(int capacity, long interval) {
+        if (capacity <= 0) {
+            return 0;
+        }
+        return capacity > MAX_BURST / interval ? MAX_BURST : capacity * interval;
+    }
+
+    /** Returns the state after taking one token, or {@link #DENIED}. */
+    static long tryAcquire(long state, RateLimiterConfig config, long now) {
+        return tryAcquire(state, config, now, 1);
+    }
+
+    /** Returns the state after taking {@code permits} tokens at once, or {@link #DENIED}. */
+    static long tryAcquire(long state, RateLimiterConfig config, long now, int permits) {
+        long interval = interval(config.getRefillRate());
+        return tryAcquire(state, config.getType(), now, interval, burst(config.getCapacity(), interval), permits);
+    }
+
+    static long tryAcquire(long state, RateLimiterType type, long now, long interval, long burst) {
+        return tryAcquire(state, type, now, interval, burst, 1);
+    }
+
+    static long tryAcquire(long state, RateLimiterType type, long now, long interval, long burst, int permits) {
+        if (permits > burst / interval) {
+            return DENIED;
+        }
+        long next = booked(state, type, now, interval, burst, permits);
+        return waitFor(next, type, now, burst) == 0 ? next : DENIED;
+    }
+
+    /**
+     * Returns the state after booking {@code permits} tokens even if they have not refilled
+     * yet, as long as they will have within {@code maxWait}; {@link #DENIED} otherwise. The
+     * caller learns the wait from {@link #retryAfter} on the state it started from.
+     */
+    static long reserve(long state, RateLimiterType type, long now, long interval, long burst, int permits, long maxWait) {
+        if (permits > burst / interval) {
+            return DENIED;
+        }
+        long next = booked(state, type, now, interval, burst, permits);
+        return waitFor(next, type, now, burst) <= maxWait ? next : DENIED;
+    }
+
+    // State with permits more tokens taken; past now (or now + burst) when they have not refilled yet
+    private static long booked(long state, RateLimiterType type, long now, long interval, long burst, int permits) {
+        long floor = isArrivalTime(type) ? now : now - burst;
+        return Math.max(state, floor) + permits * interval;
+    }
+
+    private static long waitFor(long booked, RateLimiterType type, long now, long burst) {
+        return Math.max(0, isArrivalTime(type) ? booked - now - burst : booked - now);
+    }
+
+    static int available(long state, RateLimiterConfig config, long now) {
+        long interval = interval(config.getRefillRate());
+        return available(state, config.getType(), now, interval, burst(config.getCapacity(), interval));
+    }
+
+    static int available(long state, RateLimiterType type, long now, long interval, long burst) {
+        if (isArrivalTime(type)) {
+            long backlog = Math.max(0, state - now);
+            return (int) ((burst - Math.min(burst, backlog)) / interval);
+        }
+        long elapsed = now - Math.max(state, now - burst);
+        return (int) (Math.max(0, elapsed) / interval);
+    }
+
+    /** Microseconds until one more token is available; {@code 0} if one is available now. */
+    static long retryAfter(long state, RateLimiterConfig config, long now) {
+        return retryAfter(state, config, now, 1);
+    }
+
+    /** Microseconds until {@code permits} tokens are available together, or {@code -1} if they never will be. */
+    static long retryAfter(long state, RateLimiterConfig config, long now, int permits) {
+        long interval = interval(config.getRefillRate());
+        return retryAfter(state, config.getType(), now, interval, burst(config.getCapacity(), interval), permits);
+    }
+
+    static long retryAfter(long state, RateLimiterType type, long now, long interval, long burst, int permits) {
+        if (permits > burst / interval) {
+            return -1;
+        }
+        return waitFor(booked(state, type, now, interval, burst, permits), type, now, burst);
+    }
+
+    /** Whether the state is a drain/arrival time (leaky bucket, GCRA) rather than an empty-at time. */
+    static boolean isArrivalTime(RateLimiterType type) {
+        return type == RateLimiterType.LEAKY_BUCKET || type == RateLimiterType.GCRA;
+    }
+
+    /** Time at which the bucket will be back to full capacity; a bucket past it is the same as a missing one. */
+    static long fullAt(long state, RateLimiterConfig config) {
+        if (isArrivalTime(config.getType())) {
+            return state;
+        }
+        long interval = interval(config.getRefillRate());
+        return state + burst(config.getCapacity(), interval);
+    }
+
+    /** State holding exactly {@code tokens} available tokens at {@code now}. */
+    static long withAvailable(RateLimiterType type, int tokens, long now, long interval, long burst) {
+        if (isArrivalTime(type)) {
+            return now + burst - tokens * interval;
+        }
+        return now - tokens * interval;
+    }
+
+    /** Returns the state after giving back one token; a bucket that is already full stays unchanged. */
+    static long release(long state, RateLimiterType type, long now, long interval, long burst) {
+        long full = isArrivalTime(type) ? now : now - burst;
+        return state <= full ? state : Math.max(full, state - interval);
+    }
+}
@@ -0,0 +1,235 @@
+package com.example.service;
+
+import com.example.model.RateLimiterType;
+
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongUnaryOperator;
+
+/**
+ * Fixed-size bucket store for the single-word bucket types (token and leaky buckets, GCRA,
+ * sliding-window counter), with no per-key objects. A key is reduced to a 64-bit hash and
+ * each bucket takes two {@code long}s: the hash's upper 60 bits with the type and a clock
+ * bit, and the packed state from {@link BucketMath} or {@link SlidingWindowMath}. Memory
+ * is allocated once, about 21 bytes per key at the default fill, so tens of millions of
+ * keys cost no GC work beyond a few hundred large arrays.
+ *
+ * <p>The table is split into lock-striped segments, each an open-addressing table with
+ * linear probing and backward-shift deletion. When a segment is full, a clock sweep evicts
+ * the first bucket not used since it was added or since the hand last passed it. A state
+ * of {@code 0} is a full bucket, so a missing key and an evicted idle one read the same.
+ *
+ * <p>Two keys with the same 60-bit fingerprint share a bucket. At 50 million keys that is
+ * expected for about one pair in a thousand tables.
+ */
+final class BucketTable {
+    // Share of a segment's slots that may hold buckets before inserts evict
+    private static final double MAX_FILL = 0.75;
+    // At least this many segments, so threads rarely wait on the same lock
+    private static final int MIN_SEGMENTS = 256;
+    private static final int MIN_SEGMENT_SLOTS = 16;
+
+    private static final long FINGERPRINT_MASK = ~0xFL;
+    private static final int TYPE_SHIFT = 1;
+    private static final long TYPE_MASK = 0x7L << TYPE_SHIFT;
+    private static final long REFERENCED = 1L;
+
+    private final Segment[] segments;
+    private final LongAdder evictions = new LongAdder();
+
+    /** @param maxKeys buckets the table holds before it starts evicting */
+    BucketTable(int maxKeys) {
+        long slots = (long) Math.ceil(Math.max(1, maxKeys) / MAX_FILL);
+        int segmentSlots = Math.max(MIN_SEGMENT_SLOTS, Integer.highestOneBit((int) Math.min(1 << 30, slots / MIN_SEGMENTS)));
+        int count = (int) ((slots + segmentSlots - 1) / segmentSlots);
+        this.segments = new Segment[count];
+        for (int i = 0; i < count; i++) {
+            segments[i] = new Segment(segmentSlots);
+        }
+    }
+
+    static boolean supports(RateLimiterType type) {
+        return type != RateLimiterType.SLIDING_WINDOW_LOG;
+    }
+
+    /** The key's state, or {@code 0} (full) if it is not in the table or was stored under another type. */
+    long get(String key, RateLimiterType type) {
+        long hash = hash(key);
+        return segmentFor(hash).get(keyWord(hash, type));
+    }
+
+    /**
+     * Replaces the key's state with {@code update} applied to it, atomically with respect to
+     * every other call for the key. A result of {@link BucketMath#DENIED} leaves the state as
+     * it was. A key that is not in the table starts from {@code 0}; it is only added if the
+     * update changes that.
+     *
+     * @return whether the update was applied
+     */
+    boolean update(String key, RateLimiterType type, LongUnaryOperator update) {
+        long hash = hash(key);
+        return segmentFor(hash).update(keyWord(hash, type), update, evictions);
+    }
+
+    int size() {
+        int size = 0;
+        for (Segment segment : segments) {
+            size += segment.size();
+        }
+        return size;
+    }
+
+    long getEvictions() {
+        return evictions.sum();
+    }
+
+    private Segment segmentFor(long hash) {
+        return segments[(int) Long.remainderUnsigned(hash >>> 32, segments.length)];
+    }
+
+    private static long keyWord(long hash, RateLimiterType type) {
+        return (hash & FINGERPRINT_MASK) | ((long) (type.ordinal() + 1) << TYPE_SHIFT);
+    }
+
+    // FNV-1a over the UTF-16 code units, finished with the murmur3 mixer so every bit is used
+    static long hash(String key) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < key.length(); i++) {
+            h ^= key.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    /**
+     * One lock stripe. Slot {@code i} is {@code slots[2i]} (key word, 0 when empty) and
+     * {@code slots[2i + 1]} (state), so a probe touches one cache line for both.
+     */
+    private static final class Segment {
+        private final long[] slots;
+        private final int mask;
+        private final int maxSize;
+        private int size;
+        private int hand;
+
+        Segment(int capacity) {
+            this.slots = new long[2 * capacity];
+            this.mask = capacity - 1;
+            this.maxSize = Math.max(1, (int) (capacity * MAX_FILL));
+        }
+
+        synchronized long get(long keyWord) {
+            int slot = find(keyWord);
+            if (slot < 0 || !sameType(slots[2 * slot], keyWord)) {
+                return 0;
+            }
+            slots[2 * slot] |= REFERENCED;
+            return slots[2 * slot + 1];
+        }
+
+        synchronized boolean update(long keyWord, LongUnaryOperator update, LongAdder evictions) {
+            int slot = find(keyWord);
+            // A key whose type changed starts over from a full bucket
+            long current = slot >= 0 && sameType(slots[2 * slot], keyWord) ? slots[2 * slot + 1] : 0;
+            long next = update.applyAsLong(current);
+            if (next == BucketMath.DENIED) {
+                return false;
+            }
+            if (slot >= 0) {
+                slots[2 * slot] = keyWord | REFERENCED;
+                slots[2 * slot + 1] = next;
+                return true;
+            }
+            if (next == 0) {
+                return true;
+            }
+            if (size >= maxSize) {
+                evictOne();
+                evictions.increment();
+            }
+            // New keys start unreferenced, so one-off keys go before ones that have been seen twice
+            insert(keyWord, next);
+            return true;
+        }
+
+        synchronized int size() {
+            return size;
+        }
+
+        // Slot holding the key's fingerprint, or -1
+        private int find(long keyWord) {
+            long fingerprint = keyWord & FINGERPRINT_MASK;
+            for (int i = home(keyWord); ; i = (i + 1) & mask) {
+                long word = slots[2 * i];
+                if (word == 0) {
+                    return -1;
+                }
+                if ((word & FINGERPRINT_MASK) == fingerprint) {
+                    return i;
+                }
+            }
+        }
+
+        private void insert(long keyWord, long state) {
+            int i = home(keyWord);
+            while (slots[2 * i] != 0) {
+                i = (i + 1) & mask;
+            }
+            slots[2 * i] = keyWord;
+            slots[2 * i + 1] = state;
+            size++;
+        }
+
+        // Clock sweep: clears the referenced bit of each bucket it passes and evicts the first without one
+        private void evictOne() {
+            while (true) {
+                int i = hand;
+                hand = (hand + 1) & mask;
+                long word = slots[2 * i];
+                if (word == 0) {
+                    continue;
+                }
+                if ((word & REFERENCED) != 0) {
+                    slots[2 * i] = word & ~REFERENCED;
+                    continue;
+                }
+                delete(i);
+                return;
+            }
+        }
+
+        // Backward-shift deletion: moves later entries of the probe run up so no lookup hits a gap
+        private void delete(int hole) {
+            int j = hole;
+            while (true) {
+                j = (j + 1) & mask;
+                long word = slots[2 * j];
+                if (word == 0) {
+                    break;
+                }
+                int home = home(word);
+                boolean stays = hole <= j ? hole < home && home <= j : hole < home || home <= j;
+                if (!stays) {
+                    slots[2 * hole] = word;
+                    slots[2 * hole + 1] = slots[2 * j + 1];
+                    hole = j;
+                }
+            }
+            slots[2 * hole] = 0;
+            slots[2 * hole + 1] = 0;
+            size--;
+        }
+
+        private int home(long keyWord) {
+            return (int) (keyWord >>> 4) & mask;
+        }
+
+        private static boolean sameType(long word, long keyWord) {
+            return (word & TYPE_MASK) == (keyWord & TYPE_MASK);
+        }
+    }
+}
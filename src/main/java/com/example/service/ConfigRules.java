@@ -0,0 +1,214 @@
+package com.example.service;
+
+import com.example.model.RateLimiterConfig;
+import com.example.model.RateLimiterType;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Config rules keyed by pattern instead of by exact key. A pattern ending in {@code *}
+ * ({@code api:*}) matches by prefix; one with a {@code *} elsewhere
+ * ({@code tenant:*:premium}) is a glob where each {@code *} matches any run of characters.
+ *
+ * <p>Rules are compiled into a character trie on the literal text before each pattern's
+ * first {@code *}. A lookup walks the key once, one trie step per character, and allocates
+ * nothing. At each node on the way that holds globs, each glob is checked by finding its
+ * literal segments left to right, the last one anchored at the end of the key. The check
+ * never backtracks, but each segment search is O(key length * segment length). So a lookup
+ * costs O(key length) plus that much per glob on the path. Plain prefix rules cost
+ * nothing extra, however many there are. The most specific rule wins: the one with the
+ * longest literal prefix, then a glob over a plain prefix, then the longer glob.
+ *
+ * <p>The trie is immutable and replaced on every change (copy-on-write), so lookups never
+ * lock. Each trie carries a memo of resolved keys capped at {@code memoSize}; once full,
+ * each new key evicts an arbitrary older one.
+ */
+final class ConfigRules {
+    static final int DEFAULT_MEMO_SIZE = 100_000;
+
+    // Memoized "no rule matches"; ConcurrentHashMap has no null values
+    private static final RateLimiterConfig NO_MATCH = new RateLimiterConfig(0, 0, RateLimiterType.TOKEN_BUCKET);
+
+    private final Map<String, RateLimiterConfig> patterns = new LinkedHashMap<>();
+    private final int memoSize;
+    private volatile Snapshot snapshot;
+
+    ConfigRules(int memoSize) {
+        this.memoSize = memoSize;
+        this.snapshot = new Snapshot(Node.EMPTY, memoSize);
+    }
+
+    static boolean isPattern(String key) {
+        return key.indexOf('*') >= 0;
+    }
+
+    synchronized void put(String pattern, RateLimiterConfig config) {
+        patterns.put(pattern, config);
+        snapshot = new Snapshot(compile(patterns), memoSize);
+    }
+
+    synchronized boolean remove(String pattern) {
+        if (patterns.remove(pattern) == null) {
+            return false;
+        }
+        snapshot = new Snapshot(compile(patterns), memoSize);
+        return true;
+    }
+
+    synchronized Map<String, RateLimiterConfig> getPatterns() {
+        return new LinkedHashMap<>(patterns);
+    }
+
+    /** The config of the most specific rule matching {@code key}, or null if none does. */
+    RateLimiterConfig resolve(String key) {
+        Snapshot current = snapshot;
+        RateLimiterConfig config = current.memo.get(key);
+        if (config == null) {
+            config = current.root.resolve(key);
+            if (config == null) {
+                config = NO_MATCH;
+            }
+            if (current.memo.size() >= memoSize) {
+                Iterator<String> victims = current.memo.keySet().iterator();
+                if (victims.hasNext()) {
+                    victims.next();
+                    victims.remove();
+                }
+            }
+            current.memo.put(key, config);
+        }
+        return config == NO_MATCH ? null : config;
+    }
+
+    private static Node compile(Map<String, RateLimiterConfig> patterns) {
+        Builder root = new Builder();
+        for (Map.Entry<String, RateLimiterConfig> entry : patterns.entrySet()) {
+            String pattern = entry.getKey();
+            int star = pattern.indexOf('*');
+            Builder node = root;
+            for (int i = 0; i < star; i++) {
+                node = node.children.computeIfAbsent(pattern.charAt(i), c -> new Builder());
+            }
+            String rest = pattern.substring(star);
+            if (rest.equals("*")) {
+                node.prefixRule = entry.getValue();
+            } else {
+                node.globs.add(new Glob(rest, entry.getValue()));
+            }
+        }
+        return root.build();
+    }
+
+    private static final class Snapshot {
+        final Node root;
+        final ConcurrentHashMap<String, RateLimiterConfig> memo;
+
+        Snapshot(Node root, int memoSize) {
+            this.root = root;
+            this.memo = new ConcurrentHashMap<>(Math.min(memoSize, 1024));
+        }
+    }
+
+    private static final class Builder {
+        final TreeMap<Character, Builder> children = new TreeMap<>();
+        final List<Glob> globs = new ArrayList<>();
+        RateLimiterConfig prefixRule;
+
+        Node build() {
+            char[] labels = new char[children.size()];
+            Node[] nodes = new Node[children.size()];
+            int i = 0;
+            for (Map.Entry<Character, Builder> child : children.entrySet()) {
+                labels[i] = child.getKey();
+                nodes[i++] = child.getValue().build();
+            }
+            Glob[] sorted = globs.toArray(new Glob[0]);
+            Arrays.sort(sorted, Comparator.comparingInt((Glob g) -> g.pattern.length()).reversed());
+            return new Node(labels, nodes, sorted, prefixRule);
+        }
+    }
+
+    private static final class Node {
+        static final Node EMPTY = new Node(new char[0], new Node[0], new Glob[0], null);
+
+        // Sorted, so a child is found by binary search
+        final char[] labels;
+        final Node[] children;
+        final Glob[] globs;
+        final RateLimiterConfig prefixRule;
+
+        Node(char[] labels, Node[] children, Glob[] globs, RateLimiterConfig prefixRule) {
+            this.labels = labels;
+            this.children = children;
+            this.globs = globs;
+            this.prefixRule = prefixRule;
+        }
+
+        RateLimiterConfig resolve(String key) {
+            RateLimiterConfig best = null;
+            Node node = this;
+            for (int depth = 0; ; depth++) {
+                RateLimiterConfig match = node.match(key, depth);
+                if (match != null) {
+                    best = match;
+                }
+                if (depth == key.length()) {
+                    return best;
+                }
+                int child = Arrays.binarySearch(node.labels, key.charAt(depth));
+                if (child < 0) {
+                    return best;
+                }
+                node = node.children[child];
+            }
+        }
+
+        private RateLimiterConfig match(String key, int from) {
+            for (Glob glob : globs) {
+                if (glob.matches(key, from)) {
+                    return glob.config;
+                }
+            }
+            return prefixRule;
+        }
+    }
+
+    private static final class Glob {
+        // Starts with '*'; the literal text before it is the trie path
+        final String pattern;
+        final RateLimiterConfig config;
+        // The literal text between the stars; the last one is "" when the pattern ends with '*'
+        private final String[] segments;
+
+        Glob(String pattern, RateLimiterConfig config) {
+            this.pattern = pattern;
+            this.config = config;
+            String[] split = pattern.split("\\*", -1);
+            this.segments = Arrays.copyOfRange(split, 1, split.length);
+        }
+
+        // Wildcard match of key[from..]. With '*' the only wildcard, taking each inner segment at
+        // its leftmost occurrence never rules out a match, so no earlier choice is revisited
+        boolean matches(String key, int from) {
+            int k = from;
+            int last = segments.length - 1;
+            for (int i = 0; i < last; i++) {
+                int found = key.indexOf(segments[i], k);
+                if (found < 0) {
+                    return false;
+                }
+                k = found + segments[i].length();
+            }
+            String tail = segments[last];
+            return key.length() - tail.length() >= k && key.endsWith(tail);
+        }
+    }
+}
@@ -0,0 +1,89 @@
+package com.example.service;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Remembers keys that Redis has just denied, until the earliest time a request could
+ * succeed again. Requests for an exhausted key are rejected from memory instead of each
+ * paying a Redis round trip that is certain to say no.
+ *
+ * <p>Only denials are cached, and only until the reported retry-after, so an entry can
+ * never reject a request Redis would have admitted under an unchanged config. A bucket
+ * that never refills is denied for {@link #NEVER_REFILLS_MS} at a time. Bounded: when
+ * full, expired entries are swept and new denials are skipped if that frees nothing.
+ */
+class DenyCache {
+    static final int DEFAULT_MAX_ENTRIES = 10_000;
+    // How long a denial by a bucket that never refills is held before Redis is asked again
+    static final long NEVER_REFILLS_MS = 1000;
+
+    // Key -> epoch millis at which the key may admit again, negated when the bucket never refills
+    private final Map<String, Long> deniedUntil = new ConcurrentHashMap<>();
+    private final AtomicBoolean sweeping = new AtomicBoolean();
+    private final int maxEntries;
+
+    DenyCache(int maxEntries) {
+        this.maxEntries = maxEntries;
+    }
+
+    /**
+     * Millis left until {@code key} may admit again, {@code -1} if its bucket never refills,
+     * or 0 if it is not known to be exhausted.
+     */
+    long deniedFor(String key, long nowMillis) {
+        Long until = deniedUntil.get(key);
+        if (until == null) {
+            return 0;
+        }
+        if (Math.abs(until) <= nowMillis) {
+            deniedUntil.remove(key, until);
+            return 0;
+        }
+        return until < 0 ? -1 : until - nowMillis;
+    }
+
+    /** @param retryAfterMillis as reported with the denial: {@code -1} never refills, 0 unknown (not cached) */
+    void deny(String key, long nowMillis, long retryAfterMillis) {
+        if (retryAfterMillis == 0) {
+            return;
+        }
+        long until = retryAfterMillis < 0 ? -(nowMillis + NEVER_REFILLS_MS) : nowMillis + retryAfterMillis;
+        if (deniedUntil.size() >= maxEntries && !deniedUntil.containsKey(key)) {
+            sweep(nowMillis);
+            if (deniedUntil.size() >= maxEntries) {
+                return;
+            }
+        }
+        deniedUntil.merge(key, until, (previous, next) -> previous < 0 || next < 0 ? next : Math.max(previous, next));
+    }
+
+    void invalidate(String key) {
+        deniedUntil.remove(key);
+    }
+
+    void clear() {
+        deniedUntil.clear();
+    }
+
+    int size() {
+        return deniedUntil.size();
+    }
+
+    private void sweep(long nowMillis) {
+        if (!sweeping.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            for (Iterator<Long> it = deniedUntil.values().iterator(); it.hasNext(); ) {
+                if (Math.abs(it.next()) <= nowMillis) {
+                    it.remove();
+                }
+            }
+        } finally {
+            sweeping.set(false);
+        }
+    }
+}
@@ -0,0 +1,118 @@
+package com.example.service;
+
+import com.example.model.RateLimiterConfig;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Tokens this node granted from its in-memory buckets while Redis could not be asked,
+ * kept as one running total per key so they can be debited from the shared Redis buckets
+ * once Redis is back. Without that, every node's fallback usage would be forgotten and
+ * the cluster would admit a fresh burst on recovery.
+ *
+ * <p>A total shrinks at the key's refill rate from its last grant when it is drained, since
+ * tokens taken long enough ago would have refilled anyway. Bounded: when full, grants for
+ * keys not already tracked are dropped and counted. {@link PeerSync} keeps the grants it
+ * has not yet sent to its peers in one as well.
+ */
+class FallbackDeltas {
+    static final int DEFAULT_MAX_KEYS = 100_000;
+
+    /** A key's total as drained, ready to be debited; put back with {@link #restore} if that fails. */
+    static final class Delta {
+        final String key;
+        final RateLimiterConfig config;
+        final long permits;
+        final long lastMillis;
+
+        Delta(String key, RateLimiterConfig config, long permits, long lastMillis) {
+            this.key = key;
+            this.config = config;
+            this.permits = permits;
+            this.lastMillis = lastMillis;
+        }
+
+        /** What is still owed at {@code nowMillis}: the total less what has refilled since the last grant. */
+        long outstanding(long nowMillis) {
+            long refilled = Math.max(0, nowMillis - lastMillis) * config.getRefillRate() / 1000;
+            return Math.max(0, Math.min(config.getCapacity(), permits - refilled));
+        }
+    }
+
+    private final Map<String, Delta> deltas = new ConcurrentHashMap<>();
+    private final LongAdder pendingPermits = new LongAdder();
+    private final LongAdder droppedPermits = new LongAdder();
+    private final int maxKeys;
+
+    FallbackDeltas(int maxKeys) {
+        this.maxKeys = maxKeys;
+    }
+
+    void add(String key, RateLimiterConfig config, int permits, long nowMillis) {
+        if (deltas.size() >= maxKeys && !deltas.containsKey(key)) {
+            droppedPermits.add(permits);
+            return;
+        }
+        // compute() serializes with drain's remove, so no grant is added to a total already handed out
+        deltas.compute(key, (k, current) -> current == null
+                ? new Delta(k, config, permits, nowMillis)
+                : new Delta(k, config, current.permits + permits, Math.max(current.lastMillis, nowMillis)));
+        pendingPermits.add(permits);
+    }
+
+    /** Removes and returns up to {@code max} totals, skipping the ones that have fully refilled. */
+    List<Delta> drain(int max, long nowMillis) {
+        List<Delta> drained = new ArrayList<>(Math.min(max, deltas.size()));
+        for (Iterator<String> it = deltas.keySet().iterator(); it.hasNext() && drained.size() < max; ) {
+            Delta delta = deltas.remove(it.next());
+            if (delta == null) {
+                continue;
+            }
+            pendingPermits.add(-delta.permits);
+            if (delta.outstanding(nowMillis) > 0) {
+                drained.add(delta);
+            }
+        }
+        return drained;
+    }
+
+    /** Puts back totals that could not be debited, merging with grants made since they were drained. */
+    void restore(List<Delta> drained) {
+        for (Delta delta : drained) {
+            if (deltas.size() >= maxKeys && !deltas.containsKey(delta.key)) {
+                droppedPermits.add(delta.permits);
+                continue;
+            }
+            deltas.merge(delta.key, delta, (current, restored) -> new Delta(current.key, current.config,
+                    current.permits + restored.permits, Math.max(current.lastMillis, restored.lastMillis)));
+            pendingPermits.add(delta.permits);
+        }
+    }
+
+    /** The key's running total, or 0 if none is pending. */
+    long pending(String key) {
+        Delta delta = deltas.get(key);
+        return delta == null ? 0 : delta.permits;
+    }
+
+    boolean isEmpty() {
+        return deltas.isEmpty();
+    }
+
+    int size() {
+        return deltas.size();
+    }
+
+    long pendingPermits() {
+        return pendingPermits.sum();
+    }
+
+    long droppedPermits() {
+        return droppedPermits.sum();
+    }
+}
@@ -0,0 +1,175 @@
+package com.example.service;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Approximate top-K keys by count, in fixed memory however many keys there are. Counts
+ * live in a count-min sketch: {@code depth} rows of {@code width} counters, each key adding
+ * to one counter per row, and a key's estimate is the smallest of its counters. Collisions
+ * only ever add, so an estimate is never below the true count.
+ *
+ * <p>The K keys with the highest estimates are remembered by name. Counting a key that is
+ * already among them is lock-free; a key is only considered for admission once its estimate
+ * passes the smallest estimate among them. {@link #decay} halves every counter, so the top
+ * keys follow recent traffic rather than all-time totals.
+ *
+ * <p>On a hot path, {@link #offer} counts only one occurrence in {@code sampleEvery}, picked at
+ * random, with a weight of {@code sampleEvery}. Estimates then stay close to the true counts for
+ * busy keys, which are the ones that matter here, at a fraction of the atomic adds.
+ */
+class HotKeys {
+    static final int DEFAULT_K = 10;
+    static final int DEFAULT_WIDTH = 4096;
+    static final int DEFAULT_DEPTH = 4;
+    static final int DEFAULT_SAMPLE_EVERY = 16;
+    // Ranks read by gauges are re-sorted at most this often, not once per gauge
+    private static final long RANKS_MAX_AGE_NANOS = 1_000_000_000L;
+
+    private final int k;
+    private final int width;
+    private final int depth;
+    private final int sampleEvery;
+    private final AtomicLongArray counters;
+    private final Set<String> top = ConcurrentHashMap.newKeySet();
+    // Smallest estimate among the top keys when there are K of them, else 0; may lag behind the counters
+    private volatile long threshold;
+    // Estimates of the top keys, highest first, as of rankedAtNanos
+    private volatile long[] ranked = new long[0];
+    private volatile long rankedAtNanos;
+
+    HotKeys(int k, int width, int depth, int sampleEvery) {
+        if (Integer.bitCount(width) != 1) {
+            throw new IllegalArgumentException("width must be a power of two, got " + width);
+        }
+        if (sampleEvery < 1) {
+            throw new IllegalArgumentException("sampleEvery must be at least 1, got " + sampleEvery);
+        }
+        this.k = k;
+        this.width = width;
+        this.depth = depth;
+        this.sampleEvery = sampleEvery;
+        this.counters = new AtomicLongArray(width * depth);
+        this.rankedAtNanos = System.nanoTime() - RANKS_MAX_AGE_NANOS - 1;
+    }
+
+    HotKeys(int k, int width, int depth) {
+        this(k, width, depth, 1);
+    }
+
+    HotKeys() {
+        this(DEFAULT_K, DEFAULT_WIDTH, DEFAULT_DEPTH, DEFAULT_SAMPLE_EVERY);
+    }
+
+    /** Counts one occurrence of {@code key}. */
+    void add(String key) {
+        add(key, 1);
+    }
+
+    /** Counts one occurrence of {@code key} in {@code sampleEvery}, weighted to make up for the rest. */
+    void offer(String key) {
+        if (sampleEvery == 1 || ThreadLocalRandom.current().nextInt(sampleEvery) == 0) {
+            add(key, sampleEvery);
+        }
+    }
+
+    private void add(String key, int weight) {
+        long hash = BucketTable.hash(key);
+        long estimate = Long.MAX_VALUE;
+        for (int row = 0; row < depth; row++) {
+            estimate = Math.min(estimate, counters.addAndGet(cell(hash, row), weight));
+        }
+        if (estimate > threshold && !top.contains(key)) {
+            admit(key, estimate);
+        }
+    }
+
+    /** Estimated count of {@code key}; never below the true count since the last decays. */
+    long estimate(String key) {
+        long hash = BucketTable.hash(key);
+        long estimate = Long.MAX_VALUE;
+        for (int row = 0; row < depth; row++) {
+            estimate = Math.min(estimate, counters.get(cell(hash, row)));
+        }
+        return estimate;
+    }
+
+    /** The top keys and their estimates, highest first. */
+    Map<String, Long> top() {
+        List<Map.Entry<String, Long>> entries = new ArrayList<>(k);
+        for (String key : top) {
+            entries.add(Map.entry(key, estimate(key)));
+        }
+        entries.sort(Map.Entry.<String, Long>comparingByValue().reversed());
+        Map<String, Long> sorted = new LinkedHashMap<>();
+        for (Map.Entry<String, Long> entry : entries) {
+            sorted.put(entry.getKey(), entry.getValue());
+        }
+        return sorted;
+    }
+
+    /**
+     * Estimate of the key at {@code rank} (1 is the highest), or 0 if there are fewer top keys.
+     * Ranks are sorted once and shared for up to a second, so reading all of them costs one sort.
+     */
+    long estimateAtRank(int rank) {
+        long now = System.nanoTime();
+        long[] ranks = ranked;
+        if (now - rankedAtNanos > RANKS_MAX_AGE_NANOS) {
+            ranks = top.stream().mapToLong(this::estimate).sorted().toArray();
+            for (int i = 0, j = ranks.length - 1; i < j; i++, j--) {
+                long swap = ranks[i];
+                ranks[i] = ranks[j];
+                ranks[j] = swap;
+            }
+            ranked = ranks;
+            rankedAtNanos = now;
+        }
+        return rank <= ranks.length ? ranks[rank - 1] : 0;
+    }
+
+    /** Halves every counter; keys that decay to nothing leave the top. */
+    void decay() {
+        for (int i = 0; i < counters.length(); i++) {
+            counters.getAndUpdate(i, count -> count >>> 1);
+        }
+        synchronized (this) {
+            top.removeIf(key -> estimate(key) == 0);
+            updateThreshold();
+        }
+    }
+
+    // Row r uses h1 + r * h2 from the two halves of one 64-bit hash, as good as independent hashes here
+    private int cell(long hash, int row) {
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32);
+        return row * width + ((h1 + row * h2) & (width - 1));
+    }
+
+    private synchronized void admit(String key, long estimate) {
+        if (top.contains(key)) {
+            return;
+        }
+        if (top.size() >= k) {
+            String smallest = top.stream().min(Comparator.comparingLong(this::estimate)).orElseThrow();
+            if (estimate(smallest) >= estimate) {
+                updateThreshold();
+                return;
+            }
+            top.remove(smallest);
+        }
+        top.add(key);
+        updateThreshold();
+    }
+
+    private void updateThreshold() {
+        threshold = top.size() < k ? 0 : top.stream().mapToLong(this::estimate).min().orElse(0);
+    }
+}
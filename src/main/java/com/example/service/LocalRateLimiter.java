@@ -0,0 +1,954 @@
+package com.example.service;
+
+import com.example.model.RateLimiterConfig;
+import com.example.model.RateLimiterType;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free, in-process rate limiter. Each key's bucket is a single {@code long}
+ * updated with CAS (see {@link BucketMath}), refilling at sub-millisecond precision.
+ * Sliding-window counters are packed the same way ({@link SlidingWindowMath}); the
+ * sliding-window log keeps a ring buffer of timestamps per key.
+ *
+ * <p>Keys whose CAS loop keeps losing under contention are promoted to a striped
+ * bucket that splits capacity and rate across several words, so threads mostly
+ * update their own stripe. Usable on its own or as the Redis fallback.
+ *
+ * <p>The store is bounded: buckets that have refilled completely are dropped,
+ * since a full bucket is indistinguishable from a missing one. When the number of
+ * buckets exceeds {@code maxBuckets}, the buckets closest to full are evicted first.
+ * That sweep runs on an eviction executor, not on the acquiring thread, so the store
+ * may briefly hold more than {@code maxBuckets} while it runs.
+ *
+ * <p>Optionally, every type but the sliding-window log is kept in a {@link BucketTable}
+ * instead: a preallocated primitive table with no per-key objects, sized for
+ * {@code maxBuckets} and evicting by clock sweep, for nodes that track tens of millions
+ * of keys. Hot keys are not striped there.
+ */
+public class LocalRateLimiter {
+    // CAS retries in a single acquire before a key is considered hot
+    static final int HOT_KEY_RETRIES = 8;
+
+    // Default bound on tracked buckets; roughly 150 bytes of heap each with short keys
+    public static final int DEFAULT_MAX_BUCKETS = 100_000;
+    // An over-budget sweep evicts down to this fraction of maxBuckets so sweeps stay rare
+    private static final double EVICT_TO_FRACTION = 0.9;
+
+    private final Map<String, LocalBucket> buckets = new ConcurrentHashMap<>();
+    // Holds the single-word bucket types when enabled; null otherwise
+    private final BucketTable table;
+    private final int stripes;
+    private final int maxBuckets;
+    private final Executor evictor;
+    private final AtomicBoolean evicting = new AtomicBoolean();
+    private final LongAdder idleEvictions = new LongAdder();
+    private final LongAdder capacityEvictions = new LongAdder();
+
+    public LocalRateLimiter() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * @param stripes number of stripes for hot keys; {@code 1} disables striping
+     */
+    public LocalRateLimiter(int stripes) {
+        this(stripes, DEFAULT_MAX_BUCKETS);
+    }
+
+    /**
+     * @param stripes    number of stripes for hot keys; {@code 1} disables striping
+     * @param maxBuckets upper bound on buckets kept in memory
+     */
+    public LocalRateLimiter(int stripes, int maxBuckets) {
+        this(stripes, maxBuckets, false);
+    }
+
+    /**
+     * @param stripes    number of stripes for hot keys; {@code 1} disables striping
+     * @param maxBuckets upper bound on buckets kept in memory
+     * @param table      keep every type but the sliding-window log in a preallocated {@link BucketTable}
+     */
+    public LocalRateLimiter(int stripes, int maxBuckets, boolean table) {
+        this(stripes, maxBuckets, table, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * @param stripes    number of stripes for hot keys; {@code 1} disables striping
+     * @param maxBuckets upper bound on buckets kept in memory
+     * @param table      keep every type but the sliding-window log in a preallocated {@link BucketTable}
+     * @param evictor    runs the sweep once the store is over budget
+     */
+    public LocalRateLimiter(int stripes, int maxBuckets, boolean table, Executor evictor) {
+        this.stripes = Math.max(1, stripes);
+        this.maxBuckets = Math.max(1, maxBuckets);
+        this.table = table ? new BucketTable(this.maxBuckets) : null;
+        this.evictor = evictor;
+    }
+
+    public boolean tryAcquire(String key, RateLimiterConfig config) {
+        return tryAcquire(key, config, System.currentTimeMillis());
+    }
+
+    public boolean tryAcquire(String key, RateLimiterConfig config, long nowMillis) {
+        return tryAcquire(key, config, nowMillis, 1);
+    }
+
+    /** Takes {@code permits} tokens at once, or none if fewer than that are available. */
+    public boolean tryAcquire(String key, RateLimiterConfig config, long nowMillis, int permits) {
+        LocalBucket bucket = bucketFor(key, config);
+        boolean allowed = bucket.tryAcquire(config, BucketMath.toMicros(nowMillis), permits);
+        afterAcquire(key, bucket, config, nowMillis);
+        return allowed;
+    }
+
+    /**
+     * Books {@code permits} tokens that may not have refilled yet, so later callers queue
+     * behind this one. Only token buckets, leaky buckets and GCRA can book ahead; the
+     * sliding windows admit or deny as {@link #tryAcquire} does.
+     *
+     * @return milliseconds until the booked tokens are available ({@code 0}: now), or
+     *         {@code -1} if that would take longer than {@code maxWaitMillis} and nothing was booked
+     */
+    public long reserve(String key, RateLimiterConfig config, long nowMillis, int permits, long maxWaitMillis) {
+        LocalBucket bucket = bucketFor(key, config);
+        long micros = bucket.reserve(config, BucketMath.toMicros(nowMillis), permits, BucketMath.toMicros(maxWaitMillis));
+        afterAcquire(key, bucket, config, nowMillis);
+        return micros < 0 ? -1 : toMillisCeil(micros);
+    }
+
+    private LocalBucket bucketFor(String key, RateLimiterConfig config) {
+        if (inTable(config)) {
+            return new TableBucket(table, key, config);
+        }
+        LocalBucket bucket = buckets.get(key);
+        if (bucket == null) {
+            bucket = buckets.computeIfAbsent(key, k -> newBucket(config));
+        } else if (!bucket.accepts(config.getType())) {
+            // The key's algorithm changed; start over with a fresh bucket of the new kind
+            LocalBucket replacement = newBucket(config);
+            bucket = buckets.replace(key, bucket, replacement) ? replacement : buckets.computeIfAbsent(key, k -> replacement);
+        }
+        return bucket;
+    }
+
+    // Evict after the acquire so a new bucket is not itself mistaken for an idle one
+    private void afterAcquire(String key, LocalBucket bucket, RateLimiterConfig config, long nowMillis) {
+        if (buckets.size() > maxBuckets && evicting.compareAndSet(false, true)) {
+            try {
+                evictor.execute(() -> evictOverBudget(nowMillis));
+            } catch (RejectedExecutionException ex) {
+                // Shutting down; the next acquire over budget tries again
+                evicting.set(false);
+            }
+        }
+        if (bucket.isHot() && stripes > 1) {
+            promote(key, bucket, config, nowMillis);
+        }
+    }
+
+    /**
+     * Takes one token from every key, or from none of them. Keys are tried in order; when
+     * one denies, the tokens already taken from the keys before it are given back.
+     *
+     * @return the index of the key that denied, or {@code -1} if every key admitted
+     */
+    public int tryAcquireAll(List<String> keys, List<RateLimiterConfig> configs, long nowMillis) {
+        for (int i = 0; i < keys.size(); i++) {
+            if (!tryAcquire(keys.get(i), configs.get(i), nowMillis)) {
+                for (int j = i - 1; j >= 0; j--) {
+                    release(keys.get(j), configs.get(j), nowMillis);
+                }
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /** Gives back one token taken from the key. */
+    public void release(String key, RateLimiterConfig config, long nowMillis) {
+        LocalBucket bucket = lookup(key, config);
+        if (bucket != null && bucket.accepts(config.getType())) {
+            bucket.release(config, BucketMath.toMicros(nowMillis));
+        }
+    }
+
+    /**
+     * Takes up to {@code permits} tokens, as many as the bucket holds, so usage reported
+     * from elsewhere never takes it below empty.
+     *
+     * @return the tokens taken
+     */
+    public int debit(String key, RateLimiterConfig config, long nowMillis, int permits) {
+        // Another caller may take tokens between the read and the take; retry with what is left
+        for (int take = Math.min(permits, available(key, config, nowMillis)); take > 0;
+             take = Math.min(take - 1, available(key, config, nowMillis))) {
+            if (tryAcquire(key, config, nowMillis, take)) {
+                return take;
+            }
+        }
+        return 0;
+    }
+
+    /** Tokens currently available for the key; a key never seen has a full bucket. */
+    public int available(String key, RateLimiterConfig config, long nowMillis) {
+        LocalBucket bucket = lookup(key, config);
+        if (bucket == null || !bucket.accepts(config.getType())) {
+            return Math.max(0, config.getCapacity());
+        }
+        return bucket.available(config, BucketMath.toMicros(nowMillis));
+    }
+
+    /**
+     * Milliseconds until the key can be admitted again; {@code 0} when it can be admitted now,
+     * {@code -1} when it never will be.
+     */
+    public long retryAfterMillis(String key, RateLimiterConfig config, long nowMillis) {
+        return retryAfterMillis(key, config, nowMillis, 1);
+    }
+
+    /**
+     * Milliseconds until {@code permits} tokens are available together; {@code 0} when they
+     * are available now or the wait is unknown for this kind of bucket, {@code -1} when they
+     * never will be (more permits than the capacity, or a bucket that does not refill).
+     */
+    public long retryAfterMillis(String key, RateLimiterConfig config, long nowMillis, int permits) {
+        if (permits > config.getCapacity()) {
+            return -1;
+        }
+        LocalBucket bucket = lookup(key, config);
+        if (bucket == null || !bucket.accepts(config.getType())) {
+            return 0;
+        }
+        long micros = bucket.retryAfter(config, BucketMath.toMicros(nowMillis), permits);
+        // Without refill BucketMath waits out a very long interval instead
+        return micros < 0 || micros > 0 && config.getRefillRate() <= 0 ? -1 : toMillisCeil(micros);
+    }
+
+    /**
+     * Milliseconds until the key's bucket is full again; {@code 0} when it already is,
+     * {@code -1} when it never will be.
+     */
+    public long resetMillis(String key, RateLimiterConfig config, long nowMillis) {
+        LocalBucket bucket = lookup(key, config);
+        if (bucket == null || !bucket.accepts(config.getType())) {
+            return 0;
+        }
+        long now = BucketMath.toMicros(nowMillis);
+        long micros = bucket.fullAt(now) - now;
+        return micros > 0 && config.getRefillRate() <= 0 ? -1 : toMillisCeil(micros);
+    }
+
+    // The key's bucket if it has one, without creating it
+    private LocalBucket lookup(String key, RateLimiterConfig config) {
+        return inTable(config) ? new TableBucket(table, key, config) : buckets.get(key);
+    }
+
+    private boolean inTable(RateLimiterConfig config) {
+        return table != null && BucketTable.supports(config.getType());
+    }
+
+    private static long toMillisCeil(long micros) {
+        return micros <= 0 ? 0 : (micros + BucketMath.MICROS_PER_MILLI - 1) / BucketMath.MICROS_PER_MILLI;
+    }
+
+    public int size() {
+        return table == null ? buckets.size() : buckets.size() + table.size();
+    }
+
+    public int getMaxBuckets() {
+        return maxBuckets;
+    }
+
+    /** Buckets dropped because they had fully refilled. */
+    public long getIdleEvictions() {
+        return idleEvictions.sum();
+    }
+
+    /** Buckets dropped before refilling because the store was over budget. */
+    public long getCapacityEvictions() {
+        return table == null ? capacityEvictions.sum() : capacityEvictions.sum() + table.getEvictions();
+    }
+
+    /**
+     * Drops every bucket that has refilled completely. Meant to be called periodically.
+     * A {@link BucketTable} is not swept; it only evicts when full.
+     */
+    public void evictIdle(long nowMillis) {
+        long now = BucketMath.toMicros(nowMillis);
+        for (Map.Entry<String, LocalBucket> entry : buckets.entrySet()) {
+            if (entry.getValue().fullAt(now) <= now && buckets.remove(entry.getKey(), entry.getValue())) {
+                idleEvictions.increment();
+            }
+        }
+    }
+
+    private static LocalBucket newBucket(RateLimiterConfig config) {
+        switch (config.getType()) {
+            case SLIDING_WINDOW_LOG:
+                return new SlidingLogBucket(config);
+            case SLIDING_WINDOW_COUNTER:
+                return new SlidingCounterBucket(config);
+            default:
+                return new AtomicBucket(config);
+        }
+    }
+
+    // Drops full buckets, then the ones nearest to full, until the store is back under budget.
+    // Runs on the evictor, one sweep at a time
+    private void evictOverBudget(long nowMillis) {
+        try {
+            evictIdle(nowMillis);
+            int target = (int) (maxBuckets * EVICT_TO_FRACTION);
+            int excess = buckets.size() - target;
+            if (excess <= 0) {
+                return;
+            }
+            List<Map.Entry<String, LocalBucket>> entries = new ArrayList<>(buckets.entrySet());
+            long now = BucketMath.toMicros(nowMillis);
+            long[] fullAt = new long[entries.size()];
+            for (int i = 0; i < fullAt.length; i++) {
+                fullAt[i] = entries.get(i).getValue().fullAt(now);
+            }
+            long[] sorted = fullAt.clone();
+            Arrays.sort(sorted);
+            long cutoff = sorted[Math.min(excess, sorted.length) - 1];
+            for (int i = 0; i < fullAt.length && excess > 0; i++) {
+                Map.Entry<String, LocalBucket> entry = entries.get(i);
+                if (fullAt[i] <= cutoff && buckets.remove(entry.getKey(), entry.getValue())) {
+                    capacityEvictions.increment();
+                    excess--;
+                }
+            }
+        } finally {
+            evicting.set(false);
+        }
+    }
+
+    boolean isStriped(String key) {
+        return buckets.get(key) instanceof StripedBucket;
+    }
+
+    /** Stripes the key's bucket now rather than once it turns hot. */
+    void promote(String key, RateLimiterConfig config, long nowMillis) {
+        LocalBucket bucket = bucketFor(key, config);
+        if (bucket instanceof AtomicBucket) {
+            promote(key, bucket, config, nowMillis);
+        }
+    }
+
+    // A few in-flight callers may still finish on the old bucket; the overshoot is bounded by thread count
+    private void promote(String key, LocalBucket bucket, RateLimiterConfig config, long nowMillis) {
+        long now = BucketMath.toMicros(nowMillis);
+        StripedBucket striped = new StripedBucket(stripes, config, bucket.available(config, now), now);
+        buckets.replace(key, bucket, striped);
+    }
+
+    interface LocalBucket {
+        default boolean tryAcquire(RateLimiterConfig config, long now) {
+            return tryAcquire(config, now, 1);
+        }
+
+        boolean tryAcquire(RateLimiterConfig config, long now, int permits);
+
+        void release(RateLimiterConfig config, long now);
+
+        int available(RateLimiterConfig config, long now);
+
+        /** Microsecond time at which the bucket is full again under its most recent config. */
+        long fullAt(long now);
+
+        boolean accepts(RateLimiterType type);
+
+        /** Microseconds until {@code permits} can be admitted, or {@code 0} if unknown for this kind of bucket. */
+        default long retryAfter(RateLimiterConfig config, long now, int permits) {
+            return 0;
+        }
+
+        /** Microseconds until the booked permits are available, or {@code -1} if nothing was booked. */
+        default long reserve(RateLimiterConfig config, long now, int permits, long maxWait) {
+            return tryAcquire(config, now, permits) ? 0 : -1;
+        }
+
+        default boolean isHot() {
+            return false;
+        }
+    }
+
+    /**
+     * View of one key in the {@link BucketTable}, created per call and never stored. Every
+     * update runs under the table's segment lock, so it needs no CAS loop of its own.
+     */
+    static final class TableBucket implements LocalBucket {
+        private final BucketTable table;
+        private final String key;
+        private final RateLimiterConfig config;
+
+        TableBucket(BucketTable table, String key, RateLimiterConfig config) {
+            this.table = table;
+            this.key = key;
+            this.config = config;
+        }
+
+        @Override
+        public boolean tryAcquire(RateLimiterConfig config, long now, int permits) {
+            RateLimiterType type = config.getType();
+            if (type == RateLimiterType.SLIDING_WINDOW_COUNTER) {
+                long window = SlidingWindowMath.windowMillis(config);
+                long nowMillis = now / BucketMath.MICROS_PER_MILLI;
+                return table.update(key, type, state ->
+                        SlidingWindowMath.tryAcquireCounter(state, config.getCapacity(), window, nowMillis, permits));
+            }
+            long interval = BucketMath.interval(config.getRefillRate());
+            long burst = BucketMath.burst(config.getCapacity(), interval);
+            return table.update(key, type, state -> BucketMath.tryAcquire(state, type, now, interval, burst, permits));
+        }
+
+        @Override
+        public long reserve(RateLimiterConfig config, long now, int permits, long maxWait) {
+            RateLimiterType type = config.getType();
+            if (type == RateLimiterType.SLIDING_WINDOW_COUNTER) {
+                return LocalBucket.super.reserve(config, now, permits, maxWait);
+            }
+            long interval = BucketMath.interval(config.getRefillRate());
+            long burst = BucketMath.burst(config.getCapacity(), interval);
+            long[] wait = {-1};
+            table.update(key, type, state -> {
+                long next = BucketMath.reserve(state, type, now, interval, burst, permits, maxWait);
+                if (next != BucketMath.DENIED) {
+                    wait[0] = BucketMath.retryAfter(state, config, now, permits);
+                }
+                return next;
+            });
+            return wait[0];
+        }
+
+        @Override
+        public void release(RateLimiterConfig config, long now) {
+            RateLimiterType type = config.getType();
+            if (type == RateLimiterType.SLIDING_WINDOW_COUNTER) {
+                long window = SlidingWindowMath.windowMillis(config);
+                long nowMillis = now / BucketMath.MICROS_PER_MILLI;
+                table.update(key, type, state -> SlidingWindowMath.releaseCounter(state, window, nowMillis));
+                return;
+            }
+            long interval = BucketMath.interval(config.getRefillRate());
+            long burst = BucketMath.burst(config.getCapacity(), interval);
+            table.update(key, type, state -> BucketMath.release(state, type, now, interval, burst));
+        }
+
+        @Override
+        public int available(RateLimiterConfig config, long now) {
+            long state = table.get(key, config.getType());
+            if (config.getType() == RateLimiterType.SLIDING_WINDOW_COUNTER) {
+                return SlidingWindowMath.availableCounter(state, config.getCapacity(),
+                        SlidingWindowMath.windowMillis(config), now / BucketMath.MICROS_PER_MILLI);
+            }
+            return BucketMath.available(state, config, now);
+        }
+
+        @Override
+        public long fullAt(long now) {
+            long state = table.get(key, config.getType());
+            if (config.getType() == RateLimiterType.SLIDING_WINDOW_COUNTER) {
+                long window = SlidingWindowMath.windowMillis(config);
+                return BucketMath.toMicros(SlidingWindowMath.counterFullAt(state, window, now / BucketMath.MICROS_PER_MILLI));
+            }
+            return BucketMath.fullAt(state, config);
+        }
+
+        @Override
+        public long retryAfter(RateLimiterConfig config, long now, int permits) {
+            if (config.getType() == RateLimiterType.SLIDING_WINDOW_COUNTER) {
+                return 0;
+            }
+            return BucketMath.retryAfter(table.get(key, config.getType()), config, now, permits);
+        }
+
+        // The table keeps the type with each entry and starts over when it changes
+        @Override
+        public boolean accepts(RateLimiterType type) {
+            return true;
+        }
+    }
+
+    static final class AtomicBucket implements LocalBucket {
+        private static final VarHandle STATE;
+
+        static {
+            try {
+                STATE = MethodHandles.lookup().findVarHandle(AtomicBucket.class, "state", long.class);
+            } catch (ReflectiveOperationException ex) {
+                throw new ExceptionInInitializerError(ex);
+            }
+        }
+
+        private volatile long state;
+        private volatile boolean hot;
+        private volatile RateLimiterConfig config;
+
+        AtomicBucket(RateLimiterConfig config) {
+            this.config = config;
+        }
+
+        @Override
+        public boolean tryAcquire(RateLimiterConfig config, long now, int permits) {
+            return reserve(config, now, permits, 0) == 0;
+        }
+
+        // A plain acquire is a reservation that may not wait at all
+        @Override
+        public long reserve(RateLimiterConfig config, long now, int permits, long maxWait) {
+            if (this.config != config) {
+                this.config = config;
+            }
+            long interval = BucketMath.interval(config.getRefillRate());
+            long burst = BucketMath.burst(config.getCapacity(), interval);
+            for (int retries = 0; ; retries++) {
+                long current = state;
+                long next = BucketMath.reserve(current, config.getType(), now, interval, burst, permits, maxWait);
+                if (next == BucketMath.DENIED) {
+                    return -1;
+                }
+                if (STATE.compareAndSet(this, current, next)) {
+                    return BucketMath.retryAfter(current, config, now, permits);
+                }
+                if (retries == HOT_KEY_RETRIES) {
+                    hot = true;
+                }
+            }
+        }
+
+        @Override
+        public void release(RateLimiterConfig config, long now) {
+            long interval = BucketMath.interval(config.getRefillRate());
+            long burst = BucketMath.burst(config.getCapacity(), interval);
+            while (true) {
+                long current = state;
+                long next = BucketMath.release(current, config.getType(), now, interval, burst);
+                if (next == current || STATE.compareAndSet(this, current, next)) {
+                    return;
+                }
+            }
+        }
+
+        @Override
+        public int available(RateLimiterConfig config, long now) {
+            return BucketMath.available(state, config, now);
+        }
+
+        @Override
+        public long fullAt(long now) {
+            return BucketMath.fullAt(state, config);
+        }
+
+        @Override
+        public long retryAfter(RateLimiterConfig config, long now, int permits) {
+            return BucketMath.retryAfter(state, config, now, permits);
+        }
+
+        @Override
+        public boolean accepts(RateLimiterType type) {
+            return type == RateLimiterType.TOKEN_BUCKET || BucketMath.isArrivalTime(type);
+        }
+
+        @Override
+        public boolean isHot() {
+            return hot;
+        }
+    }
+
+    /**
+     * Splits a bucket into stripes, each with an equal share of capacity and rate.
+     * A caller starts at the stripe picked by its thread and moves on to the others
+     * only when that stripe is empty, so the key as a whole still honors its limit.
+     * Reservations and retry-after look at every stripe, since tokens refill on each
+     * stripe separately.
+     */
+    static final class StripedBucket implements LocalBucket {
+        // Stride of 8 longs keeps each stripe on its own 64-byte cache line
+        private static final int PAD = 8;
+
+        private final AtomicLongArray states;
+        private final int stripes;
+        private volatile RateLimiterConfig config;
+
+        StripedBucket(int stripes, RateLimiterConfig config, int available, long now) {
+            this.stripes = stripes;
+            this.config = config;
+            this.states = new AtomicLongArray(stripes * PAD);
+            for (int i = 0; i < stripes; i++) {
+                long interval = stripeInterval(config);
+                long burst = BucketMath.burst(stripeShare(config.getCapacity(), i), interval);
+                int tokens = stripeShare(available, i);
+                states.set(i * PAD, BucketMath.withAvailable(config.getType(), tokens, now, interval, burst));
+            }
+        }
+
+        // Permits may come from different stripes; if they run out part way, the ones taken are given back
+        @Override
+        public boolean tryAcquire(RateLimiterConfig config, long now, int permits) {
+            if (this.config != config) {
+                this.config = config;
+            }
+            for (int taken = 0; taken < permits; taken++) {
+                if (!tryAcquireOne(config, now)) {
+                    for (int i = 0; i < taken; i++) {
+                        release(config, now);
+                    }
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private boolean tryAcquireOne(RateLimiterConfig config, long now) {
+            long interval = stripeInterval(config);
+            int home = (int) (Thread.currentThread().getId() % stripes);
+            for (int n = 0; n < stripes; n++) {
+                int i = (home + n) % stripes;
+                long burst = BucketMath.burst(stripeShare(config.getCapacity(), i), interval);
+                int slot = i * PAD;
+                while (true) {
+                    long current = states.get(slot);
+                    long next = BucketMath.tryAcquire(current, config.getType(), now, interval, burst);
+                    if (next == BucketMath.DENIED) {
+                        break;
+                    }
+                    if (states.compareAndSet(slot, current, next)) {
+                        return true;
+                    }
+                }
+            }
+            return false;
+        }
+
+        // Goes to the first stripe from the caller's own that has room for it
+        @Override
+        public void release(RateLimiterConfig config, long now) {
+            long interval = stripeInterval(config);
+            int home = (int) (Thread.currentThread().getId() % stripes);
+            for (int n = 0; n < stripes; n++) {
+                int i = (home + n) % stripes;
+                long burst = BucketMath.burst(stripeShare(config.getCapacity(), i), interval);
+                int slot = i * PAD;
+                while (true) {
+                    long current = states.get(slot);
+                    long next = BucketMath.release(current, config.getType(), now, interval, burst);
+                    if (next == current) {
+                        break;
+                    }
+                    if (states.compareAndSet(slot, current, next)) {
+                        return;
+                    }
+                }
+            }
+        }
+
+        // Books each permit on the stripe where a token is due soonest; if one cannot be had in time,
+        // the ones booked so far go back to their stripes
+        @Override
+        public long reserve(RateLimiterConfig config, long now, int permits, long maxWait) {
+            if (this.config != config) {
+                this.config = config;
+            }
+            if (permits > config.getCapacity()) {
+                return -1;
+            }
+            long interval = stripeInterval(config);
+            int[] booked = new int[stripes];
+            long wait = 0;
+            for (int taken = 0; taken < permits; taken++) {
+                long permitWait = reserveOne(config, now, interval, maxWait, booked);
+                if (permitWait < 0) {
+                    for (int i = 0; i < stripes; i++) {
+                        for (int n = 0; n < booked[i]; n++) {
+                            releaseOn(i, config, now, interval);
+                        }
+                    }
+                    return -1;
+                }
+                wait = Math.max(wait, permitWait);
+            }
+            return wait;
+        }
+
+        private long reserveOne(RateLimiterConfig config, long now, long interval, long maxWait, int[] booked) {
+            int home = (int) (Thread.currentThread().getId() % stripes);
+            while (true) {
+                int best = -1;
+                long bestWait = Long.MAX_VALUE;
+                long bestState = 0;
+                for (int n = 0; n < stripes; n++) {
+                    int i = (home + n) % stripes;
+                    long current = states.get(i * PAD);
+                    long stripeWait = BucketMath.retryAfter(current, config.getType(), now, interval,
+                            BucketMath.burst(stripeShare(config.getCapacity(), i), interval), 1);
+                    if (stripeWait >= 0 && stripeWait < bestWait) {
+                        best = i;
+                        bestWait = stripeWait;
+                        bestState = current;
+                    }
+                }
+                if (best < 0 || bestWait > maxWait) {
+                    return -1;
+                }
+                long burst = BucketMath.burst(stripeShare(config.getCapacity(), best), interval);
+                long next = BucketMath.reserve(bestState, config.getType(), now, interval, burst, 1, maxWait);
+                if (next != BucketMath.DENIED && states.compareAndSet(best * PAD, bestState, next)) {
+                    booked[best]++;
+                    return bestWait;
+                }
+            }
+        }
+
+        private void releaseOn(int stripe, RateLimiterConfig config, long now, long interval) {
+            long burst = BucketMath.burst(stripeShare(config.getCapacity(), stripe), interval);
+            int slot = stripe * PAD;
+            while (true) {
+                long current = states.get(slot);
+                long next = BucketMath.release(current, config.getType(), now, interval, burst);
+                if (next == current || states.compareAndSet(slot, current, next)) {
+                    return;
+                }
+            }
+        }
+
+        // The same choice of stripes as reserve, on a copy of the states
+        @Override
+        public long retryAfter(RateLimiterConfig config, long now, int permits) {
+            if (permits > config.getCapacity()) {
+                return -1;
+            }
+            long interval = stripeInterval(config);
+            long[] copy = new long[stripes];
+            for (int i = 0; i < stripes; i++) {
+                copy[i] = states.get(i * PAD);
+            }
+            long wait = 0;
+            for (int taken = 0; taken < permits; taken++) {
+                int best = -1;
+                long bestWait = Long.MAX_VALUE;
+                for (int i = 0; i < stripes; i++) {
+                    long stripeWait = BucketMath.retryAfter(copy[i], config.getType(), now, interval,
+                            BucketMath.burst(stripeShare(config.getCapacity(), i), interval), 1);
+                    if (stripeWait >= 0 && stripeWait < bestWait) {
+                        best = i;
+                        bestWait = stripeWait;
+                    }
+                }
+                if (best < 0) {
+                    return -1;
+                }
+                long burst = BucketMath.burst(stripeShare(config.getCapacity(), best), interval);
+                copy[best] = BucketMath.reserve(copy[best], config.getType(), now, interval, burst, 1, Long.MAX_VALUE);
+                wait = Math.max(wait, bestWait);
+            }
+            return wait;
+        }
+
+        @Override
+        public int available(RateLimiterConfig config, long now) {
+            long interval = stripeInterval(config);
+            int total = 0;
+            for (int i = 0; i < stripes; i++) {
+                long burst = BucketMath.burst(stripeShare(config.getCapacity(), i), interval);
+                total += BucketMath.available(states.get(i * PAD), config.getType(), now, interval, burst);
+            }
+            return total;
+        }
+
+        @Override
+        public boolean accepts(RateLimiterType type) {
+            return type == RateLimiterType.TOKEN_BUCKET || BucketMath.isArrivalTime(type);
+        }
+
+        @Override
+        public long fullAt(long now) {
+            RateLimiterConfig current = config;
+            long interval = stripeInterval(current);
+            long latest = Long.MIN_VALUE;
+            for (int i = 0; i < stripes; i++) {
+                long state = states.get(i * PAD);
+                long stripeFullAt = BucketMath.isArrivalTime(current.getType())
+                        ? state
+                        : state + BucketMath.burst(stripeShare(current.getCapacity(), i), interval);
+                latest = Math.max(latest, stripeFullAt);
+            }
+            return latest;
+        }
+
+        // Each stripe refills at rate / stripes
+        private long stripeInterval(RateLimiterConfig config) {
+            return BucketMath.interval(config.getRefillRate()) * stripes;
+        }
+
+        private int stripeShare(int total, int stripe) {
+            return total / stripes + (stripe < total % stripes ? 1 : 0);
+        }
+    }
+
+    /**
+     * Sliding-window counter: the previous window's count, weighted by how much of it
+     * still overlaps the sliding window, plus the current window's count. O(1) state.
+     */
+    static final class SlidingCounterBucket implements LocalBucket {
+        private static final VarHandle STATE;
+
+        static {
+            try {
+                STATE = MethodHandles.lookup().findVarHandle(SlidingCounterBucket.class, "state", long.class);
+            } catch (ReflectiveOperationException ex) {
+                throw new ExceptionInInitializerError(ex);
+            }
+        }
+
+        private volatile long state;
+        private volatile RateLimiterConfig config;
+
+        SlidingCounterBucket(RateLimiterConfig config) {
+            this.config = config;
+        }
+
+        @Override
+        public boolean tryAcquire(RateLimiterConfig config, long now, int permits) {
+            if (this.config != config) {
+                this.config = config;
+            }
+            long window = SlidingWindowMath.windowMillis(config);
+            long nowMillis = now / BucketMath.MICROS_PER_MILLI;
+            while (true) {
+                long current = state;
+                long next = SlidingWindowMath.tryAcquireCounter(current, config.getCapacity(), window, nowMillis, permits);
+                if (next == BucketMath.DENIED) {
+                    return false;
+                }
+                if (STATE.compareAndSet(this, current, next)) {
+                    return true;
+                }
+            }
+        }
+
+        @Override
+        public void release(RateLimiterConfig config, long now) {
+            long window = SlidingWindowMath.windowMillis(config);
+            long nowMillis = now / BucketMath.MICROS_PER_MILLI;
+            while (true) {
+                long current = state;
+                long next = SlidingWindowMath.releaseCounter(current, window, nowMillis);
+                if (next == current || STATE.compareAndSet(this, current, next)) {
+                    return;
+                }
+            }
+        }
+
+        @Override
+        public int available(RateLimiterConfig config, long now) {
+            return SlidingWindowMath.availableCounter(state, config.getCapacity(),
+                    SlidingWindowMath.windowMillis(config), now / BucketMath.MICROS_PER_MILLI);
+        }
+
+        @Override
+        public long fullAt(long now) {
+            long window = SlidingWindowMath.windowMillis(config);
+            return BucketMath.toMicros(SlidingWindowMath.counterFullAt(state, window, now / BucketMath.MICROS_PER_MILLI));
+        }
+
+        @Override
+        public boolean accepts(RateLimiterType type) {
+            return type == RateLimiterType.SLIDING_WINDOW_COUNTER;
+        }
+    }
+
+    /**
+     * Sliding-window log: a ring buffer holding the timestamp of every admitted request
+     * still inside the window. Exact, but memory grows with capacity, and updates take the
+     * bucket's monitor because a multi-slot ring cannot be updated with a single CAS.
+     */
+    static final class SlidingLogBucket implements LocalBucket {
+        private static final int INITIAL_SLOTS = 16;
+
+        private long[] timestamps;
+        private int head;
+        private int size;
+        private volatile RateLimiterConfig config;
+
+        SlidingLogBucket(RateLimiterConfig config) {
+            this.config = config;
+            this.timestamps = new long[Math.max(1, Math.min(INITIAL_SLOTS, config.getCapacity()))];
+        }
+
+        @Override
+        public synchronized boolean tryAcquire(RateLimiterConfig config, long now, int permits) {
+            this.config = config;
+            expire(now, BucketMath.toMicros(SlidingWindowMath.windowMillis(config)));
+            if (permits > config.getCapacity() - size) {
+                return false;
+            }
+            for (int i = 0; i < permits; i++) {
+                if (size == timestamps.length) {
+                    grow(config.getCapacity());
+                }
+                timestamps[(head + size) % timestamps.length] = now;
+                size++;
+            }
+            return true;
+        }
+
+        // Drops the newest entry; any entry admitted in the window counts the same
+        @Override
+        public synchronized void release(RateLimiterConfig config, long now) {
+            if (size > 0) {
+                size--;
+            }
+        }
+
+        @Override
+        public synchronized int available(RateLimiterConfig config, long now) {
+            expire(now, BucketMath.toMicros(SlidingWindowMath.windowMillis(config)));
+            return Math.max(0, config.getCapacity() - size);
+        }
+
+        @Override
+        public synchronized long fullAt(long now) {
+            if (size == 0) {
+                return 0;
+            }
+            long newest = timestamps[(head + size - 1) % timestamps.length];
+            return newest + BucketMath.toMicros(SlidingWindowMath.windowMillis(config));
+        }
+
+        @Override
+        public boolean accepts(RateLimiterType type) {
+            return type == RateLimiterType.SLIDING_WINDOW_LOG;
+        }
+
+        private void expire(long now, long window) {
+            while (size > 0 && timestamps[head] <= now - window) {
+                head = (head + 1) % timestamps.length;
+                size--;
+            }
+        }
+
+        private void grow(int capacity) {
+            long[] grown = new long[(int) Math.min(Math.max(capacity, 1), 2L * timestamps.length)];
+            for (int i = 0; i < size; i++) {
+                grown[i] = timestamps[(head + i) % timestamps.length];
+            }
+            timestamps = grown;
+            head = 0;
+        }
+    }
+}
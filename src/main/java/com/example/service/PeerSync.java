@@ -0,0 +1,242 @@
+package com.example.service;
+
+import com.example.model.RateLimiterConfig;
+import com.example.model.RateLimiterType;
+import redis.clients.jedis.HostAndPort;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Shares in-memory consumption between nodes without a central store. Tokens this node
+ * grants are added to a per-key running total; {@link #flush} sends the totals to every
+ * peer in UDP datagrams and starts over, and the listener applies what peers report to
+ * the local buckets. Nothing here runs on the request path: flushes run on the caller's
+ * schedule and datagrams are read on a dedicated thread.
+ *
+ * <p>Every flush sends at least one datagram, so an empty one doubles as a heartbeat. A
+ * peer counts as a live member while it has been heard from within the last three
+ * intervals. Datagrams from addresses not in the peer list are ignored.
+ *
+ * <p>Each entry carries the limit the sending node charged it under, so a peer debits the
+ * same bucket shape even where it would resolve the key to a different config.
+ *
+ * <p>Wire format, big-endian: magic {@code "RLP2"}, an unsigned 16-bit entry count, then
+ * per entry the key (as {@link DataOutputStream#writeUTF}), the algorithm as a byte, the
+ * capacity and refill rate as 32-bit ints, and the permits as a 32-bit int.
+ */
+class PeerSync implements AutoCloseable {
+    // Largest datagram sent; fits an Ethernet MTU, so nothing is fragmented on a LAN
+    static final int MAX_DATAGRAM = 1400;
+    private static final int MAGIC = 0x524c5032;
+    private static final int HEADER_BYTES = 6;
+    // A peer not heard from for this many intervals no longer counts as a member
+    private static final int LIVE_INTERVALS = 3;
+
+    interface Listener {
+        void onPeerUsage(String key, RateLimiterConfig config, int permits);
+    }
+
+    private final DatagramSocket socket;
+    private final List<InetSocketAddress> peers;
+    private final Set<SocketAddress> peerAddresses;
+    private final long intervalMillis;
+    private final Listener listener;
+    private final FallbackDeltas unsent = new FallbackDeltas(FallbackDeltas.DEFAULT_MAX_KEYS);
+    private final Map<SocketAddress, Long> lastHeard = new ConcurrentHashMap<>();
+    private final LongAdder sentDatagrams = new LongAdder();
+    private final LongAdder receivedDatagrams = new LongAdder();
+    private final LongAdder rejectedDatagrams = new LongAdder();
+    private final Thread receiver;
+    private volatile boolean running = true;
+
+    /** @param port UDP port to listen and send on; {@code 0} picks a free one */
+    PeerSync(int port, List<InetSocketAddress> peers, long intervalMillis, Listener listener) {
+        try {
+            this.socket = new DatagramSocket(port);
+        } catch (SocketException ex) {
+            throw new IllegalStateException("Cannot bind peer sync to UDP port " + port, ex);
+        }
+        this.peers = new ArrayList<>(peers);
+        this.peerAddresses = new HashSet<>(peers);
+        this.intervalMillis = intervalMillis;
+        this.listener = listener;
+        this.receiver = new Thread(this::receive, "rate-limiter-peer-sync");
+        receiver.setDaemon(true);
+        receiver.start();
+    }
+
+    /** Parses a comma-separated {@code host:port} list; host names are resolved once, here. */
+    static List<InetSocketAddress> parsePeers(String peers) {
+        List<InetSocketAddress> parsed = new ArrayList<>();
+        for (HostAndPort peer : RedisShards.parseNodes(peers)) {
+            parsed.add(new InetSocketAddress(peer.getHost(), peer.getPort()));
+        }
+        return parsed;
+    }
+
+    int getPort() {
+        return socket.getLocalPort();
+    }
+
+    /** Adds tokens granted by this node to what the next flush sends. */
+    void record(String key, RateLimiterConfig config, int permits, long nowMillis) {
+        unsent.add(key, config, permits, nowMillis);
+    }
+
+    /** Tokens this node granted for {@code key} since the last flush. */
+    long unsent(String key) {
+        return unsent.pending(key);
+    }
+
+    /** This node plus every peer heard from recently. */
+    int liveMembers(long nowMillis) {
+        int live = 1;
+        for (long heard : lastHeard.values()) {
+            if (nowMillis - heard <= LIVE_INTERVALS * intervalMillis) {
+                live++;
+            }
+        }
+        return live;
+    }
+
+    /** Sends everything recorded since the last flush to every peer. */
+    void flush(long nowMillis) {
+        List<byte[]> datagrams = encode(unsent.drain(Integer.MAX_VALUE, nowMillis), nowMillis);
+        for (InetSocketAddress peer : peers) {
+            for (byte[] datagram : datagrams) {
+                try {
+                    socket.send(new DatagramPacket(datagram, datagram.length, peer));
+                    sentDatagrams.increment();
+                } catch (IOException ignored) {
+                    // Lost like any dropped datagram; the peer under-counts until the usage refills
+                }
+            }
+        }
+    }
+
+    long unsentPermits() {
+        return unsent.pendingPermits();
+    }
+
+    long getSentDatagrams() {
+        return sentDatagrams.sum();
+    }
+
+    long getReceivedDatagrams() {
+        return receivedDatagrams.sum();
+    }
+
+    long getRejectedDatagrams() {
+        return rejectedDatagrams.sum();
+    }
+
+    @Override
+    public void close() {
+        running = false;
+        socket.close();
+    }
+
+    // Packs the totals into as few datagrams as fit MAX_DATAGRAM; always at least one
+    static List<byte[]> encode(List<FallbackDeltas.Delta> deltas, long nowMillis) {
+        List<byte[]> datagrams = new ArrayList<>();
+        ByteArrayOutputStream entries = new ByteArrayOutputStream(MAX_DATAGRAM);
+        ByteArrayOutputStream entry = new ByteArrayOutputStream();
+        DataOutputStream entryOut = new DataOutputStream(entry);
+        int count = 0;
+        for (FallbackDeltas.Delta delta : deltas) {
+            entry.reset();
+            try {
+                entryOut.writeUTF(delta.key);
+                entryOut.writeByte(delta.config.getType().ordinal());
+                entryOut.writeInt(delta.config.getCapacity());
+                entryOut.writeInt(delta.config.getRefillRate());
+                entryOut.writeInt((int) delta.outstanding(nowMillis));
+            } catch (IOException ex) {
+                // Key too long for writeUTF
+                continue;
+            }
+            if (HEADER_BYTES + entry.size() > MAX_DATAGRAM) {
+                continue;
+            }
+            if (HEADER_BYTES + entries.size() + entry.size() > MAX_DATAGRAM) {
+                datagrams.add(datagram(entries, count));
+                entries.reset();
+                count = 0;
+            }
+            entries.write(entry.toByteArray(), 0, entry.size());
+            count++;
+        }
+        if (count > 0 || datagrams.isEmpty()) {
+            datagrams.add(datagram(entries, count));
+        }
+        return datagrams;
+    }
+
+    private static byte[] datagram(ByteArrayOutputStream entries, int count) {
+        return ByteBuffer.allocate(HEADER_BYTES + entries.size())
+                .putInt(MAGIC).putShort((short) count).put(entries.toByteArray())
+                .array();
+    }
+
+    static void decode(byte[] data, int length, Listener listener) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(data, 0, length));
+        if (in.readInt() != MAGIC) {
+            throw new IOException("Not a peer sync datagram");
+        }
+        RateLimiterType[] types = RateLimiterType.values();
+        int count = in.readUnsignedShort();
+        for (int i = 0; i < count; i++) {
+            String key = in.readUTF();
+            int type = in.readUnsignedByte();
+            int capacity = in.readInt();
+            int refillRate = in.readInt();
+            int permits = in.readInt();
+            if (type >= types.length) {
+                throw new IOException("Unknown algorithm " + type);
+            }
+            if (permits > 0) {
+                listener.onPeerUsage(key, new RateLimiterConfig(capacity, refillRate, types[type]), permits);
+            }
+        }
+    }
+
+    private void receive() {
+        byte[] buffer = new byte[65_535];
+        while (running) {
+            DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+            try {
+                socket.receive(packet);
+            } catch (IOException ex) {
+                continue;
+            }
+            if (!peerAddresses.contains(packet.getSocketAddress())) {
+                rejectedDatagrams.increment();
+                continue;
+            }
+            receivedDatagrams.increment();
+            lastHeard.put(packet.getSocketAddress(), System.currentTimeMillis());
+            try {
+                decode(packet.getData(), packet.getLength(), listener);
+            } catch (IOException | RuntimeException ex) {
+                rejectedDatagrams.increment();
+            }
+        }
+    }
+}
@@ -2,172 +2,1857 @@ package com.example.service;
 
 import com.example.model.*;
 import org.springframework.stereotype.Service;
+import redis.clients.jedis.HostAndPort;
 import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.JedisPoolConfig;
 import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Response;
+import redis.clients.jedis.exceptions.JedisDataException;
+import redis.clients.jedis.exceptions.JedisNoScriptException;
+import redis.clients.jedis.params.ScanParams;
+import redis.clients.jedis.resps.ScanResult;
 
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.time.Duration;
 import java.util.concurrent.*;
+import java.util.function.Function;
+import java.util.function.Supplier;
 import java.util.HashMap;
 import io.micrometer.core.instrument.MeterRegistry;
 import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
 import io.micrometer.core.instrument.Timer;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import jakarta.annotation.PreDestroy;
 
 @Service
 public class RateLimiterService {
-    private final JedisPool jedisPool; // Do NOT assign here
+    // One pool per Redis node; buckets are spread over the nodes by key
+    private final RedisShards shards; // Do NOT assign here
     private final Map<String, RateLimiterConfig> configMap = new ConcurrentHashMap<>();
+    // Pattern rules consulted for keys without an exact entry in configMap
+    private final ConfigRules configRules = new ConfigRules(ConfigRules.DEFAULT_MEMO_SIZE);
+    // Buckets last acquired under a config other than their own, such as @RateLimited's
+    // <config>:<caller>, so their status is read under the limits that charged them
+    private final Map<String, RateLimiterConfig> bucketConfigs = new ConcurrentHashMap<>();
+    private final int maxBucketConfigs;
 
     // In-memory fallback state
-    private final Map<String, InMemoryBucket> inMemoryBuckets = new ConcurrentHashMap<>();
+    private final LocalRateLimiter localLimiter;
 
-    private static final int REDIS_RETRY_COUNT = 3;
-    private static final long REDIS_RETRY_DELAY_MS = 100;
+    // SHA1 of each Lua script as returned by SCRIPT LOAD, keyed by script source
+    private final Map<String, String> scriptShas = new ConcurrentHashMap<>();
 
-    private static final String TOKEN_BUCKET_LUA =
-            "local tokens_key = KEYS[1] " +
-            "local last_refill_key = KEYS[2] " +
+    // Locally leased token blocks for configs with leased enforcement
+    private final Map<String, TokenLease> leases = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService backgroundExecutor;
+    // Lease top-ups and the renewals of async acquires, so no request or event loop thread waits on them
+    private static final int LEASE_RENEWERS = 2;
+    private final ExecutorService leaseRenewers;
+
+    // Auto-pipelining for acquireAsync: flusher threads (one Redis connection each), queue bound, batch size
+    private static final int ASYNC_FLUSHERS = 2;
+    private static final int ASYNC_QUEUE_CAPACITY = 65_536;
+    private static final int ASYNC_MAX_BATCH = 512;
+    // One pipeline per shard, so a batch is one round trip to one node
+    private final AsyncAcquirePipeline[] asyncPipelines;
+
+    // Keys Redis recently denied, rejected locally until their reported retry-after passes
+    private final DenyCache denyCache = new DenyCache(DenyCache.DEFAULT_MAX_ENTRIES);
+
+    // Usage granted from memory while Redis was unreachable, debited from the Redis buckets once it is back
+    private final FallbackDeltas fallbackDeltas = new FallbackDeltas(FallbackDeltas.DEFAULT_MAX_KEYS);
+    private static final long RECONCILE_INTERVAL_MS = 1000;
+    // Keys debited per pipelined round trip
+    private static final int RECONCILE_BATCH = 500;
+
+    // Peer mode: how often each node sends the usage it granted to its peers
+    private static final long PEER_SYNC_INTERVAL_MS = 100;
+    // Shares usage with other nodes when peers are configured, else null
+    private final PeerSync peerSync;
+
+    // How often fully refilled local buckets are dropped
+    private static final long LOCAL_EVICT_INTERVAL_MS = 10_000;
+
+    private static final long LEASE_TTL_MS = 1000;
+    // Drained leases idle for this long are dropped from the map
+    private static final long LEASE_IDLE_EVICT_MS = 5 * LEASE_TTL_MS;
+
+    // Default per-call budget: connect/read timeout and the longest wait for a pooled connection
+    public static final int DEFAULT_REDIS_TIMEOUT_MS = 100;
+
+    private static final String REDIS_KEY_PREFIX = "rl:";
+    // Lower-case type names used in Redis keys, by ordinal, and the shorter names of hash-layout buckets
+    private static final String[] KEY_NAMES = new String[RateLimiterType.values().length];
+    private static final String[] HASH_KEY_NAMES = new String[RateLimiterType.values().length];
+    private static final Map<String, RateLimiterType> TYPES_BY_KEY_NAME = new HashMap<>();
+    static {
+        HASH_KEY_NAMES[RateLimiterType.TOKEN_BUCKET.ordinal()] = "tb";
+        HASH_KEY_NAMES[RateLimiterType.LEAKY_BUCKET.ordinal()] = "lb";
+        for (RateLimiterType type : RateLimiterType.values()) {
+            KEY_NAMES[type.ordinal()] = type.name().toLowerCase();
+            TYPES_BY_KEY_NAME.put(KEY_NAMES[type.ordinal()], type);
+            if (HASH_KEY_NAMES[type.ordinal()] != null) {
+                TYPES_BY_KEY_NAME.put(HASH_KEY_NAMES[type.ordinal()], type);
+            }
+        }
+    }
+    // Max wait passed to the acquire scripts for a plain acquire, which never books ahead
+    private static final long NO_RESERVATION = -1;
+
+    // Buckets read per pipelined round trip by the bulk status calls
+    private static final int STATUS_CHUNK = 500;
+
+    // Consecutive Redis failures that open the circuit, and how long it stays open before a probe
+    private static final int CIRCUIT_FAILURE_THRESHOLD = 5;
+    private static final long CIRCUIT_OPEN_MS = 5000;
+
+    // Where a decision was made: Redis, memory because Redis could not be asked, or memory by design
+    // (leases, the deny cache, Redis disabled)
+    private enum Backend { REDIS, FALLBACK, LOCAL }
+
+    // Why a decision fell back to memory
+    private enum FallbackReason { ERROR, CIRCUIT_OPEN, QUEUE_FULL }
+
+    // Row of the decision timers used for limit chains, after one row per type
+    private static final int CHAIN_TIMERS = RateLimiterType.values().length;
+    // Histogram buckets of the decision and pool wait timers, from an in-memory decision to a timed-out call.
+    // Fixed bounds keep each timer to a few series, and recording is a handful of atomic adds
+    private static final Duration[] LATENCY_BUCKETS = {
+            Duration.ofNanos(5_000), Duration.ofNanos(10_000), Duration.ofNanos(25_000), Duration.ofNanos(50_000),
+            Duration.ofNanos(100_000), Duration.ofNanos(250_000), Duration.ofNanos(500_000), Duration.ofMillis(1),
+            Duration.ofNanos(2_500_000), Duration.ofMillis(5), Duration.ofMillis(10), Duration.ofMillis(25),
+            Duration.ofMillis(50), Duration.ofMillis(100), Duration.ofMillis(250)};
+
+    // Most frequent and most denied keys, counted in fixed-size sketches rather than per-key meters.
+    // Decisions are sampled into them, so a busy key costs a few atomic adds only now and then
+    private final HotKeys hotKeys = new HotKeys();
+    private final HotKeys deniedKeys = new HotKeys();
+    // Sketch counts are halved this often, so the top keys follow recent traffic
+    private static final long HOT_KEYS_DECAY_MS = 60_000;
+
+    // Writes a key with a PX expiry, or without one when ttl is nil (bucket never refills)
+    private static final String LUA_STORE =
+            "local function store(key, value, ttl) " +
+            "  if ttl then redis.call('set', key, value, 'px', ttl) else redis.call('set', key, value) end " +
+            "end ";
+
+    // Where the two-value bucket types keep their (tokens or water, timestamp) state. legacy: one
+    // string key each, KEYS[1] and KEYS[2]. hash: one two-field hash at KEYS[1]; until a bucket is
+    // first written there, the legacy keys in KEYS[2] and KEYS[3] are read instead
+    private static final String LUA_LAYOUTS =
+            "local legacy = {} " +
+            "function legacy.load(k, default_value, now) " +
+            "  return tonumber(redis.call('get', k[1]) or default_value), tonumber(redis.call('get', k[2]) or now) " +
+            "end " +
+            "function legacy.save(k, value, time, ttl) " +
+            "  store(k[1], value, ttl) " +
+            "  store(k[2], time, ttl) " +
+            "end " +
+            "local hash = {} " +
+            "function hash.load(k, default_value, now) " +
+            "  local state = redis.call('hmget', k[1], 'v', 't') " +
+            "  if state[1] then return tonumber(state[1]), tonumber(state[2]) end " +
+            "  return legacy.load({k[2], k[3]}, default_value, now) " +
+            "end " +
+            "function hash.save(k, value, time, ttl) " +
+            "  redis.call('hset', k[1], 'v', value, 't', time) " +
+            "  if ttl then redis.call('pexpire', k[1], ttl) else redis.call('persist', k[1]) end " +
+            "end ";
+
+    // Keys expire once the bucket would be full again (plus a millisecond of slack for rounding),
+    // at which point a missing key reads back as a full bucket
+    private static final String LUA_TOKEN_TTL =
+            "local function ttl_for(tokens) " +
+            "  if refill_rate <= 0 then return nil end " +
+            "  return math.ceil((capacity - tokens) * 1000 / refill_rate) + 1 " +
+            "end ";
+
+    private static final String LUA_WATER_TTL =
+            "local function ttl_for(water) " +
+            "  if leak_rate <= 0 then return nil end " +
+            "  return math.ceil(water * 1000 / leak_rate) + 1 " +
+            "end ";
+
+    // Both bucket types refill (or leak) continuously, like BucketMath: the state holds fractions of a
+    // token, and a wait is the time until enough has accrued, to the millisecond. A clock behind the
+    // stored time accrues nothing
+    private static final String LUA_REFILL =
+            "local function refill(tokens, last_refill, now, rate, capacity) " +
+            "  tokens = math.min(capacity, tokens + math.max(0, now - last_refill) * rate / 1000) " +
+            "  return tokens, math.max(last_refill, now) " +
+            "end " +
+            "local function leak(water, last_leak, now, rate) " +
+            "  water = math.max(0, water - math.max(0, now - last_leak) * rate / 1000) " +
+            "  return water, math.max(last_leak, now) " +
+            "end ";
+
+    // Preceded by "local layout = ..." choosing one of LUA_LAYOUTS. ARGV[4] is the number of permits and
+    // ARGV[5] how long a reservation may wait for them (-1: no reservation, admit only if available now)
+    private static final String TOKEN_BUCKET_BODY =
             "local capacity = tonumber(ARGV[1]) " +
             "local refill_rate = tonumber(ARGV[2]) " +
             "local now = tonumber(ARGV[3]) " +
-            "local tokens = tonumber(redis.call('get', tokens_key) or capacity) " +
-            "local last_refill = tonumber(redis.call('get', last_refill_key) or now) " +
-            "local elapsed = math.floor((now - last_refill) / 1000) " +
-            "local refill = elapsed * refill_rate " +
-            "tokens = math.min(capacity, tokens + refill) " +
-            "if tokens > 0 then " +
-            "  tokens = tokens - 1 " +
-            "  redis.call('set', tokens_key, tokens) " +
-            "  redis.call('set', last_refill_key, now) " +
-            "  return 1 " +
-            "else " +
-            "  redis.call('set', last_refill_key, now) " +
-            "  return 0 " +
-            "end";
+            "local permits = tonumber(ARGV[4]) " +
+            "local max_wait = tonumber(ARGV[5]) " +
+            LUA_TOKEN_TTL +
+            LUA_REFILL +
+            "local tokens, last_refill = layout.load(KEYS, capacity, now) " +
+            "tokens, last_refill = refill(tokens, last_refill, now, refill_rate, capacity) " +
+            // Millis until the bucket holds n tokens (-1: never)
+            "local function until_tokens(n) " +
+            "  if tokens >= n then return 0 end " +
+            "  if refill_rate <= 0 or n > capacity then return -1 end " +
+            "  return last_refill + math.ceil((n - tokens) * 1000 / refill_rate) - now " +
+            "end " +
+            "local wait = until_tokens(permits) " +
+            // A reservation takes the tokens now, leaving the bucket in debt until they have refilled
+            "if wait == 0 or (wait > 0 and wait <= max_wait) then " +
+            "  tokens = tokens - permits " +
+            "  layout.save(KEYS, tokens, last_refill, ttl_for(tokens)) " +
+            "  return {1, math.floor(math.max(0, tokens)), wait, until_tokens(capacity)} " +
+            "end " +
+            // Denials write nothing
+            "return {0, math.floor(math.max(0, tokens)), wait, until_tokens(capacity)}";
+
+    private static final String TOKEN_BUCKET_LUA = LUA_STORE + LUA_LAYOUTS + "local layout = legacy " + TOKEN_BUCKET_BODY;
+    private static final String TOKEN_BUCKET_HASH_LUA = LUA_STORE + LUA_LAYOUTS + "local layout = hash " + TOKEN_BUCKET_BODY;
 
-    private static final String LEAKY_BUCKET_LUA =
-            "local water_key = KEYS[1] " +
-            "local last_leak_key = KEYS[2] " +
+    private static final String LEAKY_BUCKET_BODY =
             "local capacity = tonumber(ARGV[1]) " +
             "local leak_rate = tonumber(ARGV[2]) " +
             "local now = tonumber(ARGV[3]) " +
-            "local water = tonumber(redis.call('get', water_key) or 0) " +
-            "local last_leak = tonumber(redis.call('get', last_leak_key) or now) " +
-            "local elapsed = math.floor((now - last_leak) / 1000) " +
-            "local leaked = elapsed * leak_rate " +
-            "water = math.max(0, water - leaked) " +
-            "if water < capacity then " +
-            "  water = water + 1 " +
-            "  redis.call('set', water_key, water) " +
-            "  redis.call('set', last_leak_key, now) " +
-            "  return 1 " +
+            "local permits = tonumber(ARGV[4]) " +
+            "local max_wait = tonumber(ARGV[5]) " +
+            LUA_WATER_TTL +
+            LUA_REFILL +
+            "local water, last_leak = layout.load(KEYS, 0, now) " +
+            "water, last_leak = leak(water, last_leak, now, leak_rate) " +
+            // Millis until the water is down to level (-1: never)
+            "local function until_level(level) " +
+            "  if water <= level then return 0 end " +
+            "  if leak_rate <= 0 or level < 0 then return -1 end " +
+            "  return last_leak + math.ceil((water - level) * 1000 / leak_rate) - now " +
+            "end " +
+            "local wait = until_level(capacity - permits) " +
+            // A reservation pours the water in now, over the brim until enough has leaked
+            "if wait == 0 or (wait > 0 and wait <= max_wait) then " +
+            "  water = water + permits " +
+            "  layout.save(KEYS, water, last_leak, ttl_for(water)) " +
+            "  return {1, math.floor(math.max(0, capacity - water)), wait, until_level(0)} " +
+            "end " +
+            "return {0, math.floor(math.max(0, capacity - water)), wait, until_level(0)}";
+
+    private static final String LEAKY_BUCKET_LUA = LUA_STORE + LUA_LAYOUTS + "local layout = legacy " + LEAKY_BUCKET_BODY;
+    private static final String LEAKY_BUCKET_HASH_LUA = LUA_STORE + LUA_LAYOUTS + "local layout = hash " + LEAKY_BUCKET_BODY;
+
+    // Sorted set of admission timestamps; ARGV[4] is a unique member prefix for this request and
+    // ARGV[5] the number of permits, each logged as its own entry. Cannot book ahead, so ARGV[6] is ignored
+    private static final String SLIDING_WINDOW_LOG_LUA =
+            "local log_key = KEYS[1] " +
+            "local capacity = tonumber(ARGV[1]) " +
+            "local refill_rate = tonumber(ARGV[2]) " +
+            "local now = tonumber(ARGV[3]) " +
+            "local member = ARGV[4] " +
+            "local permits = tonumber(ARGV[5]) " +
+            "local window = nil " +
+            "if refill_rate > 0 then window = math.max(1, math.floor(capacity * 1000 / refill_rate)) end " +
+            "if window then redis.call('zremrangebyscore', log_key, '-inf', now - window) end " +
+            "local count = redis.call('zcard', log_key) " +
+            "if count + permits <= capacity then " +
+            "  local entries = {} " +
+            "  for i = 1, permits do " +
+            "    entries[#entries + 1] = now " +
+            "    entries[#entries + 1] = member .. '#' .. i " +
+            "    if #entries >= 512 or i == permits then " +
+            "      redis.call('zadd', log_key, unpack(entries)) " +
+            "      entries = {} " +
+            "    end " +
+            "  end " +
+            "  if not window then return {1, capacity - count - permits, 0, -1} end " +
+            "  redis.call('pexpire', log_key, window) " +
+            "  return {1, capacity - count - permits, 0, window} " +
+            "end " +
+            "if not window or permits > capacity then return {0, math.max(0, capacity - count), -1, -1} end " +
+            // Admission reopens when enough of the oldest entries have left the window; the log
+            // is empty once the newest has
+            "local oldest = redis.call('zrange', log_key, count + permits - capacity - 1, count + permits - capacity - 1, 'WITHSCORES') " +
+            "local newest = redis.call('zrange', log_key, -1, -1, 'WITHSCORES') " +
+            "return {0, math.max(0, capacity - count), tonumber(oldest[2]) + window - now, tonumber(newest[2]) + window - now}";
+
+    // Hash with the aligned window index and the current/previous window counts; ARGV[5] is the number
+    // of permits. Cannot book ahead, so ARGV[6] is ignored
+    private static final String SLIDING_WINDOW_COUNTER_LUA =
+            "local window_key = KEYS[1] " +
+            "local capacity = tonumber(ARGV[1]) " +
+            "local refill_rate = tonumber(ARGV[2]) " +
+            "local now = tonumber(ARGV[3]) " +
+            "local window = tonumber(ARGV[4]) " +
+            "local permits = tonumber(ARGV[5]) " +
+            "local index = math.floor(now / window) " +
+            "local state = redis.call('hmget', window_key, 'idx', 'curr', 'prev') " +
+            "local state_index = tonumber(state[1]) " +
+            "local curr = tonumber(state[2]) or 0 " +
+            "local prev = tonumber(state[3]) or 0 " +
+            "if state_index == index - 1 then " +
+            "  prev = curr " +
+            "  curr = 0 " +
+            "elseif state_index ~= index then " +
+            "  prev = 0 " +
+            "  curr = 0 " +
+            "end " +
+            "local estimated = prev * (window - (now - index * window)) / window + curr " +
+            "if estimated + permits <= capacity then " +
+            "  curr = curr + permits " +
+            "  redis.call('hset', window_key, 'idx', index, 'curr', curr, 'prev', prev) " +
+            "  if refill_rate <= 0 then return {1, math.floor(capacity - estimated - permits), 0, -1} end " +
+            "  redis.call('pexpire', window_key, 2 * window) " +
+            "  return {1, math.floor(capacity - estimated - permits), 0, (index + 2) * window - now} " +
+            "end " +
+            "local remaining = math.max(0, math.floor(capacity - estimated)) " +
+            "if refill_rate <= 0 or permits > capacity then return {0, remaining, -1, -1} end " +
+            // Both counts are gone once the window holding the newest one has rolled out
+            "local reset = 0 " +
+            "if curr > 0 then reset = (index + 2) * window - now elseif prev > 0 then reset = (index + 1) * window - now end " +
+            "local wait " +
+            "if curr + permits > capacity then " +
+            // Nothing frees up in this window; in the next one the current count becomes the weighted one
+            "  local next_elapsed = 0 " +
+            "  if curr > 0 then next_elapsed = math.max(0, window * (1 - (capacity - permits) / curr)) end " +
+            "  wait = (index + 1) * window - now + next_elapsed " +
             "else " +
-            "  redis.call('set', last_leak_key, now) " +
-            "  return 0 " +
-            "end";
+            "  wait = (index + 1) * window - (capacity - permits - curr) * window / prev - now " +
+            "end " +
+            "return {0, remaining, math.max(1, math.ceil(wait)), reset}";
+
+    // Single key holding the theoretical arrival time in microseconds; ARGV[6] is the number of permits
+    // and ARGV[7] how long a reservation may wait for them (-1: no reservation)
+    private static final String GCRA_LUA =
+            "local tat_key = KEYS[1] " +
+            "local now = tonumber(ARGV[3]) * 1000 " +
+            "local interval = tonumber(ARGV[4]) " +
+            "local burst = tonumber(ARGV[5]) " +
+            "local permits = tonumber(ARGV[6]) " +
+            "local max_wait = tonumber(ARGV[7]) " +
+            "local tat = math.max(tonumber(redis.call('get', tat_key) or now), now) " +
+            "local remaining = math.max(0, math.floor((burst - (tat - now)) / interval)) " +
+            "local reset = math.ceil((tat - now) / 1000) " +
+            "if permits * interval > burst then return {0, remaining, -1, reset} end " +
+            "local new_tat = tat + permits * interval " +
+            "local backlog = new_tat - now " +
+            // A reservation moves the TAT past now + burst; later requests wait until it is back within
+            "local wait = math.max(0, math.ceil((backlog - burst) / 1000)) " +
+            "if wait == 0 or wait <= max_wait then " +
+            // Expire once the TAT is reached: by then the bucket is full and a missing key reads the same
+            "  redis.call('set', tat_key, string.format('%.0f', new_tat), 'px', math.ceil(backlog / 1000) + 1) " +
+            "  return {1, math.max(0, math.floor((burst - backlog) / interval)), wait, math.ceil(backlog / 1000)} " +
+            "end " +
+            "return {0, remaining, wait, reset}";
+
+    // Limit chain: checks every tier and writes only if all of them admit. ARGV[1] is the number of
+    // tiers; each tier then has its type name, layout, key count and argument count, followed by the
+    // same arguments its single-key script takes. Keys are the tiers' script keys in order. Replies
+    // {1, fewest remaining} or {0, retry_after_ms, first denying tier, that tier's retry_after_ms}.
+    // Each check returns allowed, remaining (retry_after_ms when denied) and a function writing the new state.
+    private static final String CHAIN_LUA =
+            LUA_STORE +
+            LUA_LAYOUTS +
+            "local layouts = {legacy = legacy, hash = hash} " +
+            "local function ttl(rate, amount) " +
+            "  if rate <= 0 then return nil end " +
+            "  return math.ceil(amount * 1000 / rate) + 1 " +
+            "end " +
+            LUA_REFILL +
+            "local checks = {} " +
+            "checks.TOKEN_BUCKET = function(k, a, layout) " +
+            "  local capacity, refill_rate, now = tonumber(a[1]), tonumber(a[2]), tonumber(a[3]) " +
+            "  local tokens, last_refill = layout.load(k, capacity, now) " +
+            "  tokens, last_refill = refill(tokens, last_refill, now, refill_rate, capacity) " +
+            "  if tokens < 1 then " +
+            "    if refill_rate <= 0 or capacity < 1 then return false, -1 end " +
+            "    return false, last_refill + math.ceil((1 - tokens) * 1000 / refill_rate) - now " +
+            "  end " +
+            "  tokens = tokens - 1 " +
+            "  return true, math.floor(tokens), function() " +
+            "    layout.save(k, tokens, last_refill, ttl(refill_rate, capacity - tokens)) " +
+            "  end " +
+            "end " +
+            "checks.LEAKY_BUCKET = function(k, a, layout) " +
+            "  local capacity, leak_rate, now = tonumber(a[1]), tonumber(a[2]), tonumber(a[3]) " +
+            "  local water, last_leak = layout.load(k, 0, now) " +
+            "  water, last_leak = leak(water, last_leak, now, leak_rate) " +
+            "  if water > capacity - 1 then " +
+            "    if leak_rate <= 0 or capacity < 1 then return false, -1 end " +
+            "    return false, last_leak + math.ceil((water - capacity + 1) * 1000 / leak_rate) - now " +
+            "  end " +
+            "  water = water + 1 " +
+            "  return true, math.floor(capacity - water), function() " +
+            "    layout.save(k, water, last_leak, ttl(leak_rate, water)) " +
+            "  end " +
+            "end " +
+            "checks.SLIDING_WINDOW_LOG = function(k, a) " +
+            "  local capacity, refill_rate, now, member = tonumber(a[1]), tonumber(a[2]), tonumber(a[3]), a[4] " +
+            "  local window = nil " +
+            "  if refill_rate > 0 then window = math.max(1, math.floor(capacity * 1000 / refill_rate)) end " +
+            "  if window then redis.call('zremrangebyscore', k[1], '-inf', now - window) end " +
+            "  local count = redis.call('zcard', k[1]) " +
+            "  if count >= capacity then " +
+            "    if not window or capacity <= 0 then return false, -1 end " +
+            "    local oldest = redis.call('zrange', k[1], count - capacity, count - capacity, 'WITHSCORES') " +
+            "    return false, tonumber(oldest[2]) + window - now " +
+            "  end " +
+            "  return true, capacity - count - 1, function() " +
+            "    redis.call('zadd', k[1], now, member) " +
+            "    if window then redis.call('pexpire', k[1], window) end " +
+            "  end " +
+            "end " +
+            "checks.SLIDING_WINDOW_COUNTER = function(k, a) " +
+            "  local capacity, refill_rate, now, window = tonumber(a[1]), tonumber(a[2]), tonumber(a[3]), tonumber(a[4]) " +
+            "  local index = math.floor(now / window) " +
+            "  local state = redis.call('hmget', k[1], 'idx', 'curr', 'prev') " +
+            "  local state_index = tonumber(state[1]) " +
+            "  local curr = tonumber(state[2]) or 0 " +
+            "  local prev = tonumber(state[3]) or 0 " +
+            "  if state_index == index - 1 then " +
+            "    prev = curr " +
+            "    curr = 0 " +
+            "  elseif state_index ~= index then " +
+            "    prev = 0 " +
+            "    curr = 0 " +
+            "  end " +
+            "  local estimated = prev * (window - (now - index * window)) / window + curr " +
+            "  if estimated + 1 > capacity then " +
+            "    if refill_rate <= 0 then return false, -1 end " +
+            "    local wait " +
+            "    if curr + 1 > capacity then " +
+            "      local next_elapsed = 0 " +
+            "      if curr > 0 then next_elapsed = math.max(0, window * (1 - (capacity - 1) / curr)) end " +
+            "      wait = (index + 1) * window - now + next_elapsed " +
+            "    else " +
+            "      wait = (index + 1) * window - (capacity - 1 - curr) * window / prev - now " +
+            "    end " +
+            "    return false, math.max(1, math.ceil(wait)) " +
+            "  end " +
+            "  return true, math.floor(capacity - estimated - 1), function() " +
+            "    redis.call('hset', k[1], 'idx', index, 'curr', curr + 1, 'prev', prev) " +
+            "    if refill_rate > 0 then redis.call('pexpire', k[1], 2 * window) end " +
+            "  end " +
+            "end " +
+            "checks.GCRA = function(k, a) " +
+            "  local now = tonumber(a[3]) * 1000 " +
+            "  local interval, burst = tonumber(a[4]), tonumber(a[5]) " +
+            "  local tat = tonumber(redis.call('get', k[1]) or now) " +
+            "  local new_tat = math.max(tat, now) + interval " +
+            "  local backlog = new_tat - now " +
+            "  if backlog > burst then return false, math.ceil((backlog - burst) / 1000) end " +
+            "  return true, math.floor((burst - backlog) / interval), function() " +
+            "    redis.call('set', k[1], string.format('%.0f', new_tat), 'px', math.ceil(backlog / 1000) + 1) " +
+            "  end " +
+            "end " +
+            "local key_at, arg_at = 1, 2 " +
+            "local commits = {} " +
+            "local remaining, retry_after, denied_tier, denied_retry = nil, 0, 0, 0 " +
+            "for tier = 1, tonumber(ARGV[1]) do " +
+            "  local nkeys, nargs = tonumber(ARGV[arg_at + 2]), tonumber(ARGV[arg_at + 3]) " +
+            "  local ok, value, commit = checks[ARGV[arg_at]]({unpack(KEYS, key_at, key_at + nkeys - 1)}, " +
+            "      {unpack(ARGV, arg_at + 4, arg_at + 3 + nargs)}, layouts[ARGV[arg_at + 1]]) " +
+            "  key_at = key_at + nkeys " +
+            "  arg_at = arg_at + 4 + nargs " +
+            "  if ok then " +
+            "    commits[#commits + 1] = commit " +
+            "    if remaining == nil or value < remaining then remaining = value end " +
+            "  else " +
+            "    if denied_tier == 0 then " +
+            "      denied_tier = tier " +
+            "      denied_retry = value " +
+            "    end " +
+            "    if value < 0 then retry_after = -1 elseif retry_after >= 0 and value > retry_after then retry_after = value end " +
+            "  end " +
+            "end " +
+            "if denied_tier > 0 then return {0, retry_after, denied_tier, denied_retry} end " +
+            "for _, commit in ipairs(commits) do commit() end " +
+            "return {1, remaining}";
+
+    // Returns ARGV[5] unused tokens, refills, then reserves up to ARGV[4] tokens. Replies with the number
+    // granted and the millis until the bucket holds a token again (0: it still does, -1: never)
+    private static final String LEASE_TOKEN_BUCKET_BODY =
+            "local capacity = tonumber(ARGV[1]) " +
+            "local refill_rate = tonumber(ARGV[2]) " +
+            "local now = tonumber(ARGV[3]) " +
+            LUA_TOKEN_TTL +
+            LUA_REFILL +
+            "local requested = tonumber(ARGV[4]) " +
+            "local returned = tonumber(ARGV[5]) " +
+            "local tokens, last_refill = layout.load(KEYS, capacity, now) " +
+            "tokens, last_refill = refill(tokens + returned, last_refill, now, refill_rate, capacity) " +
+            "local granted = math.max(0, math.min(math.floor(tokens), requested)) " +
+            "tokens = tokens - granted " +
+            "layout.save(KEYS, tokens, last_refill, ttl_for(tokens)) " +
+            "local wait = 0 " +
+            "if tokens < 1 then " +
+            "  if refill_rate <= 0 or capacity < 1 then wait = -1 " +
+            "  else wait = last_refill + math.ceil((1 - tokens) * 1000 / refill_rate) - now end " +
+            "end " +
+            "return {granted, wait}";
+
+    private static final String LEASE_TOKEN_BUCKET_LUA =
+            LUA_STORE + LUA_LAYOUTS + "local layout = legacy " + LEASE_TOKEN_BUCKET_BODY;
+    private static final String LEASE_TOKEN_BUCKET_HASH_LUA =
+            LUA_STORE + LUA_LAYOUTS + "local layout = hash " + LEASE_TOKEN_BUCKET_BODY;
+
+    private static final String LEASE_LEAKY_BUCKET_BODY =
+            "local capacity = tonumber(ARGV[1]) " +
+            "local leak_rate = tonumber(ARGV[2]) " +
+            "local now = tonumber(ARGV[3]) " +
+            LUA_WATER_TTL +
+            LUA_REFILL +
+            "local requested = tonumber(ARGV[4]) " +
+            "local returned = tonumber(ARGV[5]) " +
+            "local water, last_leak = layout.load(KEYS, 0, now) " +
+            "water, last_leak = leak(water - returned, last_leak, now, leak_rate) " +
+            "local granted = math.max(0, math.min(math.floor(capacity - water), requested)) " +
+            "water = water + granted " +
+            "layout.save(KEYS, water, last_leak, ttl_for(water)) " +
+            "local wait = 0 " +
+            "if water > capacity - 1 then " +
+            "  if leak_rate <= 0 or capacity < 1 then wait = -1 " +
+            "  else wait = last_leak + math.ceil((water - capacity + 1) * 1000 / leak_rate) - now end " +
+            "end " +
+            "return {granted, wait}";
+
+    private static final String LEASE_LEAKY_BUCKET_LUA =
+            LUA_STORE + LUA_LAYOUTS + "local layout = legacy " + LEASE_LEAKY_BUCKET_BODY;
+    private static final String LEASE_LEAKY_BUCKET_HASH_LUA =
+            LUA_STORE + LUA_LAYOUTS + "local layout = hash " + LEASE_LEAKY_BUCKET_BODY;
+
+    // Reconciliation of fallback usage: the last argument of each script is the number of tokens to debit.
+    // A debit takes at most what the bucket holds (never past empty), and replies with the number taken
+    private static final String DEBIT_TOKEN_BUCKET_BODY =
+            "local capacity = tonumber(ARGV[1]) " +
+            "local refill_rate = tonumber(ARGV[2]) " +
+            "local now = tonumber(ARGV[3]) " +
+            "local debit = tonumber(ARGV[4]) " +
+            LUA_TOKEN_TTL +
+            LUA_REFILL +
+            "local tokens, last_refill = layout.load(KEYS, capacity, now) " +
+            "tokens, last_refill = refill(tokens, last_refill, now, refill_rate, capacity) " +
+            "local taken = math.min(debit, math.max(0, math.floor(tokens))) " +
+            "if taken <= 0 then return 0 end " +
+            "tokens = tokens - taken " +
+            "layout.save(KEYS, tokens, last_refill, ttl_for(tokens)) " +
+            "return taken";
+
+    private static final String DEBIT_TOKEN_BUCKET_LUA =
+            LUA_STORE + LUA_LAYOUTS + "local layout = legacy " + DEBIT_TOKEN_BUCKET_BODY;
+    private static final String DEBIT_TOKEN_BUCKET_HASH_LUA =
+            LUA_STORE + LUA_LAYOUTS + "local layout = hash " + DEBIT_TOKEN_BUCKET_BODY;
+
+    private static final String DEBIT_LEAKY_BUCKET_BODY =
+            "local capacity = tonumber(ARGV[1]) " +
+            "local leak_rate = tonumber(ARGV[2]) " +
+            "local now = tonumber(ARGV[3]) " +
+            "local debit = tonumber(ARGV[4]) " +
+            LUA_WATER_TTL +
+            LUA_REFILL +
+            "local water, last_leak = layout.load(KEYS, 0, now) " +
+            "water, last_leak = leak(water, last_leak, now, leak_rate) " +
+            "local taken = math.min(debit, math.max(0, math.floor(capacity - water))) " +
+            "if taken <= 0 then return 0 end " +
+            "water = water + taken " +
+            "layout.save(KEYS, water, last_leak, ttl_for(water)) " +
+            "return taken";
+
+    private static final String DEBIT_LEAKY_BUCKET_LUA =
+            LUA_STORE + LUA_LAYOUTS + "local layout = legacy " + DEBIT_LEAKY_BUCKET_BODY;
+    private static final String DEBIT_LEAKY_BUCKET_HASH_LUA =
+            LUA_STORE + LUA_LAYOUTS + "local layout = hash " + DEBIT_LEAKY_BUCKET_BODY;
+
+    private static final String DEBIT_SLIDING_WINDOW_LOG_LUA =
+            "local log_key = KEYS[1] " +
+            "local capacity = tonumber(ARGV[1]) " +
+            "local refill_rate = tonumber(ARGV[2]) " +
+            "local now = tonumber(ARGV[3]) " +
+            "local member = ARGV[4] " +
+            "local debit = tonumber(ARGV[5]) " +
+            "local window = nil " +
+            "if refill_rate > 0 then window = math.max(1, math.floor(capacity * 1000 / refill_rate)) end " +
+            "if window then redis.call('zremrangebyscore', log_key, '-inf', now - window) end " +
+            "local taken = math.min(debit, math.max(0, capacity - redis.call('zcard', log_key))) " +
+            "if taken <= 0 then return 0 end " +
+            "local entries = {} " +
+            "for i = 1, taken do " +
+            "  entries[#entries + 1] = now " +
+            "  entries[#entries + 1] = member .. '#' .. i " +
+            "  if #entries >= 512 or i == taken then " +
+            "    redis.call('zadd', log_key, unpack(entries)) " +
+            "    entries = {} " +
+            "  end " +
+            "end " +
+            "if window then redis.call('pexpire', log_key, window) end " +
+            "return taken";
+
+    private static final String DEBIT_SLIDING_WINDOW_COUNTER_LUA =
+            "local window_key = KEYS[1] " +
+            "local capacity = tonumber(ARGV[1]) " +
+            "local refill_rate = tonumber(ARGV[2]) " +
+            "local now = tonumber(ARGV[3]) " +
+            "local window = tonumber(ARGV[4]) " +
+            "local debit = tonumber(ARGV[5]) " +
+            "local index = math.floor(now / window) " +
+            "local state = redis.call('hmget', window_key, 'idx', 'curr', 'prev') " +
+            "local state_index = tonumber(state[1]) " +
+            "local curr = tonumber(state[2]) or 0 " +
+            "local prev = tonumber(state[3]) or 0 " +
+            "if state_index == index - 1 then " +
+            "  prev = curr " +
+            "  curr = 0 " +
+            "elseif state_index ~= index then " +
+            "  prev = 0 " +
+            "  curr = 0 " +
+            "end " +
+            "local estimated = prev * (window - (now - index * window)) / window + curr " +
+            "local taken = math.min(debit, math.max(0, math.floor(capacity - estimated))) " +
+            "if taken <= 0 then return 0 end " +
+            "redis.call('hset', window_key, 'idx', index, 'curr', curr + taken, 'prev', prev) " +
+            "if refill_rate > 0 then redis.call('pexpire', window_key, 2 * window) end " +
+            "return taken";
+
+    private static final String DEBIT_GCRA_LUA =
+            "local tat_key = KEYS[1] " +
+            "local now = tonumber(ARGV[3]) * 1000 " +
+            "local interval = tonumber(ARGV[4]) " +
+            "local burst = tonumber(ARGV[5]) " +
+            "local debit = tonumber(ARGV[6]) " +
+            "local tat = math.max(tonumber(redis.call('get', tat_key) or now), now) " +
+            "local taken = math.min(debit, math.max(0, math.floor((burst - (tat - now)) / interval))) " +
+            "if taken <= 0 then return 0 end " +
+            "tat = tat + taken * interval " +
+            "redis.call('set', tat_key, string.format('%.0f', tat), 'px', math.ceil((tat - now) / 1000) + 1) " +
+            "return taken";
 
     private final Counter successfulAcquireCounter;
     private final Counter failedAcquireCounter;
-    private final Timer redisLatencyTimer;
+    private final Counter denyCacheHits;
+    private final Counter denyCacheMisses;
+    private final Counter reconciledPermits;
+    // Latency timer and circuit breaker of each shard, by shard index
+    private final Timer[] redisLatencyTimers;
+    private final RedisCircuitBreaker[] circuitBreakers;
+    // Thrown, one shared instance per shard, for every call refused while its circuit is open
+    private final CircuitOpenException[] circuitOpen;
+    // Time to borrow a pooled connection, by shard index
+    private final Timer[] poolWaitTimers;
+    // By type ordinal (or CHAIN_TIMERS) and backend ordinal
+    private final Timer[][] decisionTimers;
+    // By FallbackReason ordinal
+    private final Counter[] fallbackCounters;
+    private final Counter scriptRetries;
     private final MeterRegistry meterRegistry;
+    private final boolean compactLayout;
+    // false: no Redis at all, every decision is made in memory
+    private final boolean redisEnabled;
+
+    public RateLimiterService(MeterRegistry meterRegistry) {
+        this(meterRegistry, "localhost", 6379, LocalRateLimiter.DEFAULT_MAX_BUCKETS, false, false);
+    }
 
     // Add an @Autowired constructor for Spring
     @Autowired
-    public RateLimiterService(MeterRegistry meterRegistry) {
-        this(meterRegistry, "localhost", 6379);
+    public RateLimiterService(MeterRegistry meterRegistry,
+                              @Value("${rate.limiter.redis.nodes:localhost:6379}") String redisNodes,
+                              @Value("${rate.limiter.redis.timeout-ms:100}") int redisTimeoutMs,
+                              @Value("${rate.limiter.redis.pool.max-total:8}") int poolMaxTotal,
+                              @Value("${rate.limiter.redis.pool.max-idle:8}") int poolMaxIdle,
+                              @Value("${rate.limiter.redis.pool.min-idle:0}") int poolMinIdle,
+                              @Value("${rate.limiter.local.max-buckets:100000}") int maxLocalBuckets,
+                              @Value("${rate.limiter.redis.compact-layout:false}") boolean compactLayout,
+                              @Value("${rate.limiter.local.primitive-table:false}") boolean primitiveLocalTable,
+                              @Value("${rate.limiter.redis.enabled:true}") boolean redisEnabled,
+                              @Value("${rate.limiter.peers.port:7946}") int peerPort,
+                              @Value("${rate.limiter.peers.nodes:}") String peers) {
+        this(meterRegistry, RedisShards.parseNodes(redisNodes),
+                poolConfig(poolMaxTotal, poolMaxIdle, poolMinIdle, redisTimeoutMs), redisTimeoutMs, maxLocalBuckets,
+                compactLayout, primitiveLocalTable, redisEnabled, peerPort, PeerSync.parsePeers(peers));
     }
 
     public RateLimiterService(MeterRegistry meterRegistry, String redisHost, int redisPort) {
+        this(meterRegistry, redisHost, redisPort, LocalRateLimiter.DEFAULT_MAX_BUCKETS);
+    }
+
+    public RateLimiterService(MeterRegistry meterRegistry, String redisHost, int redisPort, int maxLocalBuckets) {
+        this(meterRegistry, redisHost, redisPort, maxLocalBuckets, false);
+    }
+
+    /**
+     * @param compactLayout store token and leaky buckets as one two-field hash instead of two
+     *                      string keys; buckets still in the old layout are read until rewritten
+     */
+    public RateLimiterService(MeterRegistry meterRegistry, String redisHost, int redisPort, int maxLocalBuckets,
+                              boolean compactLayout) {
+        this(meterRegistry, redisHost, redisPort, maxLocalBuckets, compactLayout, false);
+    }
+
+    /**
+     * @param primitiveLocalTable keep the in-memory fallback's buckets in a preallocated
+     *                            {@link BucketTable} sized for {@code maxLocalBuckets}
+     */
+    public RateLimiterService(MeterRegistry meterRegistry, String redisHost, int redisPort, int maxLocalBuckets,
+                              boolean compactLayout, boolean primitiveLocalTable) {
+        this(meterRegistry, Collections.singletonList(new HostAndPort(redisHost, redisPort)),
+                poolConfig(8, 8, 0, DEFAULT_REDIS_TIMEOUT_MS), DEFAULT_REDIS_TIMEOUT_MS, maxLocalBuckets,
+                compactLayout, primitiveLocalTable);
+    }
+
+    /**
+     * @param redisNodes     standalone Redis nodes; buckets are spread over them by a consistent-hash
+     *                       ring, and each node gets its own pool, circuit breaker and latency timer
+     * @param poolConfig     settings for each node's pool, see {@link #poolConfig}
+     * @param redisTimeoutMs connect and read timeout of each Redis call
+     */
+    public RateLimiterService(MeterRegistry meterRegistry, List<HostAndPort> redisNodes, JedisPoolConfig poolConfig,
+                              int redisTimeoutMs, int maxLocalBuckets, boolean compactLayout,
+                              boolean primitiveLocalTable) {
+        this(meterRegistry, redisNodes, poolConfig, redisTimeoutMs, maxLocalBuckets, compactLayout,
+                primitiveLocalTable, true, 0, Collections.emptyList());
+    }
+
+    /**
+     * @param redisEnabled {@code false} never calls Redis; every decision is made by the in-memory engine
+     * @param peerPort     UDP port this node exchanges usage with its peers on ({@code 0}: any free port)
+     * @param peers        other nodes of a peer cluster; when not empty, in-memory decisions account for
+     *                     the usage those nodes report, see {@link PeerSync}
+     */
+    public RateLimiterService(MeterRegistry meterRegistry, List<HostAndPort> redisNodes, JedisPoolConfig poolConfig,
+                              int redisTimeoutMs, int maxLocalBuckets, boolean compactLayout,
+                              boolean primitiveLocalTable, boolean redisEnabled, int peerPort,
+                              List<InetSocketAddress> peers) {
         this.meterRegistry = meterRegistry;
-        this.jedisPool = new JedisPool(redisHost, redisPort);
+        this.compactLayout = compactLayout;
+        this.redisEnabled = redisEnabled;
+        this.maxBucketConfigs = maxLocalBuckets;
+        this.shards = new RedisShards(redisNodes, poolConfig, redisTimeoutMs);
+        this.backgroundExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "rate-limiter-background");
+            t.setDaemon(true);
+            return t;
+        });
+        // Over-budget sweeps run on the background thread, never on a request thread
+        this.localLimiter = new LocalRateLimiter(Runtime.getRuntime().availableProcessors(), maxLocalBuckets,
+                primitiveLocalTable, backgroundExecutor);
         this.successfulAcquireCounter = meterRegistry.counter("ratelimiter_acquire_success");
         this.failedAcquireCounter = meterRegistry.counter("ratelimiter_acquire_failed");
-        this.redisLatencyTimer = meterRegistry.timer("ratelimiter_redis_latency");
+        this.denyCacheHits = meterRegistry.counter("ratelimiter_deny_cache", "result", "hit");
+        this.denyCacheMisses = meterRegistry.counter("ratelimiter_deny_cache", "result", "miss");
+        Gauge.builder("ratelimiter_deny_cache_size", denyCache, DenyCache::size).register(meterRegistry);
+        this.reconciledPermits = meterRegistry.counter("ratelimiter_fallback_reconciled_permits");
+        Gauge.builder("ratelimiter_fallback_pending_keys", fallbackDeltas, FallbackDeltas::size).register(meterRegistry);
+        Gauge.builder("ratelimiter_fallback_pending_permits", fallbackDeltas, FallbackDeltas::pendingPermits)
+                .register(meterRegistry);
+        FunctionCounter.builder("ratelimiter_fallback_dropped_permits", fallbackDeltas, FallbackDeltas::droppedPermits)
+                .register(meterRegistry);
+        this.decisionTimers = new Timer[CHAIN_TIMERS + 1][Backend.values().length];
+        for (int row = 0; row < decisionTimers.length; row++) {
+            String type = row == CHAIN_TIMERS ? "chain" : KEY_NAMES[row];
+            for (Backend backend : Backend.values()) {
+                decisionTimers[row][backend.ordinal()] = Timer.builder("ratelimiter_decision_latency")
+                        .tags("type", type, "backend", backend.name().toLowerCase())
+                        .serviceLevelObjectives(LATENCY_BUCKETS)
+                        .register(meterRegistry);
+            }
+        }
+        this.fallbackCounters = new Counter[FallbackReason.values().length];
+        for (FallbackReason reason : FallbackReason.values()) {
+            fallbackCounters[reason.ordinal()] = meterRegistry.counter("ratelimiter_fallback_decisions",
+                    "reason", reason.name().toLowerCase());
+        }
+        this.scriptRetries = meterRegistry.counter("ratelimiter_redis_retries", "reason", "noscript");
+        for (int rank = 1; rank <= HotKeys.DEFAULT_K; rank++) {
+            int r = rank;
+            Gauge.builder("ratelimiter_top_key_decisions", hotKeys, keys -> keys.estimateAtRank(r))
+                    .tags("list", "hot", "rank", String.valueOf(rank)).register(meterRegistry);
+            Gauge.builder("ratelimiter_top_key_decisions", deniedKeys, keys -> keys.estimateAtRank(r))
+                    .tags("list", "denied", "rank", String.valueOf(rank)).register(meterRegistry);
+        }
+        this.redisLatencyTimers = new Timer[shards.size()];
+        this.poolWaitTimers = new Timer[shards.size()];
+        this.circuitBreakers = new RedisCircuitBreaker[shards.size()];
+        this.circuitOpen = new CircuitOpenException[shards.size()];
+        this.asyncPipelines = new AsyncAcquirePipeline[shards.size()];
+        for (RedisShards.Shard shard : shards.all()) {
+            int index = shard.index;
+            redisLatencyTimers[index] = meterRegistry.timer("ratelimiter_redis_latency", "shard", shard.name);
+            poolWaitTimers[index] = Timer.builder("ratelimiter_redis_pool_wait")
+                    .tag("shard", shard.name)
+                    .serviceLevelObjectives(LATENCY_BUCKETS)
+                    .register(meterRegistry);
+            Gauge.builder("ratelimiter_redis_pool_connections", shard.pool, JedisPool::getNumActive)
+                    .tags("shard", shard.name, "state", "active").register(meterRegistry);
+            Gauge.builder("ratelimiter_redis_pool_connections", shard.pool, JedisPool::getNumIdle)
+                    .tags("shard", shard.name, "state", "idle").register(meterRegistry);
+            Gauge.builder("ratelimiter_redis_pool_waiters", shard.pool, JedisPool::getNumWaiters)
+                    .tag("shard", shard.name).register(meterRegistry);
+            circuitOpen[index] = new CircuitOpenException("Redis circuit breaker is open for " + shard.name);
+            circuitBreakers[index] = new RedisCircuitBreaker(CIRCUIT_FAILURE_THRESHOLD, CIRCUIT_OPEN_MS, (from, to) -> {
+                meterRegistry.counter("ratelimiter_redis_circuit_transitions", "shard", shard.name,
+                        "from", from.name().toLowerCase(), "to", to.name().toLowerCase()).increment();
+                if (to == RedisCircuitBreaker.State.CLOSED) {
+                    // Debit the outage's usage right away rather than at the next scheduled run
+                    scheduleReconcile();
+                }
+            });
+            asyncPipelines[index] = new AsyncAcquirePipeline(ASYNC_FLUSHERS, ASYNC_QUEUE_CAPACITY, ASYNC_MAX_BATCH,
+                    batch -> flushAsyncBatch(index, batch));
+            Gauge.builder("ratelimiter_async_pending", asyncPipelines[index], AsyncAcquirePipeline::pending)
+                    .tag("shard", shard.name).register(meterRegistry);
+            Gauge.builder("ratelimiter_redis_circuit_state", circuitBreakers[index], b -> b.getState().ordinal())
+                    .tag("shard", shard.name)
+                    .description("0 = closed, 1 = open, 2 = half-open")
+                    .register(meterRegistry);
+        }
         configMap.put("global", new RateLimiterConfig(10, 1, RateLimiterType.TOKEN_BUCKET));
+        Counter peerUsagePermits = meterRegistry.counter("ratelimiter_peer_usage_applied_permits");
+        // Applied on the peer sync receiver thread, never on a request thread
+        this.peerSync = peers.isEmpty() ? null : new PeerSync(peerPort, peers, PEER_SYNC_INTERVAL_MS,
+                (key, config, permits) -> peerUsagePermits.increment(
+                        localLimiter.debit(key, config, System.currentTimeMillis(), permits)));
+        this.leaseRenewers = Executors.newFixedThreadPool(LEASE_RENEWERS, r -> {
+            Thread t = new Thread(r, "rate-limiter-lease-renewer");
+            t.setDaemon(true);
+            return t;
+        });
+        backgroundExecutor.scheduleAtFixedRate(this::returnExpiredLeases, LEASE_TTL_MS, LEASE_TTL_MS, TimeUnit.MILLISECONDS);
+        if (peerSync != null) {
+            backgroundExecutor.scheduleAtFixedRate(() -> peerSync.flush(System.currentTimeMillis()),
+                    PEER_SYNC_INTERVAL_MS, PEER_SYNC_INTERVAL_MS, TimeUnit.MILLISECONDS);
+            Gauge.builder("ratelimiter_peer_members", peerSync, p -> p.liveMembers(System.currentTimeMillis()))
+                    .register(meterRegistry);
+            Gauge.builder("ratelimiter_peer_unsent_permits", peerSync, PeerSync::unsentPermits).register(meterRegistry);
+            FunctionCounter.builder("ratelimiter_peer_datagrams", peerSync, PeerSync::getSentDatagrams)
+                    .tag("direction", "sent").register(meterRegistry);
+            FunctionCounter.builder("ratelimiter_peer_datagrams", peerSync, PeerSync::getReceivedDatagrams)
+                    .tag("direction", "received").register(meterRegistry);
+            FunctionCounter.builder("ratelimiter_peer_datagrams", peerSync, PeerSync::getRejectedDatagrams)
+                    .tag("direction", "rejected").register(meterRegistry);
+        }
+        backgroundExecutor.scheduleWithFixedDelay(this::reconcileFallbackUsage,
+                RECONCILE_INTERVAL_MS, RECONCILE_INTERVAL_MS, TimeUnit.MILLISECONDS);
+        backgroundExecutor.scheduleAtFixedRate(() -> localLimiter.evictIdle(System.currentTimeMillis()),
+                LOCAL_EVICT_INTERVAL_MS, LOCAL_EVICT_INTERVAL_MS, TimeUnit.MILLISECONDS);
+        backgroundExecutor.scheduleAtFixedRate(() -> {
+            hotKeys.decay();
+            deniedKeys.decay();
+        }, HOT_KEYS_DECAY_MS, HOT_KEYS_DECAY_MS, TimeUnit.MILLISECONDS);
+        Gauge.builder("ratelimiter_local_buckets", localLimiter, LocalRateLimiter::size).register(meterRegistry);
+        FunctionCounter.builder("ratelimiter_local_evictions", localLimiter, LocalRateLimiter::getIdleEvictions)
+                .tag("reason", "idle").register(meterRegistry);
+        FunctionCounter.builder("ratelimiter_local_evictions", localLimiter, LocalRateLimiter::getCapacityEvictions)
+                .tag("reason", "capacity").register(meterRegistry);
+    }
+
+    // Hands every outstanding leased token back to Redis before the node goes away
+    @PreDestroy
+    public void shutdown() {
+        backgroundExecutor.shutdownNow();
+        leaseRenewers.shutdownNow();
+        for (AsyncAcquirePipeline asyncPipeline : asyncPipelines) {
+            for (AsyncAcquirePipeline.Pending pending : asyncPipeline.shutdown()) {
+                pending.future.complete(acquireInMemoryWithResult(pending.key, pending.config,
+                        System.currentTimeMillis(), pending.permits, NO_RESERVATION));
+            }
+        }
+        reconcileFallbackUsage();
+        long now = System.currentTimeMillis();
+        for (Map.Entry<String, TokenLease> entry : leases.entrySet()) {
+            TokenLease lease = entry.getValue();
+            synchronized (lease) {
+                int unused = lease.drain();
+                if (unused > 0) {
+                    try {
+                        returnLeasedTokens(entry.getKey(), lease, unused, now);
+                    } catch (Exception ignored) {
+                        // Redis is gone; the bucket refills on its own
+                    }
+                }
+            }
+        }
+        leases.clear();
+        if (peerSync != null) {
+            peerSync.flush(System.currentTimeMillis());
+            peerSync.close();
+        }
+        shards.close();
+    }
+
+    /**
+     * Settings for each Redis node's connection pool. A caller waits at most {@code timeoutMs}
+     * for a pooled connection, the same budget as the call itself.
+     */
+    public static JedisPoolConfig poolConfig(int maxTotal, int maxIdle, int minIdle, int timeoutMs) {
+        JedisPoolConfig poolConfig = new JedisPoolConfig();
+        poolConfig.setMaxTotal(maxTotal);
+        poolConfig.setMaxIdle(maxIdle);
+        poolConfig.setMinIdle(minIdle);
+        poolConfig.setMaxWait(Duration.ofMillis(timeoutMs));
+        return poolConfig;
     }
 
+    /**
+     * Sets the config for an exact key, or for every key matching a pattern such as
+     * {@code api:*} or {@code tenant:*:premium} (see {@link ConfigRules}). An exact key's
+     * config takes precedence over any rule.
+     */
     public void setConfig(String key, RateLimiterConfig config) {
+        if (ConfigRules.isPattern(key)) {
+            configRules.put(key, config);
+            // Any number of keys may now resolve differently
+            denyCache.clear();
+            return;
+        }
         configMap.put(key, config);
+        // A cached denial was computed under the old limits
+        if ("global".equals(key)) {
+            denyCache.clear();
+        } else {
+            denyCache.invalidate(key);
+        }
+    }
+
+    /**
+     * Removes the config set for an exact key, or the rule set for a pattern, so the key falls
+     * back to the next matching rule or to {@code global}. Returns false if there was none.
+     *
+     * @throws IllegalArgumentException for {@code global}, which every other key falls back to
+     */
+    public boolean removeConfig(String key) {
+        if ("global".equals(key)) {
+            throw new IllegalArgumentException("The global config cannot be removed");
+        }
+        if (ConfigRules.isPattern(key)) {
+            if (!configRules.remove(key)) {
+                return false;
+            }
+            denyCache.clear();
+            return true;
+        }
+        if (configMap.remove(key) == null) {
+            return false;
+        }
+        denyCache.invalidate(key);
+        return true;
     }
 
     public boolean acquire(String key) {
-        RateLimiterConfig config = configMap.getOrDefault(key, configMap.get("global"));
-        String redisKey = buildRedisKey(config.getType().name().toLowerCase(), key);
+        return acquireWithResult(key).isAllowed();
+    }
+
+    /** Acquires {@code permits} tokens at once, or none of them. */
+    public boolean acquire(String key, int permits) {
+        return acquireWithResult(key, permits).isAllowed();
+    }
+
+    /** Like {@link #acquire(String)}, but also reports how long to wait before retrying when denied. */
+    public AcquireResult acquireWithResult(String key) {
+        return acquireWithResult(key, getConfig(key));
+    }
+
+    /**
+     * Like {@link #acquire(String, int)}, but also reports the tokens left, how long until
+     * {@code permits} tokens are available when denied, and how long until the bucket is full.
+     */
+    public AcquireResult acquireWithResult(String key, int permits) {
+        return acquirePermits(key, getConfig(key), permits, NO_RESERVATION);
+    }
+
+    /**
+     * Acquires one token from the bucket {@code key} using the given limits instead of the
+     * ones configured for {@code key}, so many buckets can share one named config.
+     */
+    public AcquireResult acquireWithResult(String key, RateLimiterConfig config) {
+        recordBucketConfig(key, config);
+        return acquirePermits(key, config, 1, NO_RESERVATION);
+    }
+
+    // A map read per acquire once recorded; past the budget an arbitrary entry makes room
+    private void recordBucketConfig(String key, RateLimiterConfig config) {
+        if (bucketConfigs.get(key) == config) {
+            return;
+        }
+        if (config == getConfig(key)) {
+            bucketConfigs.remove(key);
+            return;
+        }
+        if (bucketConfigs.size() >= maxBucketConfigs) {
+            Iterator<String> victims = bucketConfigs.keySet().iterator();
+            if (victims.hasNext()) {
+                victims.next();
+                victims.remove();
+            }
+        }
+        bucketConfigs.put(key, config);
+    }
+
+    /**
+     * Books {@code permits} tokens even if they have not refilled yet, as long as they will
+     * have within {@code maxWaitMillis}. When allowed, {@link AcquireResult#getRetryAfterMillis()}
+     * is how long the caller must wait before using them; requests after this one queue behind
+     * it. When denied, nothing is booked. Token buckets, leaky buckets and GCRA can book ahead;
+     * the sliding windows only admit what is available now.
+     *
+     * @param maxWaitMillis longest acceptable wait; negative means one full refill of the bucket
+     */
+    public AcquireResult reserve(String key, int permits, long maxWaitMillis) {
+        RateLimiterConfig config = getConfig(key);
+        return acquirePermits(key, config, permits, maxWaitMillis >= 0 ? maxWaitMillis : fullRefillMillis(config));
+    }
+
+    private AcquireResult acquirePermits(String key, RateLimiterConfig config, int permits, long maxWaitMillis) {
+        checkPermits(permits);
+        long start = System.nanoTime();
+        boolean reserving = maxWaitMillis != NO_RESERVATION;
         long now = System.currentTimeMillis();
-        boolean result;
+        if (usesLease(config) && permits == 1 && !reserving) {
+            return decided(key, config, Backend.LOCAL, start, acquireLeased(key, config, now));
+        }
+        if (!redisEnabled) {
+            return decided(key, config, Backend.LOCAL, start,
+                    acquireInMemoryWithResult(key, config, now, permits, maxWaitMillis));
+        }
+        // A reservation may still book past a cached denial
+        AcquireResult cached = reserving ? null : cachedDenial(key, now);
+        if (cached != null) {
+            return decided(key, config, Backend.LOCAL, start, cached);
+        }
+        AcquireResult result;
         try {
-            result = redisLatencyTimer.record(() -> {
-                // Try Redis with retry
-                for (int i = 0; i < REDIS_RETRY_COUNT; i++) {
-                    try (Jedis jedis = jedisPool.getResource()) {
-                        if (config.getType() == RateLimiterType.TOKEN_BUCKET) {
-                            Object luaResult = jedis.eval(TOKEN_BUCKET_LUA,
-                                    java.util.Arrays.asList(redisKey + ":tokens", redisKey + ":lastRefill"),
-                                    java.util.Arrays.asList(
-                                            String.valueOf(config.getCapacity()),
-                                            String.valueOf(config.getRefillRate()),
-                                            String.valueOf(now)
-                                    ));
-                            return Long.valueOf(1).equals(luaResult);
-                        } else {
-                            Object luaResult = jedis.eval(LEAKY_BUCKET_LUA,
-                                    java.util.Arrays.asList(redisKey + ":water", redisKey + ":lastLeak"),
-                                    java.util.Arrays.asList(
-                                            String.valueOf(config.getCapacity()),
-                                            String.valueOf(config.getRefillRate()),
-                                            String.valueOf(now)
-                                    ));
-                            return Long.valueOf(1).equals(luaResult);
-                        }
-                    } catch (Exception ex) {
-                        // Retry on transient Redis errors
-                        try { Thread.sleep(REDIS_RETRY_DELAY_MS); } catch (InterruptedException ignored) {}
-                    }
+            result = callRedis(shards.indexFor(key), jedis -> toResult(evalScript(jedis, scriptFor(config),
+                    scriptKeys(config, key), scriptArgs(config, now, permits, maxWaitMillis))));
+        } catch (Exception ex) {
+            // Fallback to in-memory
+            return decided(key, config, fellBack(ex, 1), start,
+                    acquireInMemoryWithResult(key, config, now, permits, maxWaitMillis));
+        }
+        return decided(key, config, Backend.REDIS, start, recordRedisResult(key, result, permits, now));
+    }
+
+    private static void checkPermits(int permits) {
+        if (permits < 1) {
+            throw new IllegalArgumentException("permits must be at least 1, got " + permits);
+        }
+    }
+
+    // How long an empty bucket takes to refill completely; the default bound on a reservation's wait
+    private static long fullRefillMillis(RateLimiterConfig config) {
+        if (config.getRefillRate() <= 0) {
+            return 0;
+        }
+        return ((long) config.getCapacity() * 1000 + config.getRefillRate() - 1) / config.getRefillRate();
+    }
+
+    /**
+     * Non-blocking {@link #acquire(String)}. Concurrent calls are coalesced into shared
+     * Redis pipelines, so the calling thread never waits on Redis or on the connection pool.
+     */
+    public CompletableFuture<Boolean> acquireAsync(String key) {
+        return acquireWithResultAsync(key).thenApply(AcquireResult::isAllowed);
+    }
+
+    public CompletableFuture<AcquireResult> acquireWithResultAsync(String key) {
+        return acquireWithResultAsync(key, 1);
+    }
+
+    /** Non-blocking {@link #acquireWithResult(String, int)}, pipelined like {@link #acquireAsync(String)}. */
+    public CompletableFuture<AcquireResult> acquireWithResultAsync(String key, int permits) {
+        checkPermits(permits);
+        long start = System.nanoTime();
+        RateLimiterConfig config = getConfig(key);
+        if (usesLease(config) && permits == 1) {
+            return acquireLeasedAsync(key, config, System.currentTimeMillis())
+                    .thenApply(leased -> decided(key, config, Backend.LOCAL, start, leased));
+        }
+        int shard = shards.indexFor(key);
+        // Once the open timeout has passed, the next flush takes the half-open probe in callRedis
+        if (!redisEnabled || circuitBreakers[shard].isRefusing(System.currentTimeMillis())) {
+            Backend backend = Backend.LOCAL;
+            if (redisEnabled) {
+                fallbackCounters[FallbackReason.CIRCUIT_OPEN.ordinal()].increment();
+                backend = Backend.FALLBACK;
+            }
+            return CompletableFuture.completedFuture(decided(key, config, backend, start,
+                    acquireInMemoryWithResult(key, config, System.currentTimeMillis(), permits, NO_RESERVATION)));
+        }
+        AcquireResult cached = cachedDenial(key, System.currentTimeMillis());
+        if (cached != null) {
+            return CompletableFuture.completedFuture(decided(key, config, Backend.LOCAL, start, cached));
+        }
+        AsyncAcquirePipeline.Pending pending = new AsyncAcquirePipeline.Pending(key, config, permits, start);
+        if (!asyncPipelines[shard].submit(pending)) {
+            // Queue full: decide locally rather than queueing unbounded work
+            fallbackCounters[FallbackReason.QUEUE_FULL.ordinal()].increment();
+            return CompletableFuture.completedFuture(decided(key, config, Backend.FALLBACK, start,
+                    acquireInMemoryWithResult(key, config, System.currentTimeMillis(), permits, NO_RESERVATION)));
+        }
+        return pending.future;
+    }
+
+    // Runs on a shard's pipeline flusher thread: one EVALSHA per queued request, all in a single round trip
+    private void flushAsyncBatch(int shard, List<AsyncAcquirePipeline.Pending> batch) {
+        long now = System.currentTimeMillis();
+        List<String> keys = new ArrayList<>(batch.size());
+        List<RateLimiterConfig> configs = new ArrayList<>(batch.size());
+        int[] permits = new int[batch.size()];
+        for (int i = 0; i < batch.size(); i++) {
+            AsyncAcquirePipeline.Pending pending = batch.get(i);
+            keys.add(pending.key);
+            configs.add(pending.config);
+            permits[i] = pending.permits;
+        }
+        List<Object> luaResults;
+        try {
+            luaResults = callRedis(shard, jedis -> evalPipelined(jedis, keys, configs, permits, now));
+        } catch (Exception ex) {
+            // Fallback to in-memory
+            Backend backend = fellBack(ex, batch.size());
+            for (AsyncAcquirePipeline.Pending pending : batch) {
+                pending.future.complete(decided(pending.key, pending.config, backend, pending.startNanos,
+                        acquireInMemoryWithResult(pending.key, pending.config, now, pending.permits, NO_RESERVATION)));
+            }
+            return;
+        }
+        for (int i = 0; i < batch.size(); i++) {
+            AsyncAcquirePipeline.Pending pending = batch.get(i);
+            AcquireResult result = recordRedisResult(pending.key, toResult(luaResults.get(i)), pending.permits, now);
+            pending.future.complete(decided(pending.key, pending.config, Backend.REDIS, pending.startNanos, result));
+        }
+    }
+
+    /**
+     * Acquires one token for each of the given keys in a single Redis round trip per shard.
+     * Keys on a shard that cannot be reached fall back to the in-memory limiter.
+     *
+     * @throws IllegalArgumentException if a key is listed more than once, since the result
+     *         has one entry per key
+     */
+    public Map<String, Boolean> acquireAll(Collection<String> keys) {
+        Set<String> unique = new LinkedHashSet<>();
+        for (String key : keys) {
+            if (!unique.add(key)) {
+                throw new IllegalArgumentException("Key '" + key + "' is listed more than once");
+            }
+        }
+        Map<String, Boolean> results = new LinkedHashMap<>();
+        long start = System.nanoTime();
+        long now = System.currentTimeMillis();
+        List<String> pipelinedKeys = new ArrayList<>();
+        List<RateLimiterConfig> configs = new ArrayList<>();
+        for (String key : unique) {
+            RateLimiterConfig config = getConfig(key);
+            if (usesLease(config)) {
+                // Leased keys are mostly answered from memory and never need the pipeline
+                results.put(key, decided(key, config, Backend.LOCAL, start, acquireLeased(key, config, now)).isAllowed());
+            } else if (cachedDenial(key, now) != null) {
+                results.put(key, decided(key, config, Backend.LOCAL, start, false));
+            } else {
+                results.put(key, null);
+                pipelinedKeys.add(key);
+                configs.add(config);
+            }
+        }
+        List<List<Integer>> byShard = byShard(pipelinedKeys);
+        for (int shard = 0; shard < byShard.size(); shard++) {
+            if (byShard.get(shard).isEmpty()) {
+                continue;
+            }
+            List<String> shardKeys = select(pipelinedKeys, byShard.get(shard));
+            List<RateLimiterConfig> shardConfigs = select(configs, byShard.get(shard));
+            int[] permits = new int[shardKeys.size()];
+            Arrays.fill(permits, 1);
+            int index = shard;
+            List<Object> luaResults = null;
+            Backend backend = Backend.LOCAL;
+            if (redisEnabled) {
+                try {
+                    luaResults = callRedis(index, jedis -> evalPipelined(jedis, shardKeys, shardConfigs, permits, now));
+                } catch (Exception ex) {
+                    // Fallback to in-memory
+                    backend = fellBack(ex, shardKeys.size());
                 }
+            }
+            if (luaResults == null) {
+                for (int i = 0; i < shardKeys.size(); i++) {
+                    String key = shardKeys.get(i);
+                    results.put(key, decided(key, shardConfigs.get(i), backend, start,
+                            acquireInMemory(key, shardConfigs.get(i), now)));
+                }
+                continue;
+            }
+            for (int i = 0; i < shardKeys.size(); i++) {
+                String key = shardKeys.get(i);
+                results.put(key, decided(key, shardConfigs.get(i), Backend.REDIS, start,
+                        recordRedisResult(key, toResult(luaResults.get(i)), 1, now).isAllowed()));
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Acquires one token from each key of a limit chain (e.g. user, tenant, global) in a single
+     * Redis round trip. Tokens are taken only if every key admits, so a denial by a later tier
+     * never consumes from an earlier one. Each key uses its own config; leased keys are
+     * checked against Redis like any other here. The retry-after of a denial is the longest
+     * among the denying tiers.
+     *
+     * <p>When the keys live on different shards, the tiers of each shard are checked in one
+     * round trip, shard by shard, and if a later shard denies, the tiers already charged get
+     * their token back. Only token and leaky bucket tiers can be refunded, so the shard with
+     * any other type goes last.
+     *
+     * @throws IllegalArgumentException if the chain is empty, or if tiers of types other than
+     *         token and leaky bucket live on more than one shard
+     */
+    public AcquireResult acquireChain(List<String> keys) {
+        List<String> chain = new ArrayList<>(new LinkedHashSet<>(keys));
+        if (chain.isEmpty()) {
+            throw new IllegalArgumentException("A limit chain needs at least one key");
+        }
+        long start = System.nanoTime();
+        long now = System.currentTimeMillis();
+        List<RateLimiterConfig> configs = new ArrayList<>(chain.size());
+        for (String key : chain) {
+            configs.add(getConfig(key));
+        }
+        // Tiers grouped by shard, shards in the order of their first tier, except that the one
+        // with tiers that cannot be refunded goes last: nothing is charged after it to deny
+        List<List<Integer>> groups = byShard(chain);
+        groups.removeIf(List::isEmpty);
+        groups.sort(Comparator.comparing((List<Integer> group) -> !refundable(configs, group))
+                .thenComparingInt(group -> group.get(0)));
+        if (groups.size() > 1 && !refundable(configs, groups.get(groups.size() - 2))) {
+            throw new IllegalArgumentException("Limit chain " + chain + " has tiers that cannot be refunded"
+                    + " on more than one Redis node; only token and leaky bucket tiers may span nodes");
+        }
+        if (!redisEnabled) {
+            return chainDecided(chain, null, Backend.LOCAL, start, acquireChainInMemory(chain, configs, now));
+        }
+        for (String key : chain) {
+            AcquireResult cached = cachedDenial(key, now);
+            if (cached != null) {
+                return chainDecided(chain, key, Backend.LOCAL, start, cached);
+            }
+        }
+        long remaining = Long.MAX_VALUE;
+        for (int g = 0; g < groups.size(); g++) {
+            List<Integer> tiers = groups.get(g);
+            List<?> reply;
+            try {
+                reply = evalChain(select(chain, tiers), select(configs, tiers), now);
+            } catch (Exception ex) {
+                refundChain(chain, configs, groups.subList(0, g), now);
+                // Fallback to in-memory; the denying tier, if any, is counted there
+                return chainDecided(chain, null, fellBack(ex, 1), start, acquireChainInMemory(chain, configs, now));
+            }
+            if (!Long.valueOf(1).equals(reply.get(0))) {
+                refundChain(chain, configs, groups.subList(0, g), now);
+                failedAcquireCounter.increment();
+                // Cache the denying tier with its own wait, which is what a single-key acquire would see
+                int deniedTier = tiers.get(((Long) reply.get(2)).intValue() - 1);
+                denyCache.deny(chain.get(deniedTier), now, (Long) reply.get(3));
+                return chainDecided(chain, chain.get(deniedTier), Backend.REDIS, start, toChainResult(reply));
+            }
+            remaining = Math.min(remaining, (Long) reply.get(1));
+        }
+        successfulAcquireCounter.increment();
+        return chainDecided(chain, null, Backend.REDIS, start, AcquireResult.allowed(remaining));
+    }
+
+    // Runs the chain script over tiers that all live on one shard
+    private List<?> evalChain(List<String> chain, List<RateLimiterConfig> configs, long now) {
+        List<String> scriptKeys = new ArrayList<>();
+        List<String> args = new ArrayList<>();
+        args.add(String.valueOf(chain.size()));
+        for (int i = 0; i < chain.size(); i++) {
+            RateLimiterConfig config = configs.get(i);
+            List<String> tierKeys = scriptKeys(config, chain.get(i));
+            List<String> tierArgs = scriptArgs(config, now);
+            scriptKeys.addAll(tierKeys);
+            args.add(config.getType().name());
+            args.add(usesHashLayout(config) ? "hash" : "legacy");
+            args.add(String.valueOf(tierKeys.size()));
+            args.add(String.valueOf(tierArgs.size()));
+            args.addAll(tierArgs);
+        }
+        return callRedis(shards.indexFor(chain.get(0)),
+                jedis -> (List<?>) evalScript(jedis, CHAIN_LUA, scriptKeys, args));
+    }
+
+    // Whether every tier of a group is a token or leaky bucket, whose token can be handed back
+    private static boolean refundable(List<RateLimiterConfig> configs, List<Integer> tiers) {
+        for (int tier : tiers) {
+            RateLimiterType type = configs.get(tier).getType();
+            if (type != RateLimiterType.TOKEN_BUCKET && type != RateLimiterType.LEAKY_BUCKET) {
                 return false;
-            });
+            }
+        }
+        return true;
+    }
+
+    // Best effort: hands the token taken from each tier of the given refundable groups back to Redis
+    private void refundChain(List<String> chain, List<RateLimiterConfig> configs, List<List<Integer>> groups,
+                             long now) {
+        for (List<Integer> tiers : groups) {
+            for (int tier : tiers) {
+                try {
+                    evalLease(chain.get(tier), configs.get(tier), 0, 1, now);
+                } catch (Exception ignored) {
+                    // The bucket refills on its own
+                }
+            }
+        }
+    }
+
+    /**
+     * Status of the bucket {@code key}, read under the config it was last acquired with
+     * through {@link #acquireWithResult(String, RateLimiterConfig)}, else its own.
+     */
+    public RateLimiterStatus getStatus(String key) {
+        RateLimiterConfig config = statusConfig(key);
+        return readStatuses(Collections.singletonList(key), Collections.singletonList(config)).get(key);
+    }
+
+    /**
+     * One page of every bucket that has state in Redis, including keys without an explicit
+     * config. Pass {@link ScanParams#SCAN_POINTER_START} first, then the returned cursor
+     * until it is "0" again. As with any SCAN, a bucket may occasionally appear on two pages.
+     * Shards are walked one after another; past the first, the cursor is
+     * {@code <shard>:<SCAN cursor>}. A shard that cannot be reached is skipped, and its
+     * buckets are missing from the walk.
+     *
+     * @throws IllegalArgumentException if the cursor is not one this method returned
+     */
+    public StatusPage getStatusPage(String cursor, int count) {
+        int separator = cursor.indexOf(':');
+        int shard = separator < 0 ? 0 : (int) parseCursorPart(cursor.substring(0, separator), shards.size() - 1);
+        String shardCursor = cursor.substring(separator + 1);
+        if (shard < 0 || parseCursorPart(shardCursor, Long.MAX_VALUE) < 0) {
+            throw new IllegalArgumentException("Invalid status cursor '" + cursor + "'");
+        }
+        if (!redisEnabled) {
+            // Nothing to scan: the configured keys, as a single page
+            return new StatusPage(getAllStatuses(), ScanParams.SCAN_POINTER_START);
+        }
+        ScanResult<String> scan;
+        try {
+            scan = callRedis(shard, jedis -> jedis.scan(shardCursor,
+                    new ScanParams().match(REDIS_KEY_PREFIX + "*").count(Math.max(1, count))));
         } catch (Exception ex) {
-            // Fallback to in-memory
-            return acquireInMemory(key, config, now);
+            if (shards.size() == 1 && ScanParams.SCAN_POINTER_START.equals(cursor)) {
+                // Fallback to in-memory: the configured keys, as a single page
+                return new StatusPage(getAllStatuses(), ScanParams.SCAN_POINTER_START);
+            }
+            // Skip the rest of this shard rather than start the walk over
+            return new StatusPage(Collections.emptyMap(), nextShardCursor(shard));
         }
-        if (result) {
-            successfulAcquireCounter.increment();
+        List<String> keys = new ArrayList<>();
+        List<RateLimiterConfig> configs = new ArrayList<>();
+        for (String redisKey : scan.getResult()) {
+            int typeEnd = redisKey.indexOf(':', REDIS_KEY_PREFIX.length());
+            if (typeEnd < 0) {
+                continue;
+            }
+            String keyName = redisKey.substring(REDIS_KEY_PREFIX.length(), typeEnd);
+            RateLimiterType type = TYPES_BY_KEY_NAME.get(keyName);
+            if (type == null) {
+                continue;
+            }
+            boolean hashKey = keyName.equals(HASH_KEY_NAMES[type.ordinal()]);
+            String suffix = hashKey ? "" : stateKeySuffix(type);
+            int keyStart = typeEnd + 1;
+            int keyEnd = redisKey.length() - suffix.length();
+            // Only the first key of each bucket is listed, so multi-key buckets appear once
+            if (keyEnd < keyStart || !redisKey.endsWith(suffix)) {
+                continue;
+            }
+            String key = redisKey.substring(keyStart, keyEnd);
+            RateLimiterConfig config = statusConfig(key);
+            if (config.getType() == type && (!hashKey || usesHashLayout(config))) {
+                keys.add(key);
+                configs.add(config);
+            }
+            // Otherwise it is left over from before a type or layout change and will expire
+        }
+        String next;
+        if (!ScanParams.SCAN_POINTER_START.equals(scan.getCursor())) {
+            next = shard == 0 ? scan.getCursor() : shard + ":" + scan.getCursor();
         } else {
-            failedAcquireCounter.increment();
+            next = nextShardCursor(shard);
         }
-        return result;
+        return new StatusPage(readStatuses(keys, configs), next);
     }
 
-    public RateLimiterStatus getStatus(String key) {
-        RateLimiterConfig config = configMap.getOrDefault(key, configMap.get("global"));
-        String redisKey = buildRedisKey(config.getType().name().toLowerCase(), key);
-        for (int i = 0; i < REDIS_RETRY_COUNT; i++) {
-            try (Jedis jedis = jedisPool.getResource()) {
-                int tokensLeft;
-                if (config.getType() == RateLimiterType.TOKEN_BUCKET) {
-                    String val = jedis.get(redisKey + ":tokens");
-                    tokensLeft = val == null ? config.getCapacity() : Integer.parseInt(val);
-                } else {
-                    String val = jedis.get(redisKey + ":water");
-                    int water = val == null ? 0 : Integer.parseInt(val);
-                    tokensLeft = config.getCapacity() - water;
-                }
-                return new RateLimiterStatus(tokensLeft, config.getCapacity(), config.getRefillRate(), config.getType());
-            } catch (Exception ex) {
-                try { Thread.sleep(REDIS_RETRY_DELAY_MS); } catch (InterruptedException ignored) {}
+    // A non-negative decimal up to max, or -1 for anything else
+    private static long parseCursorPart(String part, long max) {
+        if (part.isEmpty() || part.length() > 19) {
+            return -1;
+        }
+        for (int i = 0; i < part.length(); i++) {
+            if (part.charAt(i) < '0' || part.charAt(i) > '9') {
+                return -1;
             }
         }
+        long value = Long.parseLong(part);
+        return value <= max ? value : -1;
+    }
+
+    // Cursor of the first page of the shard after this one, or "0" past the last shard
+    private String nextShardCursor(int shard) {
+        return shard + 1 < shards.size() ? (shard + 1) + ":" + ScanParams.SCAN_POINTER_START
+                : ScanParams.SCAN_POINTER_START;
+    }
+
+    // The config a bucket was last charged under; the same for getStatus and getStatusPage
+    private RateLimiterConfig statusConfig(String key) {
+        RateLimiterConfig config = bucketConfigs.get(key);
+        return config != null ? config : getConfig(key);
+    }
+
+    // One pipelined round trip per shard and chunk of keys; chunks that cannot reach Redis are read from memory
+    private Map<String, RateLimiterStatus> readStatuses(List<String> keys, List<RateLimiterConfig> configs) {
+        Map<String, RateLimiterStatus> statuses = new LinkedHashMap<>();
+        for (String key : keys) {
+            // Keeps the caller's order across shards
+            statuses.put(key, null);
+        }
+        long now = System.currentTimeMillis();
+        List<List<Integer>> byShard = byShard(keys);
+        for (int shard = 0; shard < byShard.size(); shard++) {
+            List<Integer> positions = byShard.get(shard);
+            for (int from = 0; from < positions.size(); from += STATUS_CHUNK) {
+                List<Integer> chunk = positions.subList(from, Math.min(positions.size(), from + STATUS_CHUNK));
+                List<String> chunkKeys = select(keys, chunk);
+                List<RateLimiterConfig> chunkConfigs = select(configs, chunk);
+                int index = shard;
+                List<Integer> tokensLeft = null;
+                if (redisEnabled) {
+                    try {
+                        tokensLeft = callRedis(index, jedis -> readTokensLeft(jedis, chunkKeys, chunkConfigs, now));
+                    } catch (Exception ignored) {
+                        // Fallback to in-memory
+                    }
+                }
+                if (tokensLeft == null) {
+                    for (int i = 0; i < chunkKeys.size(); i++) {
+                        statuses.put(chunkKeys.get(i), getStatusInMemory(chunkKeys.get(i), chunkConfigs.get(i)));
+                    }
+                    continue;
+                }
+                for (int i = 0; i < chunkKeys.size(); i++) {
+                    RateLimiterConfig config = chunkConfigs.get(i);
+                    statuses.put(chunkKeys.get(i), new RateLimiterStatus(tokensLeft.get(i),
+                            config.getCapacity(), config.getRefillRate(), config.getType()));
+                }
+            }
+        }
+        return statuses;
+    }
+
+    private List<Integer> readTokensLeft(Jedis jedis, List<String> keys, List<RateLimiterConfig> configs, long now) {
+        Pipeline pipeline = jedis.pipelined();
+        List<Supplier<?>> responses = new ArrayList<>(keys.size());
+        for (int i = 0; i < keys.size(); i++) {
+            responses.add(queueStateRead(pipeline, configs.get(i), scriptKeys(configs.get(i), keys.get(i)), now));
+        }
+        pipeline.sync();
+        List<Integer> tokensLeft = new ArrayList<>(keys.size());
+        for (int i = 0; i < keys.size(); i++) {
+            tokensLeft.add(tokensLeft(configs.get(i), responses.get(i).get(), now));
+        }
+        return tokensLeft;
+    }
+
+    // Bucket types read back as [value, timestamp] in either layout
+    private Supplier<?> queueStateRead(Pipeline pipeline, RateLimiterConfig config, List<String> redisKeys, long now) {
+        switch (config.getType()) {
+            case SLIDING_WINDOW_LOG: {
+                long window = SlidingWindowMath.windowMillis(config);
+                return pipeline.zcount(redisKeys.get(0), "(" + (now - window), "+inf");
+            }
+            case SLIDING_WINDOW_COUNTER:
+                return pipeline.hmget(redisKeys.get(0), "idx", "curr", "prev");
+            case GCRA:
+                return pipeline.get(redisKeys.get(0));
+            default: {
+                if (!usesHashLayout(config)) {
+                    return pipeline.mget(redisKeys.get(0), redisKeys.get(1));
+                }
+                // Same fallback to the legacy keys as the scripts' hash layout
+                Response<List<String>> hash = pipeline.hmget(redisKeys.get(0), "v", "t");
+                Response<List<String>> legacy = pipeline.mget(redisKeys.get(1), redisKeys.get(2));
+                return () -> hash.get().get(0) != null ? hash.get() : legacy.get();
+            }
+        }
+    }
+
+    // Mirrors the refill/leak arithmetic of the acquire scripts without writing anything
+    @SuppressWarnings("unchecked")
+    private static int tokensLeft(RateLimiterConfig config, Object state, long now) {
+        switch (config.getType()) {
+            case TOKEN_BUCKET: {
+                List<String> values = (List<String>) state;
+                if (values.get(0) == null) {
+                    return config.getCapacity();
+                }
+                double elapsed = values.get(1) == null ? 0 : Math.max(0, now - Double.parseDouble(values.get(1)));
+                double tokens = Double.parseDouble(values.get(0)) + elapsed * config.getRefillRate() / 1000;
+                // Negative while reservations are outstanding
+                return (int) Math.max(0, Math.min(config.getCapacity(), Math.floor(tokens)));
+            }
+            case SLIDING_WINDOW_LOG:
+                return (int) Math.max(0, config.getCapacity() - (Long) state);
+            case SLIDING_WINDOW_COUNTER: {
+                List<String> values = (List<String>) state;
+                long window = SlidingWindowMath.windowMillis(config);
+                long index = now / window;
+                long stateIndex = values.get(0) == null ? -2 : Long.parseLong(values.get(0));
+                long curr = values.get(1) == null ? 0 : Long.parseLong(values.get(1));
+                long prev = values.get(2) == null ? 0 : Long.parseLong(values.get(2));
+                if (stateIndex == index - 1) {
+                    prev = curr;
+                    curr = 0;
+                } else if (stateIndex != index) {
+                    prev = 0;
+                    curr = 0;
+                }
+                double estimated = prev * (double) (window - (now - index * window)) / window + curr;
+                return (int) Math.max(0, Math.floor(config.getCapacity() - estimated));
+            }
+            case GCRA: {
+                long tat = state == null ? 0 : Long.parseLong((String) state);
+                return BucketMath.available(tat, config, BucketMath.toMicros(now));
+            }
+            default: {
+                List<String> values = (List<String>) state;
+                if (values.get(0) == null) {
+                    return config.getCapacity();
+                }
+                double elapsed = values.get(1) == null ? 0 : Math.max(0, now - Double.parseDouble(values.get(1)));
+                double water = Math.max(0, Double.parseDouble(values.get(0)) - elapsed * config.getRefillRate() / 1000);
+                return (int) Math.max(0, Math.floor(config.getCapacity() - water));
+            }
+        }
+    }
+
+    // The key that holds each type's main state; every bucket with state in Redis has it
+    private static String stateKeySuffix(RateLimiterType type) {
+        switch (type) {
+            case TOKEN_BUCKET:
+                return ":tokens";
+            case SLIDING_WINDOW_LOG:
+                return ":log";
+            case SLIDING_WINDOW_COUNTER:
+                return ":window";
+            case GCRA:
+                return ":tat";
+            default:
+                return ":water";
+        }
+    }
+
+    // Leases only apply to the bucket types, where unused tokens can be handed back
+    // Leases are taken from Redis, so with Redis disabled a leased key is decided in memory like any other
+    private boolean usesLease(RateLimiterConfig config) {
+        return redisEnabled && config.isLeased()
+                && (config.getType() == RateLimiterType.TOKEN_BUCKET || config.getType() == RateLimiterType.LEAKY_BUCKET);
+    }
+
+    // Leased enforcement: serve from the local block, renewing it from Redis when empty or expired.
+    // A denial carries the wait until the Redis bucket refills, as reported by the last renewal
+    private AcquireResult acquireLeased(String key, RateLimiterConfig config, long now) {
+        TokenLease lease = leaseFor(key, config);
+        AcquireResult taken = takeLeased(key, lease, now);
+        if (taken != null) {
+            return taken;
+        }
+        try {
+            renewLease(key, lease, now);
+        } catch (Exception ex) {
+            return leaseFellBack(ex, key, lease, now);
+        }
+        return afterRenewal(key, lease, now);
+    }
+
+    // Like acquireLeased, but an empty lease is renewed on a lease renewer thread, never the caller's
+    private CompletableFuture<AcquireResult> acquireLeasedAsync(String key, RateLimiterConfig config, long now) {
+        TokenLease lease = leaseFor(key, config);
+        AcquireResult taken = takeLeased(key, lease, now);
+        if (taken != null) {
+            return CompletableFuture.completedFuture(taken);
+        }
+        return lease.renewal(() -> {
+            try {
+                return CompletableFuture.runAsync(() -> renewLease(key, lease, System.currentTimeMillis()),
+                        leaseRenewers);
+            } catch (RejectedExecutionException ex) {
+                return CompletableFuture.failedFuture(ex);
+            }
+        }).handle((ignored, ex) -> {
+            long renewedAt = System.currentTimeMillis();
+            return ex == null ? afterRenewal(key, lease, renewedAt) : leaseFellBack(ex, key, lease, renewedAt);
+        });
+    }
+
+    // A decision from the lease alone, or null if it is empty and has to be renewed first
+    private AcquireResult takeLeased(String key, TokenLease lease, long now) {
+        if (!lease.tryTake(now)) {
+            // An exhausted bucket is not asked for another block until it has refilled
+            return cachedDenial(key, now);
+        }
+        if (lease.isLow() && lease.beginPrefetch()) {
+            // Top up in the background so the next caller does not wait on Redis
+            try {
+                leaseRenewers.execute(() -> {
+                    try {
+                        renewLease(key, lease, System.currentTimeMillis());
+                    } catch (Exception ignored) {
+                        // The next empty take renews
+                    } finally {
+                        lease.endPrefetch();
+                    }
+                });
+            } catch (RejectedExecutionException ignored) {
+                lease.endPrefetch();
+            }
+        }
+        successfulAcquireCounter.increment();
+        return AcquireResult.allowed();
+    }
+
+    private AcquireResult afterRenewal(String key, TokenLease lease, long now) {
+        if (lease.tryTake(now)) {
+            successfulAcquireCounter.increment();
+            return AcquireResult.allowed();
+        }
+        failedAcquireCounter.increment();
+        long wait = lease.retryAfterMillis(now);
+        denyCache.deny(key, now, wait);
+        return AcquireResult.denied(wait);
+    }
+
+    private AcquireResult leaseFellBack(Throwable ex, String key, TokenLease lease, long now) {
         // Fallback to in-memory
-        return getStatusInMemory(key, config);
+        fellBack(ex instanceof CompletionException && ex.getCause() != null ? ex.getCause() : ex, 1);
+        return acquireInMemoryWithResult(key, lease.getConfig(), now, 1, NO_RESERVATION);
+    }
+
+    // The key's lease, replacing one taken under a config that has since been set or removed
+    private TokenLease leaseFor(String key, RateLimiterConfig config) {
+        TokenLease lease = leases.computeIfAbsent(key, k -> new TokenLease(config));
+        while (lease.getConfig() != config) {
+            if (leases.replace(key, lease, new TokenLease(config))) {
+                retireLease(key, lease);
+            }
+            lease = leases.computeIfAbsent(key, k -> new TokenLease(config));
+        }
+        return lease;
+    }
+
+    // Hands a replaced lease's unused tokens back under its own config, off the request thread
+    private void retireLease(String key, TokenLease lease) {
+        try {
+            backgroundExecutor.execute(() -> {
+                synchronized (lease) {
+                    int unused = lease.drain();
+                    if (unused > 0) {
+                        try {
+                            returnLeasedTokens(key, lease, unused, System.currentTimeMillis());
+                        } catch (Exception ignored) {
+                            // The bucket refills on its own
+                        }
+                    }
+                }
+            });
+        } catch (RejectedExecutionException ignored) {
+            // Shutting down; the bucket refills on its own
+        }
+    }
+
+    private void renewLease(String key, TokenLease lease, long now) {
+        RateLimiterConfig config = lease.getConfig();
+        synchronized (lease) {
+            if (lease.hasTokens(now) && !lease.isLow()) {
+                return;
+            }
+            int returned = lease.isExpired(now) ? lease.drain() : 0;
+            int requested = lease.nextLeaseSize(config.getCapacity());
+            List<?> reply;
+            try {
+                reply = (List<?>) evalLease(key, config, requested, returned, now);
+            } catch (RuntimeException ex) {
+                lease.restore(returned);
+                throw new IllegalStateException("Failed to lease tokens for " + key, ex);
+            }
+            lease.renew(((Long) reply.get(0)).intValue(), now, LEASE_TTL_MS, (Long) reply.get(1));
+        }
+    }
+
+    private void returnLeasedTokens(String key, TokenLease lease, int unused, long now) {
+        evalLease(key, lease.getConfig(), 0, unused, now);
+    }
+
+    private Object evalLease(String key, RateLimiterConfig config, int requested, int returned, long now) {
+        String script;
+        if (config.getType() == RateLimiterType.TOKEN_BUCKET) {
+            script = usesHashLayout(config) ? LEASE_TOKEN_BUCKET_HASH_LUA : LEASE_TOKEN_BUCKET_LUA;
+        } else {
+            script = usesHashLayout(config) ? LEASE_LEAKY_BUCKET_HASH_LUA : LEASE_LEAKY_BUCKET_LUA;
+        }
+        List<String> args = new ArrayList<>(scriptArgs(config, now));
+        args.add(String.valueOf(requested));
+        args.add(String.valueOf(returned));
+        return callRedis(shards.indexFor(key), jedis -> evalScript(jedis, script, scriptKeys(config, key), args));
+    }
+
+    // Periodically gives back tokens held by leases that expired without being used up
+    private void returnExpiredLeases() {
+        long now = System.currentTimeMillis();
+        for (Map.Entry<String, TokenLease> entry : leases.entrySet()) {
+            TokenLease lease = entry.getValue();
+            if (!lease.isExpired(now)) {
+                continue;
+            }
+            synchronized (lease) {
+                int unused = lease.drain();
+                try {
+                    if (unused > 0) {
+                        returnLeasedTokens(entry.getKey(), lease, unused, now);
+                    }
+                } catch (Exception ex) {
+                    lease.restore(unused);
+                    continue;
+                }
+                if (now - lease.getExpiresAt() > LEASE_IDLE_EVICT_MS) {
+                    leases.remove(entry.getKey(), lease);
+                }
+            }
+        }
+    }
+
+    private void scheduleReconcile() {
+        try {
+            backgroundExecutor.execute(this::reconcileFallbackUsage);
+        } catch (RejectedExecutionException ignored) {
+            // Shutting down; shutdown() makes a last attempt itself
+        }
+    }
+
+    // Runs on the background thread: debits fallback usage from Redis a pipelined batch per shard at a time.
+    // Batches that fail, or whose shard's circuit is open, are put back for the next run
+    private void reconcileFallbackUsage() {
+        if (!redisEnabled || fallbackDeltas.isEmpty()) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        // One pass over what is pending now; grants made meanwhile wait for the next run
+        for (int batches = fallbackDeltas.size() / RECONCILE_BATCH + 1; batches > 0; batches--) {
+            List<FallbackDeltas.Delta> batch = fallbackDeltas.drain(RECONCILE_BATCH, now);
+            List<String> batchKeys = new ArrayList<>(batch.size());
+            for (FallbackDeltas.Delta delta : batch) {
+                batchKeys.add(delta.key);
+            }
+            List<List<Integer>> byShard = byShard(batchKeys);
+            for (int shard = 0; shard < byShard.size(); shard++) {
+                List<FallbackDeltas.Delta> shardBatch = select(batch, byShard.get(shard));
+                if (shardBatch.isEmpty()) {
+                    continue;
+                }
+                // Past the open timeout the batch goes out as the half-open probe, so reconciling
+                // alone brings a shard back
+                if (circuitBreakers[shard].isRefusing(now)) {
+                    fallbackDeltas.restore(shardBatch);
+                    continue;
+                }
+                reconcileBatch(shard, shardBatch, now);
+            }
+        }
+    }
+
+    private void reconcileBatch(int shard, List<FallbackDeltas.Delta> batch, long now) {
+        List<String> scripts = new ArrayList<>(batch.size());
+        List<List<String>> keys = new ArrayList<>(batch.size());
+        List<List<String>> args = new ArrayList<>(batch.size());
+        for (FallbackDeltas.Delta delta : batch) {
+            RateLimiterConfig config = delta.config;
+            List<String> debitArgs = new ArrayList<>(scriptArgs(config, now));
+            debitArgs.add(String.valueOf(delta.outstanding(now)));
+            scripts.add(debitScriptFor(config));
+            keys.add(scriptKeys(config, delta.key));
+            args.add(debitArgs);
+        }
+        List<Object> taken;
+        try {
+            taken = callRedis(shard, jedis -> evalPipelined(jedis, scripts, keys, args));
+        } catch (Exception ex) {
+            fallbackDeltas.restore(batch);
+            return;
+        }
+        long total = 0;
+        for (Object permits : taken) {
+            total += (Long) permits;
+        }
+        reconciledPermits.increment(total);
+    }
+
+    private String debitScriptFor(RateLimiterConfig config) {
+        switch (config.getType()) {
+            case TOKEN_BUCKET:
+                return usesHashLayout(config) ? DEBIT_TOKEN_BUCKET_HASH_LUA : DEBIT_TOKEN_BUCKET_LUA;
+            case SLIDING_WINDOW_LOG:
+                return DEBIT_SLIDING_WINDOW_LOG_LUA;
+            case SLIDING_WINDOW_COUNTER:
+                return DEBIT_SLIDING_WINDOW_COUNTER_LUA;
+            case GCRA:
+                return DEBIT_GCRA_LUA;
+            default:
+                return usesHashLayout(config) ? DEBIT_LEAKY_BUCKET_HASH_LUA : DEBIT_LEAKY_BUCKET_LUA;
+        }
+    }
+
+    /**
+     * The keys with the most decisions lately and their approximate counts, highest first.
+     * Counts are halved every minute, and come from one decision in 16, so they are close for
+     * busy keys rather than exact.
+     */
+    public Map<String, Long> getHotKeys() {
+        return hotKeys.top();
+    }
+
+    /** Like {@link #getHotKeys()}, counting only denials. */
+    public Map<String, Long> getMostDeniedKeys() {
+        return deniedKeys.top();
     }
 
     // Add this method
+    /** Status of every key with an explicit config, read in pipelined chunks. */
     public Map<String, RateLimiterStatus> getAllStatuses() {
-        Map<String, RateLimiterStatus> map = new HashMap<>();
-        for (String key : configMap.keySet()) {
-            map.put(key, getStatus(key));
+        List<String> keys = new ArrayList<>();
+        List<RateLimiterConfig> configs = new ArrayList<>();
+        for (Map.Entry<String, RateLimiterConfig> entry : configMap.entrySet()) {
+            keys.add(entry.getKey());
+            configs.add(entry.getValue());
         }
-        return map;
+        return readStatuses(keys, configs);
     }
 
     // Add this method
@@ -175,64 +1860,394 @@ public class RateLimiterService {
         return this.configMap;
     }
 
+    /** Config rules set with a pattern key such as {@code api:*}. */
+    public Map<String, RateLimiterConfig> getConfigRules() {
+        return configRules.getPatterns();
+    }
+
+    /** The config set for {@code key}, else the most specific matching rule, else the global one. */
+    public RateLimiterConfig getConfig(String key) {
+        RateLimiterConfig config = configMap.get(key);
+        if (config == null) {
+            config = configRules.resolve(key);
+        }
+        return config != null ? config : configMap.get("global");
+    }
+
     // In-memory fallback implementation
     boolean acquireInMemory(String key, RateLimiterConfig config, long now) {
-        InMemoryBucket bucket = inMemoryBuckets.computeIfAbsent(key, k -> new InMemoryBucket(config, now));
-        synchronized (bucket) {
-            if (config.getType() == RateLimiterType.TOKEN_BUCKET) {
-                long elapsed = (now - bucket.lastRefill) / 1000;
-                int refill = (int) (elapsed * config.getRefillRate());
-                bucket.tokens = Math.min(config.getCapacity(), bucket.tokens + refill);
-                bucket.lastRefill = now;
-                if (bucket.tokens > 0) {
-                    bucket.tokens--;
-                    return true;
-                } else {
-                    return false;
-                }
-            } else {
-                long elapsed = (now - bucket.lastLeak) / 1000;
-                int leaked = (int) (elapsed * config.getRefillRate());
-                bucket.water = Math.max(0, bucket.water - leaked);
-                bucket.lastLeak = now;
-                if (bucket.water < config.getCapacity()) {
-                    bucket.water++;
-                    return true;
-                } else {
-                    return false;
-                }
+        if (!withinPeerShare(key, config, 1, now) || !localLimiter.tryAcquire(key, config, now)) {
+            return false;
+        }
+        recordLocalGrant(key, config, 1, now);
+        return true;
+    }
+
+    private AcquireResult acquireInMemoryWithResult(String key, RateLimiterConfig config, long now,
+                                                    int permits, long maxWaitMillis) {
+        if (!withinPeerShare(key, config, permits, now)) {
+            return new AcquireResult(false, PEER_SYNC_INTERVAL_MS, localLimiter.available(key, config, now),
+                    localLimiter.resetMillis(key, config, now));
+        }
+        long wait = maxWaitMillis == NO_RESERVATION
+                ? (localLimiter.tryAcquire(key, config, now, permits) ? 0 : -1)
+                : localLimiter.reserve(key, config, now, permits, maxWaitMillis);
+        long reset = localLimiter.resetMillis(key, config, now);
+        if (wait >= 0) {
+            recordLocalGrant(key, config, permits, now);
+            return new AcquireResult(true, wait, localLimiter.available(key, config, now), reset);
+        }
+        return new AcquireResult(false, localLimiter.retryAfterMillis(key, config, now, permits),
+                localLimiter.available(key, config, now), reset);
+    }
+
+    private AcquireResult acquireChainInMemory(List<String> keys, List<RateLimiterConfig> configs, long now) {
+        for (int i = 0; i < keys.size(); i++) {
+            if (!withinPeerShare(keys.get(i), configs.get(i), 1, now)) {
+                deniedKeys.offer(keys.get(i));
+                return AcquireResult.denied(PEER_SYNC_INTERVAL_MS);
             }
         }
+        int denied = localLimiter.tryAcquireAll(keys, configs, now);
+        if (denied >= 0) {
+            deniedKeys.offer(keys.get(denied));
+            return AcquireResult.denied(localLimiter.retryAfterMillis(keys.get(denied), configs.get(denied), now));
+        }
+        int remaining = Integer.MAX_VALUE;
+        for (int i = 0; i < keys.size(); i++) {
+            recordLocalGrant(keys.get(i), configs.get(i), 1, now);
+            remaining = Math.min(remaining, localLimiter.available(keys.get(i), configs.get(i), now));
+        }
+        return AcquireResult.allowed(remaining);
+    }
+
+    // Usage granted from memory is owed to Redis once it answers again, and to the peers at their next sync
+    private void recordLocalGrant(String key, RateLimiterConfig config, int permits, long now) {
+        if (redisEnabled) {
+            fallbackDeltas.add(key, config, permits, now);
+        }
+        if (peerSync != null) {
+            peerSync.record(key, config, permits, now);
+        }
+    }
+
+    // Between two syncs a node grants each key at most its share of the capacity among the live
+    // members, so nodes admitting at once before hearing from each other take about one bucket in total
+    private boolean withinPeerShare(String key, RateLimiterConfig config, int permits, long now) {
+        if (peerSync == null) {
+            return true;
+        }
+        long unsent = peerSync.unsent(key);
+        return unsent == 0 || unsent + permits <= Math.max(1, config.getCapacity() / peerSync.liveMembers(now));
+    }
+
+    // Returns a denial straight from the deny cache, or null if Redis has to decide
+    private AcquireResult cachedDenial(String key, long now) {
+        long deniedFor = denyCache.deniedFor(key, now);
+        if (deniedFor == 0) {
+            denyCacheMisses.increment();
+            return null;
+        }
+        denyCacheHits.increment();
+        failedAcquireCounter.increment();
+        return AcquireResult.denied(deniedFor);
+    }
+
+    // Records a decision's latency by type and backend, and counts the key in the hot and denied sketches
+    private AcquireResult decided(String key, RateLimiterConfig config, Backend backend, long startNanos,
+                                  AcquireResult result) {
+        decided(key, config, backend, startNanos, result.isAllowed());
+        return result;
+    }
+
+    private boolean decided(String key, RateLimiterConfig config, Backend backend, long startNanos, boolean allowed) {
+        decisionTimers[config.getType().ordinal()][backend.ordinal()]
+                .record(System.nanoTime() - startNanos, TimeUnit.NANOSECONDS);
+        hotKeys.offer(key);
+        if (!allowed) {
+            deniedKeys.offer(key);
+        }
+        return allowed;
+    }
+
+    // A limit chain's decision; every tier counts as a hot key, and only the denying tier as denied
+    private AcquireResult chainDecided(List<String> chain, String deniedKey, Backend backend, long startNanos,
+                                       AcquireResult result) {
+        decisionTimers[CHAIN_TIMERS][backend.ordinal()].record(System.nanoTime() - startNanos, TimeUnit.NANOSECONDS);
+        for (String key : chain) {
+            hotKeys.offer(key);
+        }
+        if (deniedKey != null) {
+            deniedKeys.offer(deniedKey);
+        }
+        return result;
+    }
+
+    // Counts decisions made in memory because Redis could not be asked; with Redis disabled that is
+    // not a fallback but the local engine doing its job
+    private Backend fellBack(Throwable ex, int decisions) {
+        if (!redisEnabled) {
+            return Backend.LOCAL;
+        }
+        boolean open = ex instanceof CircuitOpenException || ex.getCause() instanceof CircuitOpenException;
+        fallbackCounters[(open ? FallbackReason.CIRCUIT_OPEN : FallbackReason.ERROR).ordinal()].increment(decisions);
+        return Backend.FALLBACK;
+    }
+
+    private AcquireResult recordRedisResult(String key, AcquireResult result, int permits, long now) {
+        if (result.isAllowed()) {
+            successfulAcquireCounter.increment();
+        } else {
+            failedAcquireCounter.increment();
+            // The wait for several permits is longer than a single-token request would see
+            if (permits == 1) {
+                denyCache.deny(key, now, result.getRetryAfterMillis());
+            }
+        }
+        return result;
+    }
+
+    // Scripts reply {allowed, remaining, wait_ms, reset_ms}: the wait is the retry-after of a denial
+    // (-1: never) or the delay of a reservation, and reset_ms is the time until the bucket is full
+    // (-1: never or unknown)
+    private static AcquireResult toResult(Object luaResult) {
+        List<?> reply = (List<?>) luaResult;
+        boolean allowed = Long.valueOf(1).equals(reply.get(0));
+        return new AcquireResult(allowed, (Long) reply.get(2), (Long) reply.get(1), (Long) reply.get(3));
+    }
+
+    // The chain script replies {1, fewest remaining} or {0, retry_after_ms, ...} (-1: no refill, never)
+    private static AcquireResult toChainResult(List<?> reply) {
+        if (Long.valueOf(1).equals(reply.get(0))) {
+            return AcquireResult.allowed((Long) reply.get(1));
+        }
+        return AcquireResult.denied((Long) reply.get(1));
     }
 
     private RateLimiterStatus getStatusInMemory(String key, RateLimiterConfig config) {
-        InMemoryBucket bucket = inMemoryBuckets.get(key);
-        if (bucket == null) {
-            return new RateLimiterStatus(config.getCapacity(), config.getCapacity(), config.getRefillRate(), config.getType());
+        int tokensLeft = localLimiter.available(key, config, System.currentTimeMillis());
+        return new RateLimiterStatus(tokensLeft, config.getCapacity(), config.getRefillRate(), config.getType());
+    }
+
+    /**
+     * Runs one Redis call on a shard through its circuit breaker within the per-call timeout
+     * budget. Throws immediately while the shard's circuit is open so callers fall back
+     * without waiting; the other shards are unaffected.
+     */
+    private <T> T callRedis(int shard, Function<Jedis, T> call) {
+        // Callers check redisEnabled first and stay in memory; this only guards against a missed path
+        if (!redisEnabled) {
+            throw new IllegalStateException("Redis is disabled");
+        }
+        RedisCircuitBreaker circuitBreaker = circuitBreakers[shard];
+        long permit = circuitBreaker.tryAcquirePermission(System.currentTimeMillis());
+        if (permit == RedisCircuitBreaker.NO_PERMISSION) {
+            throw circuitOpen[shard];
+        }
+        Timer.Sample sample = Timer.start(meterRegistry);
+        try (Jedis jedis = borrow(shard)) {
+            T result = call.apply(jedis);
+            circuitBreaker.onSuccess(permit);
+            return result;
+        } catch (JedisDataException ex) {
+            // Redis answered; the command itself failed
+            circuitBreaker.onSuccess(permit);
+            throw ex;
+        } catch (RuntimeException ex) {
+            circuitBreaker.onFailure(permit, System.currentTimeMillis());
+            throw ex;
+        } finally {
+            sample.stop(redisLatencyTimers[shard]);
+        }
+    }
+
+    // Times the wait for a pooled connection, including waits that end in a timeout
+    private Jedis borrow(int shard) {
+        long start = System.nanoTime();
+        try {
+            return shards.get(shard).pool.getResource();
+        } finally {
+            poolWaitTimers[shard].record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    // Thrown instead of calling Redis while a shard's circuit is open. Preallocated and without a
+    // stack trace, since every decision in an outage throws it and it always means the same thing
+    private static final class CircuitOpenException extends IllegalStateException {
+        CircuitOpenException(String message) {
+            super(message);
+        }
+
+        @Override
+        public synchronized Throwable fillInStackTrace() {
+            return this;
+        }
+    }
+
+    private String scriptFor(RateLimiterConfig config) {
+        switch (config.getType()) {
+            case TOKEN_BUCKET:
+                return usesHashLayout(config) ? TOKEN_BUCKET_HASH_LUA : TOKEN_BUCKET_LUA;
+            case SLIDING_WINDOW_LOG:
+                return SLIDING_WINDOW_LOG_LUA;
+            case SLIDING_WINDOW_COUNTER:
+                return SLIDING_WINDOW_COUNTER_LUA;
+            case GCRA:
+                return GCRA_LUA;
+            default:
+                return usesHashLayout(config) ? LEAKY_BUCKET_HASH_LUA : LEAKY_BUCKET_LUA;
+        }
+    }
+
+    // The two-value bucket types can be stored as one hash; the other types already use a single key
+    private boolean usesHashLayout(RateLimiterConfig config) {
+        return compactLayout
+                && (config.getType() == RateLimiterType.TOKEN_BUCKET || config.getType() == RateLimiterType.LEAKY_BUCKET);
+    }
+
+    // In the hash layout the legacy keys follow the hash key, for the scripts' compat reads
+    private List<String> scriptKeys(RateLimiterConfig config, String key) {
+        String keyName = KEY_NAMES[config.getType().ordinal()];
+        switch (config.getType()) {
+            case TOKEN_BUCKET:
+            case LEAKY_BUCKET: {
+                String valueSuffix = config.getType() == RateLimiterType.TOKEN_BUCKET ? ":tokens" : ":water";
+                String timeSuffix = config.getType() == RateLimiterType.TOKEN_BUCKET ? ":lastRefill" : ":lastLeak";
+                if (usesHashLayout(config)) {
+                    return Arrays.asList(redisKey(HASH_KEY_NAMES[config.getType().ordinal()], key, ""),
+                            redisKey(keyName, key, valueSuffix), redisKey(keyName, key, timeSuffix));
+                }
+                return Arrays.asList(redisKey(keyName, key, valueSuffix), redisKey(keyName, key, timeSuffix));
+            }
+            default:
+                return Collections.singletonList(redisKey(keyName, key, stateKeySuffix(config.getType())));
         }
-        synchronized (bucket) {
-            int tokensLeft = config.getType() == RateLimiterType.TOKEN_BUCKET
-                    ? bucket.tokens
-                    : config.getCapacity() - bucket.water;
-            return new RateLimiterStatus(tokensLeft, config.getCapacity(), config.getRefillRate(), config.getType());
+    }
+
+    // The single-key acquire scripts take the permits and the reservation's longest wait after the type's own arguments
+    private List<String> scriptArgs(RateLimiterConfig config, long now, int permits, long maxWaitMillis) {
+        List<String> args = new ArrayList<>(scriptArgs(config, now));
+        args.add(String.valueOf(permits));
+        args.add(String.valueOf(maxWaitMillis));
+        return args;
+    }
+
+    private List<String> scriptArgs(RateLimiterConfig config, long now) {
+        String capacity = String.valueOf(config.getCapacity());
+        String refillRate = String.valueOf(config.getRefillRate());
+        String time = String.valueOf(now);
+        switch (config.getType()) {
+            case SLIDING_WINDOW_LOG:
+                // Members must be unique so two requests in the same millisecond are both logged
+                return Arrays.asList(capacity, refillRate, time, now + "-" + Long.toHexString(ThreadLocalRandom.current().nextLong()));
+            case SLIDING_WINDOW_COUNTER:
+                return Arrays.asList(capacity, refillRate, time, String.valueOf(SlidingWindowMath.windowMillis(config)));
+            case GCRA: {
+                // Same microsecond interval and burst as the in-memory engine, so both decide identically
+                long interval = BucketMath.interval(config.getRefillRate());
+                return Arrays.asList(capacity, refillRate, time,
+                        String.valueOf(interval), String.valueOf(BucketMath.burst(config.getCapacity(), interval)));
+            }
+            default:
+                return Arrays.asList(capacity, refillRate, time);
+        }
+    }
+
+    private String scriptSha(Jedis jedis, String script) {
+        return scriptShas.computeIfAbsent(script, jedis::scriptLoad);
+    }
+
+    // Runs a script by SHA, falling back to a full EVAL if Redis no longer has it cached
+    private Object evalScript(Jedis jedis, String script, List<String> keys, List<String> args) {
+        try {
+            return jedis.evalsha(scriptSha(jedis, script), keys, args);
+        } catch (JedisNoScriptException ex) {
+            scriptShas.remove(script);
+            scriptRetries.increment();
+            return jedis.eval(script, keys, args);
+        }
+    }
+
+    // Sends one acquire EVALSHA per key in a single pipeline
+    private List<Object> evalPipelined(Jedis jedis, List<String> keys, List<RateLimiterConfig> configs, int[] permits,
+                                       long now) {
+        int size = keys.size();
+        List<String> scripts = new ArrayList<>(size);
+        List<List<String>> scriptKeys = new ArrayList<>(size);
+        List<List<String>> args = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            RateLimiterConfig config = configs.get(i);
+            scripts.add(scriptFor(config));
+            scriptKeys.add(scriptKeys(config, keys.get(i)));
+            args.add(scriptArgs(config, now, permits[i], NO_RESERVATION));
         }
+        return evalPipelined(jedis, scripts, scriptKeys, args);
     }
 
-    private String buildRedisKey(String scope, String key) {
-        return String.format("rl:%s:%s", scope, key);
+    // Sends one EVALSHA per call in a single pipeline; calls whose script was evicted are re-sent with EVAL
+    private List<Object> evalPipelined(Jedis jedis, List<String> scripts, List<List<String>> keys,
+                                       List<List<String>> args) {
+        int size = scripts.size();
+        List<Response<Object>> responses = new ArrayList<>(size);
+        String[] shas = new String[size];
+        for (int i = 0; i < size; i++) {
+            shas[i] = scriptSha(jedis, scripts.get(i));
+        }
+        Pipeline pipeline = jedis.pipelined();
+        for (int i = 0; i < size; i++) {
+            responses.add(pipeline.evalsha(shas[i], keys.get(i), args.get(i)));
+        }
+        pipeline.sync();
+
+        List<Object> results = new ArrayList<>(size);
+        List<Integer> missing = new ArrayList<>();
+        for (int i = 0; i < size; i++) {
+            try {
+                results.add(responses.get(i).get());
+            } catch (JedisNoScriptException ex) {
+                scriptShas.remove(scripts.get(i));
+                results.add(null);
+                missing.add(i);
+            }
+        }
+        if (!missing.isEmpty()) {
+            scriptRetries.increment(missing.size());
+            Pipeline retry = jedis.pipelined();
+            List<Response<Object>> retried = new ArrayList<>(missing.size());
+            for (int i : missing) {
+                retried.add(retry.eval(scripts.get(i), keys.get(i), args.get(i)));
+            }
+            retry.sync();
+            for (int j = 0; j < missing.size(); j++) {
+                results.set(missing.get(j), retried.get(j).get());
+            }
+        }
+        return results;
+    }
+
+    // rl:<keyName>:<key><suffix>, built in a buffer sized up front
+    private static String redisKey(String keyName, String key, String suffix) {
+        return new StringBuilder(REDIS_KEY_PREFIX.length() + keyName.length() + 1 + key.length() + suffix.length())
+                .append(REDIS_KEY_PREFIX).append(keyName).append(':').append(key).append(suffix).toString();
+    }
+
+    // Positions of the keys on each shard, by shard index, in the order given
+    private List<List<Integer>> byShard(List<String> keys) {
+        List<List<Integer>> byShard = new ArrayList<>(shards.size());
+        for (int shard = 0; shard < shards.size(); shard++) {
+            byShard.add(new ArrayList<>());
+        }
+        for (int i = 0; i < keys.size(); i++) {
+            byShard.get(shards.indexFor(keys.get(i))).add(i);
+        }
+        return byShard;
     }
 
-    // Helper class for in-memory fallback
-    private static class InMemoryBucket {
-        int tokens;
-        int water;
-        long lastRefill;
-        long lastLeak;
-        InMemoryBucket(RateLimiterConfig config, long now) {
-            this.tokens = config.getCapacity();
-            this.water = 0;
-            this.lastRefill = now;
-            this.lastLeak = now;
+    private static <T> List<T> select(List<T> list, List<Integer> positions) {
+        List<T> selected = new ArrayList<>(positions.size());
+        for (int position : positions) {
+            selected.add(list.get(position));
         }
+        return selected;
     }
 }
\ No newline at end of file
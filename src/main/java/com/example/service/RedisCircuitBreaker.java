@@ -0,0 +1,131 @@
+package com.example.service;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+
+/**
+ * Circuit breaker guarding Redis calls. After {@code failureThreshold} consecutive
+ * failures it opens and callers fail fast to the in-memory engine; after
+ * {@code openMillis} a single probe call is let through (half-open) and its outcome
+ * closes or re-opens the circuit.
+ *
+ * <p>State, whether the probe is taken, and a generation bumped on every transition share
+ * one atomic word. A permitted call carries the word it was admitted under, and its outcome
+ * only counts while the word is unchanged: a slow call admitted before the circuit opened
+ * cannot re-open it, or free the probe, once it is half-open.
+ */
+public class RedisCircuitBreaker {
+    public enum State { CLOSED, OPEN, HALF_OPEN }
+
+    /** Returned by {@link #tryAcquirePermission} when no call may be made. */
+    public static final long NO_PERMISSION = -1;
+
+    private static final State[] STATES = State.values();
+    private static final long STATE_MASK = 0b11;
+    private static final long PROBE_TAKEN = 0b100;
+    private static final int GENERATION_SHIFT = 3;
+
+    private final int failureThreshold;
+    private final long openMillis;
+    private final BiConsumer<State, State> transitionListener;
+
+    // generation << 3 | probe taken << 2 | state ordinal
+    private final AtomicLong word = new AtomicLong(State.CLOSED.ordinal());
+    private final AtomicInteger consecutiveFailures = new AtomicInteger();
+    private volatile long openedAt;
+
+    public RedisCircuitBreaker(int failureThreshold, long openMillis, BiConsumer<State, State> transitionListener) {
+        this.failureThreshold = Math.max(1, failureThreshold);
+        this.openMillis = openMillis;
+        this.transitionListener = transitionListener;
+    }
+
+    public State getState() {
+        return stateOf(word.get());
+    }
+
+    /**
+     * Whether a call made now would be refused: the circuit is open and its timeout has not
+     * passed, or it is half-open with the probe already out. Unlike {@link #getState()}, this
+     * turns false once a probe may go out, so callers that check it before queueing a call
+     * still let the probe through {@link #tryAcquirePermission}.
+     */
+    public boolean isRefusing(long now) {
+        long current = word.get();
+        switch (stateOf(current)) {
+            case OPEN:
+                return now - openedAt < openMillis;
+            case HALF_OPEN:
+                return (current & PROBE_TAKEN) != 0;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Whether a Redis call may be attempted now: a permit to pass to {@link #onSuccess} or
+     * {@link #onFailure}, or {@link #NO_PERMISSION}. Every permitted call must report its outcome.
+     */
+    public long tryAcquirePermission(long now) {
+        long current = word.get();
+        if (stateOf(current) == State.OPEN) {
+            if (now - openedAt < openMillis) {
+                return NO_PERMISSION;
+            }
+            transition(current, State.HALF_OPEN);
+            current = word.get();
+        }
+        switch (stateOf(current)) {
+            case CLOSED:
+                return current;
+            case HALF_OPEN:
+                long probe = current | PROBE_TAKEN;
+                return (current & PROBE_TAKEN) == 0 && word.compareAndSet(current, probe) ? probe : NO_PERMISSION;
+            default:
+                return NO_PERMISSION;
+        }
+    }
+
+    public void onSuccess(long permit) {
+        if (word.get() != permit) {
+            return;
+        }
+        // Avoid a shared write on every successful call while closed
+        if (consecutiveFailures.get() != 0) {
+            consecutiveFailures.set(0);
+        }
+        if (stateOf(permit) == State.HALF_OPEN) {
+            transition(permit, State.CLOSED);
+        }
+    }
+
+    public void onFailure(long permit, long now) {
+        if (word.get() != permit) {
+            return;
+        }
+        if (stateOf(permit) == State.HALF_OPEN) {
+            openedAt = now;
+            transition(permit, State.OPEN);
+        } else if (consecutiveFailures.incrementAndGet() >= failureThreshold) {
+            openedAt = now;
+            if (transition(permit, State.OPEN)) {
+                consecutiveFailures.set(0);
+            }
+        }
+    }
+
+    // Moves on to the next generation, with the probe free again
+    private boolean transition(long from, State to) {
+        long next = ((from >>> GENERATION_SHIFT) + 1) << GENERATION_SHIFT | to.ordinal();
+        if (word.compareAndSet(from, next)) {
+            transitionListener.accept(stateOf(from), to);
+            return true;
+        }
+        return false;
+    }
+
+    private static State stateOf(long word) {
+        return STATES[(int) (word & STATE_MASK)];
+    }
+}
@@ -0,0 +1,114 @@
+package com.example.service;
+
+import redis.clients.jedis.HostAndPort;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.JedisPoolConfig;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Standalone Redis nodes that buckets are spread over with a consistent-hash ring, one
+ * connection pool per node. Every key of a bucket lives on the node its bucket key hashes
+ * to, so each acquire script still runs on a single node. Each node owns many points on
+ * the ring, which keeps the split even and means adding a node moves only about
+ * {@code 1 / nodes} of the buckets.
+ */
+final class RedisShards implements AutoCloseable {
+    // Ring points per node; enough that no node's share strays more than a few percent from even
+    static final int POINTS_PER_NODE = 160;
+
+    /** One node and its pool. {@code index} is the node's position in the configured list. */
+    static final class Shard {
+        final int index;
+        final String name;
+        final JedisPool pool;
+
+        Shard(int index, String name, JedisPool pool) {
+            this.index = index;
+            this.name = name;
+            this.pool = pool;
+        }
+    }
+
+    private final List<Shard> shards;
+    // Ring point hashes in ascending order, and the shard owning each
+    private final long[] points;
+    private final int[] owners;
+
+    RedisShards(List<HostAndPort> nodes, JedisPoolConfig poolConfig, int timeoutMs) {
+        if (nodes.isEmpty()) {
+            throw new IllegalArgumentException("At least one Redis node is required");
+        }
+        List<Shard> shards = new ArrayList<>(nodes.size());
+        for (HostAndPort node : nodes) {
+            shards.add(new Shard(shards.size(), node.toString(),
+                    new JedisPool(poolConfig, node.getHost(), node.getPort(), timeoutMs)));
+        }
+        this.shards = Collections.unmodifiableList(shards);
+        long[][] ring = new long[nodes.size() * POINTS_PER_NODE][];
+        for (int s = 0; s < nodes.size(); s++) {
+            for (int p = 0; p < POINTS_PER_NODE; p++) {
+                // Points are placed by the node's address, so every service instance builds the same ring
+                ring[s * POINTS_PER_NODE + p] = new long[]{BucketTable.hash(shards.get(s).name + "#" + p), s};
+            }
+        }
+        Arrays.sort(ring, (a, b) -> Long.compare(a[0], b[0]));
+        this.points = new long[ring.length];
+        this.owners = new int[ring.length];
+        for (int i = 0; i < ring.length; i++) {
+            points[i] = ring[i][0];
+            owners[i] = (int) ring[i][1];
+        }
+    }
+
+    /** Parses a comma-separated {@code host:port} list, e.g. {@code redis-a:6379,redis-b:6379}. */
+    static List<HostAndPort> parseNodes(String nodes) {
+        List<HostAndPort> parsed = new ArrayList<>();
+        for (String node : nodes.split(",")) {
+            String trimmed = node.trim();
+            if (trimmed.isEmpty()) {
+                continue;
+            }
+            int colon = trimmed.lastIndexOf(':');
+            if (colon <= 0 || colon == trimmed.length() - 1) {
+                throw new IllegalArgumentException("Redis node must be host:port, got '" + trimmed + "'");
+            }
+            parsed.add(new HostAndPort(trimmed.substring(0, colon), Integer.parseInt(trimmed.substring(colon + 1))));
+        }
+        return parsed;
+    }
+
+    /** Position of the shard that holds the bucket {@code key}: the first ring point at or after its hash. */
+    int indexFor(String key) {
+        if (owners.length == POINTS_PER_NODE) {
+            return 0;
+        }
+        int i = Arrays.binarySearch(points, BucketTable.hash(key));
+        if (i < 0) {
+            i = -i - 1;
+        }
+        return owners[i == points.length ? 0 : i];
+    }
+
+    Shard get(int index) {
+        return shards.get(index);
+    }
+
+    int size() {
+        return shards.size();
+    }
+
+    List<Shard> all() {
+        return shards;
+    }
+
+    @Override
+    public void close() {
+        for (Shard shard : shards) {
+            shard.pool.close();
+        }
+    }
+}
@@ -0,0 +1,105 @@
+package com.example.service;
+
+import com.example.model.RateLimiterConfig;
+
+/**
+ * Window sizing shared by the sliding-window types, and the sliding-window counter
+ * packed into a single {@code long} so it can be updated with one CAS.
+ *
+ * <p>A window admits {@code capacity} requests and lasts {@code capacity / refillRate}
+ * seconds, so the long-run rate matches the bucket types. Windows are aligned to
+ * multiples of the window length, the same way the Redis scripts align them.
+ *
+ * <p>Counter layout: 28 bits of window index (modulo 2^28), 18 bits previous-window
+ * count and 18 bits current-window count. The index is compared modulo 2^28, so a state
+ * reads as empty once it is two windows old. It only reads as recent again if the key is
+ * left untouched for 2^28 windows, which is 74 hours even for 1 ms windows. The map store
+ * drops such a key long before that. A window admits at most 2^18 - 1 requests, whatever
+ * the capacity.
+ */
+final class SlidingWindowMath {
+    // Window length used when refillRate is 0: the window never rolls over
+    static final long NO_WINDOW_MILLIS = 1L << 50;
+
+    private static final int COUNT_BITS = 18;
+    private static final long COUNT_MASK = (1L << COUNT_BITS) - 1;
+    private static final int INDEX_BITS = 28;
+    private static final long INDEX_MASK = (1L << INDEX_BITS) - 1;
+
+    private SlidingWindowMath() {
+    }
+
+    static long windowMillis(RateLimiterConfig config) {
+        if (config.getRefillRate() <= 0) {
+            return NO_WINDOW_MILLIS;
+        }
+        return Math.max(1, (long) config.getCapacity() * 1000 / config.getRefillRate());
+    }
+
+    /** Returns the counter state after admitting one request, or {@link BucketMath#DENIED}. */
+    static long tryAcquireCounter(long state, int capacity, long window, long nowMillis) {
+        return tryAcquireCounter(state, capacity, window, nowMillis, 1);
+    }
+
+    /** Returns the counter state after admitting {@code permits} requests at once, or {@link BucketMath#DENIED}. */
+    static long tryAcquireCounter(long state, int capacity, long window, long nowMillis, int permits) {
+        long index = nowMillis / window;
+        long prev = previousCount(state, index);
+        long curr = currentCount(state, index);
+        // Denied rather than saturated once the count field is full, so a large capacity is not unlimited
+        if (estimate(prev, curr, window, nowMillis - index * window) + permits > capacity
+                || curr + permits > COUNT_MASK) {
+            return BucketMath.DENIED;
+        }
+        return pack(index, prev, curr + permits);
+    }
+
+    /** Returns the counter state with one request of the current window taken back. */
+    static long releaseCounter(long state, long window, long nowMillis) {
+        long index = nowMillis / window;
+        long curr = currentCount(state, index);
+        return curr == 0 ? state : pack(index, previousCount(state, index), curr - 1);
+    }
+
+    static int availableCounter(long state, int capacity, long window, long nowMillis) {
+        long index = nowMillis / window;
+        double used = estimate(previousCount(state, index), currentCount(state, index), window, nowMillis - index * window);
+        return (int) Math.max(0, Math.floor(capacity - used));
+    }
+
+    /** Millisecond time after which both windows of the state have rolled out. */
+    static long counterFullAt(long state, long window, long nowMillis) {
+        if ((state & ((COUNT_MASK << COUNT_BITS) | COUNT_MASK)) == 0) {
+            return 0;
+        }
+        long nowIndex = nowMillis / window;
+        return (nowIndex - age(state, nowIndex) + 2) * window;
+    }
+
+    private static double estimate(long prev, long curr, long window, long elapsedInWindow) {
+        return prev * (double) (window - elapsedInWindow) / window + curr;
+    }
+
+    // Windows since the state was written, modulo 2^28
+    private static long age(long state, long index) {
+        return (index - (state >>> (2 * COUNT_BITS))) & INDEX_MASK;
+    }
+
+    private static long previousCount(long state, long index) {
+        long age = age(state, index);
+        if (age == 0) {
+            return (state >>> COUNT_BITS) & COUNT_MASK;
+        }
+        return age == 1 ? state & COUNT_MASK : 0;
+    }
+
+    private static long currentCount(long state, long index) {
+        return age(state, index) == 0 ? state & COUNT_MASK : 0;
+    }
+
+    private static long pack(long index, long prev, long curr) {
+        return ((index & INDEX_MASK) << (2 * COUNT_BITS))
+                | (Math.min(prev, COUNT_MASK) << COUNT_BITS)
+                | Math.min(curr, COUNT_MASK);
+    }
+}
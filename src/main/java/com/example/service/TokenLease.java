@@ -0,0 +1,153 @@
+package com.example.service;
+
+import com.example.model.RateLimiterConfig;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Supplier;
+
+/**
+ * A block of tokens reserved from a key's Redis bucket and served from memory.
+ * Takes are lock-free; renewals are serialized by the caller holding the lease monitor.
+ * The lease keeps the config it was taken under, so its tokens go back to the same bucket
+ * shape even if the key's config has changed since.
+ */
+class TokenLease {
+    // Share of the bucket capacity a single node may hold at once
+    static final int MAX_LEASE_FRACTION = 10;
+    // A lease is sized to cover roughly this much of the key's observed traffic
+    static final long LEASE_TARGET_MS = 100;
+
+    private final RateLimiterConfig config;
+    private final AtomicInteger remaining = new AtomicInteger();
+    private final AtomicBoolean prefetching = new AtomicBoolean();
+    // Renewal started for async callers, shared by those that find the lease empty meanwhile
+    private final AtomicReference<CompletableFuture<Void>> renewal = new AtomicReference<>();
+    private volatile long expiresAt;
+    private volatile long grantedAt;
+    private volatile int blockStart;
+    private volatile double ratePerSecond;
+    // When the Redis bucket holds a token again, as of the last renewal; -1: never
+    private volatile long refillAt;
+
+    TokenLease(RateLimiterConfig config) {
+        this.config = config;
+    }
+
+    RateLimiterConfig getConfig() {
+        return config;
+    }
+
+    boolean tryTake(long now) {
+        if (now >= expiresAt) {
+            return false;
+        }
+        int r;
+        while ((r = remaining.get()) > 0) {
+            if (remaining.compareAndSet(r, r - 1)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    boolean hasTokens(long now) {
+        return now < expiresAt && remaining.get() > 0;
+    }
+
+    boolean isExpired(long now) {
+        return now >= expiresAt;
+    }
+
+    long getExpiresAt() {
+        return expiresAt;
+    }
+
+    int getRemaining() {
+        return remaining.get();
+    }
+
+    // Low watermark: a quarter of the last block left
+    boolean isLow() {
+        return remaining.get() <= blockStart / 4;
+    }
+
+    boolean beginPrefetch() {
+        return prefetching.compareAndSet(false, true);
+    }
+
+    void endPrefetch() {
+        prefetching.set(false);
+    }
+
+    /**
+     * The renewal in flight, or one begun with {@code start} if there is none, so callers that
+     * find the lease empty at once share one Redis call. Does not take the lease monitor.
+     */
+    CompletableFuture<Void> renewal(Supplier<CompletableFuture<Void>> start) {
+        while (true) {
+            CompletableFuture<Void> current = renewal.get();
+            if (current != null) {
+                return current;
+            }
+            CompletableFuture<Void> next = new CompletableFuture<>();
+            if (renewal.compareAndSet(null, next)) {
+                start.get().whenComplete((ignored, ex) -> {
+                    // Cleared first, so a caller completing on it never joins a finished renewal
+                    renewal.compareAndSet(next, null);
+                    if (ex != null) {
+                        next.completeExceptionally(ex);
+                    } else {
+                        next.complete(null);
+                    }
+                });
+                return next;
+            }
+        }
+    }
+
+    /** Removes and returns all unused tokens. */
+    int drain() {
+        return remaining.getAndSet(0);
+    }
+
+    void restore(int tokens) {
+        remaining.addAndGet(tokens);
+    }
+
+    /**
+     * Number of tokens to request on the next renewal, sized from the observed
+     * request rate and capped so one node never holds more than a fraction of the bucket.
+     */
+    int nextLeaseSize(int capacity) {
+        int max = Math.max(1, capacity / MAX_LEASE_FRACTION);
+        int target = (int) Math.ceil(ratePerSecond * LEASE_TARGET_MS / 1000.0);
+        return Math.max(1, Math.min(max, target));
+    }
+
+    /** Millis until the Redis bucket held a token again as of the last renewal; -1 if it never will. */
+    long retryAfterMillis(long now) {
+        long at = refillAt;
+        return at < 0 ? -1 : Math.max(0, at - now);
+    }
+
+    /**
+     * Adds a newly granted block and updates the rate estimate from how fast the previous block was used.
+     *
+     * @param refillWaitMs millis until the Redis bucket holds a token again (0: it does, -1: never)
+     */
+    void renew(int granted, long now, long ttlMs, long refillWaitMs) {
+        refillAt = refillWaitMs < 0 ? -1 : now + refillWaitMs;
+        int current = remaining.get();
+        if (grantedAt > 0) {
+            int consumed = Math.max(0, blockStart - current);
+            double instant = consumed * 1000.0 / Math.max(1, now - grantedAt);
+            ratePerSecond = ratePerSecond == 0 ? instant : 0.7 * ratePerSecond + 0.3 * instant;
+        }
+        blockStart = remaining.addAndGet(granted);
+        grantedAt = now;
+        expiresAt = now + ttlMs;
+    }
+}
@@ -0,0 +1,119 @@
+package com.example.controller;
+
+import com.example.model.RateLimiterConfig;
+import com.example.model.RateLimiterType;
+import com.example.service.LocalRateLimiter;
+import com.example.service.RateLimiterService;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import redis.clients.jedis.HostAndPort;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class BinaryAcquireServerTest {
+
+    // Redis is disabled, so every decision comes from the in-memory engine
+    private final RateLimiterService service = new RateLimiterService(new SimpleMeterRegistry(),
+            Collections.singletonList(new HostAndPort("localhost", 1)), RateLimiterService.poolConfig(8, 8, 0, 100),
+            100, LocalRateLimiter.DEFAULT_MAX_BUCKETS, false, false, false, 0, Collections.emptyList());
+    private final BinaryAcquireServer server = new BinaryAcquireServer(service, true, "127.0.0.1", 0);
+
+    @BeforeEach
+    void setUp() throws IOException {
+        service.setConfig("edge", new RateLimiterConfig(2, 0, RateLimiterType.TOKEN_BUCKET));
+        server.start();
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        server.stop();
+        service.shutdown();
+    }
+
+    static byte[] frame(byte op, int requestId, int permits, String key) {
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        return ByteBuffer.allocate(4 + 7 + keyBytes.length)
+                .putInt(7 + keyBytes.length)
+                .put(op)
+                .putInt(requestId)
+                .putShort((short) permits)
+                .put(keyBytes)
+                .array();
+    }
+
+    @Test
+    void answers_pipelined_requests_with_fixed_size_responses() throws IOException {
+        try (SocketChannel client = SocketChannel.open(new InetSocketAddress("127.0.0.1", server.getPort()))) {
+            ByteBuffer requests = ByteBuffer.allocate(256);
+            requests.put(frame(BinaryAcquireServer.OP_ACQUIRE, 1, 1, "edge"));
+            requests.put(frame(BinaryAcquireServer.OP_ACQUIRE, 2, 1, "edge"));
+            requests.put(frame(BinaryAcquireServer.OP_ACQUIRE, 3, 1, "edge"));
+            requests.put(frame(BinaryAcquireServer.OP_STATUS, 4, 0, "edge"));
+            requests.put(frame(BinaryAcquireServer.OP_ACQUIRE, 5, 0, "edge"));
+            requests.flip();
+            while (requests.hasRemaining()) {
+                client.write(requests);
+            }
+
+            ByteBuffer responses = ByteBuffer.allocate(5 * BinaryAcquireServer.RESPONSE_BYTES);
+            while (responses.hasRemaining()) {
+                assertTrue(client.read(responses) >= 0, "connection closed early");
+            }
+            responses.flip();
+            Map<Integer, ByteBuffer> byId = new HashMap<>();
+            while (responses.hasRemaining()) {
+                ByteBuffer response = responses.slice();
+                response.limit(BinaryAcquireServer.RESPONSE_BYTES);
+                byId.put(response.getInt(0), response);
+                responses.position(responses.position() + BinaryAcquireServer.RESPONSE_BYTES);
+            }
+
+            assertEquals(BinaryAcquireServer.ALLOWED, byId.get(1).get(4));
+            assertEquals(BinaryAcquireServer.ALLOWED, byId.get(2).get(4));
+            assertEquals(0, byId.get(2).getInt(5));
+            assertEquals(BinaryAcquireServer.DENIED, byId.get(3).get(4));
+            // The bucket never refills, which the retry-after says as -1 rather than a wait
+            assertEquals(-1, byId.get(3).getInt(9));
+            assertEquals(BinaryAcquireServer.DENIED, byId.get(4).get(4));
+            assertEquals(0, byId.get(4).getInt(5));
+            assertEquals(BinaryAcquireServer.BAD_REQUEST, byId.get(5).get(4));
+        }
+    }
+
+    @Test
+    void answers_leased_acquires_once_the_renewal_completes() throws IOException {
+        service.setConfig("leased", new RateLimiterConfig(1, 0, RateLimiterType.TOKEN_BUCKET, true));
+        try (SocketChannel client = SocketChannel.open(new InetSocketAddress("127.0.0.1", server.getPort()))) {
+            ByteBuffer requests = ByteBuffer.wrap(frame(BinaryAcquireServer.OP_ACQUIRE, 7, 1, "leased"));
+            while (requests.hasRemaining()) {
+                client.write(requests);
+            }
+            ByteBuffer response = ByteBuffer.allocate(BinaryAcquireServer.RESPONSE_BYTES);
+            while (response.hasRemaining()) {
+                assertTrue(client.read(response) >= 0, "connection closed early");
+            }
+            assertEquals(7, response.getInt(0));
+            // The renewal ran on a lease renewer thread and failed, so the fallback decided
+            assertEquals(BinaryAcquireServer.ALLOWED, response.get(4));
+        }
+    }
+
+    @Test
+    void closes_connections_that_send_oversized_frames() throws IOException {
+        try (SocketChannel client = SocketChannel.open(new InetSocketAddress("127.0.0.1", server.getPort()))) {
+            client.write(ByteBuffer.allocate(4).putInt(0, BinaryAcquireServer.MAX_FRAME + 1));
+            assertEquals(-1, client.read(ByteBuffer.allocate(1)));
+        }
+    }
+}
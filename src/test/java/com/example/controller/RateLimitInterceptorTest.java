@@ -0,0 +1,108 @@
+package com.example.controller;
+
+import com.example.model.*;
+import com.example.security.JwtAuthenticationFilter;
+import com.example.service.RateLimiterService;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.web.method.HandlerMethod;
+import org.springframework.web.servlet.HandlerMapping;
+
+import java.util.Arrays;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class RateLimitInterceptorTest {
+
+    static class Handlers {
+        @RateLimited(key = "header:X-Api-Key", config = "search")
+        public void byHeader() { }
+
+        @RateLimited(key = "path:userId", config = "search")
+        public void byPath() { }
+
+        @RateLimited(key = "subject", config = "search")
+        public void bySubject() { }
+
+        public void unlimited() { }
+
+        @RateLimited(key = "cookie:session")
+        public void badKey() { }
+    }
+
+    // Nothing listens on port 1, so decisions come from the in-memory fallback
+    private final RateLimiterService service = new RateLimiterService(new SimpleMeterRegistry(), "localhost", 1);
+    private final RateLimitInterceptor interceptor = new RateLimitInterceptor(service);
+
+    @AfterEach
+    void tearDown() {
+        service.shutdown();
+    }
+
+    @Test
+    void header_key_limits_each_caller_separately() throws Exception {
+        service.setConfig("search", new RateLimiterConfig(2, 1, RateLimiterType.TOKEN_BUCKET));
+        HandlerMethod handler = handler("byHeader");
+
+        MockHttpServletResponse first = new MockHttpServletResponse();
+        assertTrue(interceptor.preHandle(request("X-Api-Key", "a"), first, handler));
+        assertEquals("1", first.getHeader(RateLimitInterceptor.REMAINING_HEADER));
+        assertEquals("2", first.getHeader(RateLimitInterceptor.LIMIT_HEADER));
+        assertTrue(interceptor.preHandle(request("X-Api-Key", "a"), new MockHttpServletResponse(), handler));
+
+        MockHttpServletResponse denied = new MockHttpServletResponse();
+        assertFalse(interceptor.preHandle(request("X-Api-Key", "a"), denied, handler));
+        assertEquals(429, denied.getStatus());
+        assertEquals("0", denied.getHeader(RateLimitInterceptor.REMAINING_HEADER));
+        assertEquals("1", denied.getHeader("Retry-After"));
+
+        assertTrue(interceptor.preHandle(request("X-Api-Key", "b"), new MockHttpServletResponse(), handler));
+    }
+
+    @Test
+    void path_variable_and_subject_keys() throws Exception {
+        service.setConfig("search", new RateLimiterConfig(1, 1, RateLimiterType.TOKEN_BUCKET));
+
+        MockHttpServletRequest byPath = new MockHttpServletRequest();
+        byPath.setAttribute(HandlerMapping.URI_TEMPLATE_VARIABLES_ATTRIBUTE, Map.of("userId", "42"));
+        assertTrue(interceptor.preHandle(byPath, new MockHttpServletResponse(), handler("byPath")));
+        assertFalse(interceptor.preHandle(byPath, new MockHttpServletResponse(), handler("byPath")));
+
+        MockHttpServletRequest bySubject = new MockHttpServletRequest();
+        bySubject.setAttribute(JwtAuthenticationFilter.SUBJECT_ATTRIBUTE, "alice");
+        assertTrue(interceptor.preHandle(bySubject, new MockHttpServletResponse(), handler("bySubject")));
+        assertFalse(interceptor.preHandle(bySubject, new MockHttpServletResponse(), handler("bySubject")));
+    }
+
+    @Test
+    void unannotated_handlers_pass_and_bad_keys_are_rejected() throws Exception {
+        service.setConfig("search", new RateLimiterConfig(0, 0, RateLimiterType.TOKEN_BUCKET));
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        assertTrue(interceptor.preHandle(new MockHttpServletRequest(), response, handler("unlimited")));
+        assertNull(response.getHeader(RateLimitInterceptor.REMAINING_HEADER));
+
+        assertThrows(IllegalArgumentException.class,
+                () -> interceptor.preHandle(new MockHttpServletRequest(), new MockHttpServletResponse(), handler("badKey")));
+    }
+
+    @Test
+    void compiling_all_handlers_rejects_bad_keys_up_front() throws Exception {
+        interceptor.compileAll(Arrays.asList(handler("byHeader"), handler("unlimited")));
+        assertThrows(IllegalArgumentException.class,
+                () -> interceptor.compileAll(Arrays.asList(handler("byPath"), handler("badKey"))));
+    }
+
+    private static MockHttpServletRequest request(String header, String value) {
+        MockHttpServletRequest request = new MockHttpServletRequest();
+        request.addHeader(header, value);
+        return request;
+    }
+
+    private static HandlerMethod handler(String name) throws NoSuchMethodException {
+        return new HandlerMethod(new Handlers(), Handlers.class.getMethod(name));
+    }
+}
@@ -0,0 +1,53 @@
+package com.example.service;
+
+import com.example.model.RateLimiterType;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class BucketTableTest {
+
+    @Test
+    void update_stores_state_unless_denied() {
+        BucketTable table = new BucketTable(100);
+        assertEquals(0, table.get("a", RateLimiterType.TOKEN_BUCKET));
+        assertTrue(table.update("a", RateLimiterType.TOKEN_BUCKET, state -> state + 5));
+        assertEquals(5, table.get("a", RateLimiterType.TOKEN_BUCKET));
+        assertFalse(table.update("a", RateLimiterType.TOKEN_BUCKET, state -> BucketMath.DENIED));
+        assertEquals(5, table.get("a", RateLimiterType.TOKEN_BUCKET));
+        // Updates that leave a missing key at 0 do not add it
+        assertTrue(table.update("b", RateLimiterType.TOKEN_BUCKET, state -> 0));
+        assertEquals(1, table.size());
+    }
+
+    @Test
+    void changing_type_starts_from_zero() {
+        BucketTable table = new BucketTable(100);
+        table.update("a", RateLimiterType.TOKEN_BUCKET, state -> 7);
+        assertEquals(0, table.get("a", RateLimiterType.GCRA));
+        table.update("a", RateLimiterType.GCRA, state -> state + 1);
+        assertEquals(1, table.get("a", RateLimiterType.GCRA));
+        assertEquals(0, table.get("a", RateLimiterType.TOKEN_BUCKET));
+        assertEquals(1, table.size());
+    }
+
+    @Test
+    void full_table_evicts_by_clock_and_keeps_keys_in_use() {
+        BucketTable table = new BucketTable(64);
+        table.update("hot", RateLimiterType.TOKEN_BUCKET, state -> 1);
+        for (int i = 0; i < 10_000; i++) {
+            table.update("key:" + i, RateLimiterType.TOKEN_BUCKET, state -> 1);
+            assertEquals(1, table.get("hot", RateLimiterType.TOKEN_BUCKET));
+        }
+        assertTrue(table.size() <= 96);
+        assertTrue(table.getEvictions() > 9000);
+        // Every key still in the table can be found after the deletions shifted probe runs
+        int found = 0;
+        for (int i = 0; i < 10_000; i++) {
+            if (table.get("key:" + i, RateLimiterType.TOKEN_BUCKET) == 1) {
+                found++;
+            }
+        }
+        assertEquals(table.size() - 1, found);
+    }
+}
@@ -0,0 +1,71 @@
+package com.example.service;
+
+import com.example.model.*;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ConfigRulesTest {
+
+    private final RateLimiterConfig api = new RateLimiterConfig(100, 10, RateLimiterType.TOKEN_BUCKET);
+    private final RateLimiterConfig acme = new RateLimiterConfig(50, 5, RateLimiterType.GCRA);
+    private final RateLimiterConfig premium = new RateLimiterConfig(500, 50, RateLimiterType.TOKEN_BUCKET);
+    private final RateLimiterConfig tenants = new RateLimiterConfig(10, 1, RateLimiterType.LEAKY_BUCKET);
+
+    @Test
+    void longest_prefix_wins() {
+        ConfigRules rules = new ConfigRules(16);
+        rules.put("api:*", api);
+        rules.put("api:acme:*", acme);
+
+        assertSame(api, rules.resolve("api:other:1"));
+        assertSame(acme, rules.resolve("api:acme:1"));
+        assertSame(api, rules.resolve("api:"));
+        assertNull(rules.resolve("ap"));
+        assertNull(rules.resolve("web:1"));
+    }
+
+    @Test
+    void globs_match_inner_wildcards_and_beat_plain_prefixes() {
+        ConfigRules rules = new ConfigRules(16);
+        rules.put("tenant:*", tenants);
+        rules.put("tenant:*:premium", premium);
+        rules.put("*:ip", api);
+
+        assertSame(premium, rules.resolve("tenant:acme:premium"));
+        assertSame(tenants, rules.resolve("tenant:acme:basic"));
+        assertSame(tenants, rules.resolve("tenant:acme:premium:x"));
+        assertSame(api, rules.resolve("10.0.0.1:ip"));
+    }
+
+    @Test
+    void globs_with_several_wildcards_match_without_backtracking() {
+        ConfigRules rules = new ConfigRules(16);
+        rules.put("a*b*c", premium);
+        rules.put("x*", tenants);
+
+        assertSame(premium, rules.resolve("abc"));
+        assertSame(premium, rules.resolve("a-b-b-c-c"));
+        assertSame(premium, rules.resolve("abcbc"));
+        assertNull(rules.resolve("acb"));
+        assertNull(rules.resolve("ab"));
+        // The last segment must end the key
+        assertNull(rules.resolve("abcd"));
+        assertSame(tenants, rules.resolve("x" + "a".repeat(10_000)));
+    }
+
+    @Test
+    void changes_replace_memoized_results() {
+        ConfigRules rules = new ConfigRules(1);
+        assertNull(rules.resolve("api:1"));
+        rules.put("api:*", api);
+        assertSame(api, rules.resolve("api:1"));
+        // Past the memo bound each new key evicts an older one
+        assertSame(api, rules.resolve("api:2"));
+        assertSame(api, rules.resolve("api:1"));
+
+        assertTrue(rules.remove("api:*"));
+        assertNull(rules.resolve("api:1"));
+        assertFalse(rules.remove("api:*"));
+    }
+}
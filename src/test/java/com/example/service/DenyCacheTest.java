@@ -0,0 +1,58 @@
+package com.example.service;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class DenyCacheTest {
+
+    @Test
+    void denial_expires_at_retry_after() {
+        DenyCache cache = new DenyCache(10);
+        cache.deny("user", 1000, 250);
+        assertEquals(250, cache.deniedFor("user", 1000));
+        assertEquals(1, cache.deniedFor("user", 1249));
+        assertEquals(0, cache.deniedFor("user", 1250));
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    void unknown_retry_after_is_not_cached() {
+        DenyCache cache = new DenyCache(10);
+        cache.deny("user", 1000, 0);
+        assertEquals(0, cache.deniedFor("user", 1000));
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    void bucket_that_never_refills_is_held_for_a_while() {
+        DenyCache cache = new DenyCache(10);
+        cache.deny("user", 1000, -1);
+        assertEquals(-1, cache.deniedFor("user", 1000));
+        assertEquals(-1, cache.deniedFor("user", 1000 + DenyCache.NEVER_REFILLS_MS - 1));
+        assertEquals(0, cache.deniedFor("user", 1000 + DenyCache.NEVER_REFILLS_MS));
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    void full_cache_sweeps_expired_entries_before_skipping() {
+        DenyCache cache = new DenyCache(2);
+        cache.deny("a", 0, 100);
+        cache.deny("b", 0, 500);
+        cache.deny("c", 50, 100);
+        assertEquals(0, cache.deniedFor("c", 50));
+
+        cache.deny("c", 200, 100);
+        assertEquals(100, cache.deniedFor("c", 200));
+        assertEquals(0, cache.deniedFor("a", 200));
+        assertEquals(2, cache.size());
+    }
+
+    @Test
+    void invalidate_drops_entry() {
+        DenyCache cache = new DenyCache(10);
+        cache.deny("user", 0, 1000);
+        cache.invalidate("user");
+        assertEquals(0, cache.deniedFor("user", 0));
+    }
+}
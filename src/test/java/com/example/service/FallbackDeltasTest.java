@@ -0,0 +1,66 @@
+package com.example.service;
+
+import com.example.model.RateLimiterConfig;
+import com.example.model.RateLimiterType;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class FallbackDeltasTest {
+    private static final RateLimiterConfig CONFIG = new RateLimiterConfig(10, 2, RateLimiterType.TOKEN_BUCKET);
+
+    @Test
+    void grants_accumulate_per_key_until_drained() {
+        FallbackDeltas deltas = new FallbackDeltas(10);
+        deltas.add("a", CONFIG, 3, 1000);
+        deltas.add("a", CONFIG, 2, 1000);
+        deltas.add("b", CONFIG, 1, 1000);
+        assertEquals(2, deltas.size());
+        assertEquals(6, deltas.pendingPermits());
+
+        List<FallbackDeltas.Delta> drained = deltas.drain(10, 1000);
+        assertEquals(2, drained.size());
+        assertTrue(deltas.isEmpty());
+        assertEquals(0, deltas.pendingPermits());
+        long forA = drained.stream().filter(d -> d.key.equals("a")).findFirst().get().outstanding(1000);
+        assertEquals(5, forA);
+    }
+
+    @Test
+    void outstanding_shrinks_at_the_refill_rate_and_never_exceeds_capacity() {
+        FallbackDeltas deltas = new FallbackDeltas(10);
+        deltas.add("a", CONFIG, 50, 1000);
+        FallbackDeltas.Delta delta = deltas.drain(10, 1000).get(0);
+        assertEquals(10, delta.outstanding(1000));
+        deltas.add("b", CONFIG, 4, 1000);
+        delta = deltas.drain(10, 2000).get(0);
+        assertEquals(2, delta.outstanding(2000));
+        // Fully refilled totals are not handed out at all
+        deltas.add("c", CONFIG, 4, 1000);
+        assertTrue(deltas.drain(10, 3000).isEmpty());
+    }
+
+    @Test
+    void restore_merges_with_grants_made_meanwhile() {
+        FallbackDeltas deltas = new FallbackDeltas(10);
+        deltas.add("a", CONFIG, 3, 1000);
+        List<FallbackDeltas.Delta> drained = deltas.drain(10, 1000);
+        deltas.add("a", CONFIG, 1, 1000);
+        deltas.restore(drained);
+        assertEquals(4, deltas.pendingPermits());
+        assertEquals(4, deltas.drain(10, 1000).get(0).outstanding(1000));
+    }
+
+    @Test
+    void full_store_drops_grants_for_new_keys() {
+        FallbackDeltas deltas = new FallbackDeltas(1);
+        deltas.add("a", CONFIG, 1, 1000);
+        deltas.add("b", CONFIG, 2, 1000);
+        deltas.add("a", CONFIG, 1, 1000);
+        assertEquals(1, deltas.size());
+        assertEquals(2, deltas.pendingPermits());
+        assertEquals(2, deltas.droppedPermits());
+    }
+}
@@ -0,0 +1,85 @@
+package com.example.service;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class HotKeysTest {
+
+    @Test
+    void finds_heavy_hitters_among_many_cold_keys() {
+        HotKeys keys = new HotKeys(3, 1024, 4);
+        for (int i = 0; i < 50_000; i++) {
+            keys.add("cold:" + i);
+            if (i % 10 == 0) {
+                keys.add("hot:a");
+            }
+            if (i % 20 == 0) {
+                keys.add("hot:b");
+            }
+            if (i % 40 == 0) {
+                keys.add("hot:c");
+            }
+        }
+        Map<String, Long> top = keys.top();
+        assertEquals(List.of("hot:a", "hot:b", "hot:c"), new ArrayList<>(top.keySet()));
+        // Never below the true count, and with these sizes not far above it
+        assertTrue(top.get("hot:a") >= 5_000 && top.get("hot:a") < 5_500, "hot:a estimated at " + top.get("hot:a"));
+        assertEquals(top.get("hot:a"), keys.estimateAtRank(1));
+        assertEquals(0, keys.estimateAtRank(4));
+    }
+
+    @Test
+    void never_underestimates() {
+        HotKeys keys = new HotKeys(5, 64, 2);
+        for (int i = 0; i < 2_000; i++) {
+            for (int j = 0; j <= i % 7; j++) {
+                keys.add("key:" + i);
+            }
+        }
+        for (int i = 0; i < 2_000; i++) {
+            assertTrue(keys.estimate("key:" + i) >= i % 7 + 1);
+        }
+    }
+
+    @Test
+    void decay_lets_new_keys_take_over() {
+        HotKeys keys = new HotKeys(1, 1024, 4);
+        for (int i = 0; i < 100; i++) {
+            keys.add("old");
+        }
+        assertEquals(100, keys.estimate("old"));
+        for (int i = 0; i < 4; i++) {
+            keys.decay();
+        }
+        assertEquals(6, keys.estimate("old"));
+        for (int i = 0; i < 10; i++) {
+            keys.add("new");
+        }
+        assertEquals(List.of("new"), new ArrayList<>(keys.top().keySet()));
+        for (int i = 0; i < 4; i++) {
+            keys.decay();
+        }
+        assertTrue(keys.top().isEmpty());
+    }
+
+    @Test
+    void sampled_counts_stay_close_for_busy_keys() {
+        HotKeys keys = new HotKeys(2, 1024, 4, 16);
+        for (int i = 0; i < 100_000; i++) {
+            keys.offer("hot");
+            if (i % 10 == 0) {
+                keys.offer("warm");
+            }
+        }
+        assertEquals(List.of("hot", "warm"), new ArrayList<>(keys.top().keySet()));
+        long hot = keys.estimate("hot");
+        assertTrue(hot > 90_000 && hot < 110_000, "hot estimated at " + hot);
+        assertEquals(0, keys.estimate("hot") % 16);
+        assertEquals(hot, keys.estimateAtRank(1));
+    }
+}
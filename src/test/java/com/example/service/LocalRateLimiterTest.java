@@ -0,0 +1,371 @@
+package com.example.service;
+
+import com.example.model.*;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class LocalRateLimiterTest {
+
+    @Test
+    void tokenBucket_refills_at_millisecond_precision() {
+        RateLimiterConfig config = new RateLimiterConfig(1, 10, RateLimiterType.TOKEN_BUCKET);
+        LocalRateLimiter limiter = new LocalRateLimiter(1);
+        long now = System.currentTimeMillis();
+
+        assertTrue(limiter.tryAcquire("k", config, now));
+        assertFalse(limiter.tryAcquire("k", config, now + 99));
+        assertTrue(limiter.tryAcquire("k", config, now + 100));
+    }
+
+    @Test
+    void leakyBucket_drains_at_millisecond_precision() {
+        RateLimiterConfig config = new RateLimiterConfig(2, 4, RateLimiterType.LEAKY_BUCKET);
+        LocalRateLimiter limiter = new LocalRateLimiter(1);
+        long now = System.currentTimeMillis();
+
+        assertTrue(limiter.tryAcquire("k", config, now));
+        assertTrue(limiter.tryAcquire("k", config, now));
+        assertFalse(limiter.tryAcquire("k", config, now));
+        assertEquals(0, limiter.available("k", config, now));
+        assertEquals(1, limiter.available("k", config, now + 250));
+        assertTrue(limiter.tryAcquire("k", config, now + 250));
+    }
+
+    @Test
+    void tryAcquireAll_takes_from_every_key_or_none() {
+        RateLimiterConfig user = new RateLimiterConfig(5, 1, RateLimiterType.TOKEN_BUCKET);
+        RateLimiterConfig tenant = new RateLimiterConfig(5, 1, RateLimiterType.SLIDING_WINDOW_COUNTER);
+        RateLimiterConfig global = new RateLimiterConfig(2, 1, RateLimiterType.SLIDING_WINDOW_LOG);
+        LocalRateLimiter limiter = new LocalRateLimiter(1);
+        List<String> keys = List.of("user", "tenant", "global");
+        List<RateLimiterConfig> configs = List.of(user, tenant, global);
+        long now = System.currentTimeMillis();
+
+        assertEquals(-1, limiter.tryAcquireAll(keys, configs, now));
+        assertEquals(-1, limiter.tryAcquireAll(keys, configs, now));
+        assertEquals(2, limiter.tryAcquireAll(keys, configs, now));
+        // The denied chain gave its user and tenant tokens back
+        assertEquals(3, limiter.available("user", user, now));
+        assertEquals(3, limiter.available("tenant", tenant, now));
+        assertEquals(0, limiter.available("global", global, now));
+    }
+
+    @Test
+    void release_returns_a_token_but_never_overfills() {
+        RateLimiterConfig config = new RateLimiterConfig(2, 0, RateLimiterType.GCRA);
+        LocalRateLimiter limiter = new LocalRateLimiter(1);
+        long now = System.currentTimeMillis();
+
+        assertTrue(limiter.tryAcquire("k", config, now));
+        limiter.release("k", config, now);
+        limiter.release("k", config, now);
+        assertEquals(2, limiter.available("k", config, now));
+        assertTrue(limiter.tryAcquire("k", config, now));
+        assertTrue(limiter.tryAcquire("k", config, now));
+        assertFalse(limiter.tryAcquire("k", config, now));
+    }
+
+    @Test
+    void unknown_key_reports_full_capacity() {
+        RateLimiterConfig config = new RateLimiterConfig(5, 1, RateLimiterType.TOKEN_BUCKET);
+        assertEquals(5, new LocalRateLimiter().available("missing", config, System.currentTimeMillis()));
+    }
+
+    @Test
+    void stripedBucket_honors_total_capacity() {
+        RateLimiterConfig config = new RateLimiterConfig(10, 0, RateLimiterType.TOKEN_BUCKET);
+        long now = BucketMath.toMicros(System.currentTimeMillis());
+        LocalRateLimiter.StripedBucket bucket = new LocalRateLimiter.StripedBucket(4, config, 10, now);
+
+        assertEquals(10, bucket.available(config, now));
+        for (int i = 0; i < 10; i++) {
+            assertTrue(bucket.tryAcquire(config, now));
+        }
+        assertFalse(bucket.tryAcquire(config, now));
+        assertEquals(0, bucket.available(config, now));
+    }
+
+    @Test
+    void concurrent_acquires_never_exceed_capacity() throws Exception {
+        RateLimiterConfig config = new RateLimiterConfig(1000, 0, RateLimiterType.TOKEN_BUCKET);
+        LocalRateLimiter limiter = new LocalRateLimiter(4);
+        long now = System.currentTimeMillis();
+        AtomicInteger allowed = new AtomicInteger();
+        ExecutorService pool = Executors.newFixedThreadPool(8);
+        List<Future<?>> futures = new ArrayList<>();
+        for (int t = 0; t < 8; t++) {
+            futures.add(pool.submit(() -> {
+                for (int i = 0; i < 500; i++) {
+                    if (limiter.tryAcquire("hot", config, now)) {
+                        allowed.incrementAndGet();
+                    }
+                }
+            }));
+        }
+        for (Future<?> f : futures) {
+            f.get();
+        }
+        pool.shutdown();
+        // Promotion to stripes may let a handful of in-flight callers finish on the old word
+        assertTrue(allowed.get() >= 1000 && allowed.get() <= 1000 + 8, "allowed=" + allowed.get());
+    }
+
+    @Test
+    void idle_buckets_are_evicted_once_refilled() {
+        RateLimiterConfig config = new RateLimiterConfig(2, 1, RateLimiterType.TOKEN_BUCKET);
+        LocalRateLimiter limiter = new LocalRateLimiter(1);
+        long now = System.currentTimeMillis();
+        limiter.tryAcquire("a", config, now);
+        limiter.tryAcquire("b", config, now);
+        limiter.tryAcquire("b", config, now);
+
+        limiter.evictIdle(now + 1000);
+        assertEquals(1, limiter.size());
+        assertEquals(1, limiter.getIdleEvictions());
+
+        limiter.evictIdle(now + 2000);
+        assertEquals(0, limiter.size());
+        assertEquals(2, limiter.available("b", config, now + 2000));
+    }
+
+    @Test
+    void store_stays_within_budget() {
+        RateLimiterConfig config = new RateLimiterConfig(5, 1, RateLimiterType.LEAKY_BUCKET);
+        // Sweeps run inline here so the budget holds after every acquire
+        LocalRateLimiter limiter = new LocalRateLimiter(1, 10, false, Runnable::run);
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < 50; i++) {
+            assertTrue(limiter.tryAcquire("key" + i, config, now + i));
+        }
+        assertTrue(limiter.size() <= 10, "size=" + limiter.size());
+        assertTrue(limiter.getCapacityEvictions() >= 40);
+        // The most recently used key survives eviction
+        assertEquals(4, limiter.available("key49", config, now + 49));
+    }
+
+    @Test
+    void over_budget_sweeps_are_handed_to_the_evictor_one_at_a_time() {
+        RateLimiterConfig config = new RateLimiterConfig(5, 1, RateLimiterType.LEAKY_BUCKET);
+        List<Runnable> sweeps = new ArrayList<>();
+        LocalRateLimiter limiter = new LocalRateLimiter(1, 10, false, sweeps::add);
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < 50; i++) {
+            assertTrue(limiter.tryAcquire("key" + i, config, now + i));
+        }
+        // The acquiring thread only queued a sweep
+        assertEquals(50, limiter.size());
+        assertEquals(1, sweeps.size());
+
+        sweeps.remove(0).run();
+        assertTrue(limiter.size() <= 10, "size=" + limiter.size());
+        assertTrue(limiter.tryAcquire("key50", config, now + 50));
+        assertTrue(limiter.tryAcquire("key51", config, now + 51));
+        assertEquals(1, sweeps.size());
+    }
+
+    @Test
+    void slidingWindowLog_admits_capacity_per_window() {
+        // 3 requests per 3 second window
+        RateLimiterConfig config = new RateLimiterConfig(3, 1, RateLimiterType.SLIDING_WINDOW_LOG);
+        LocalRateLimiter limiter = new LocalRateLimiter(1);
+        long now = 1_000_000;
+
+        assertTrue(limiter.tryAcquire("k", config, now));
+        assertTrue(limiter.tryAcquire("k", config, now + 1000));
+        assertTrue(limiter.tryAcquire("k", config, now + 2000));
+        assertFalse(limiter.tryAcquire("k", config, now + 2999));
+        // The first request leaves the window exactly 3 seconds later
+        assertTrue(limiter.tryAcquire("k", config, now + 3000));
+        assertEquals(0, limiter.available("k", config, now + 3000));
+        assertEquals(1, limiter.available("k", config, now + 4000));
+    }
+
+    @Test
+    void slidingWindowCounter_weights_previous_window() {
+        // 10 requests per 1 second window
+        RateLimiterConfig config = new RateLimiterConfig(10, 10, RateLimiterType.SLIDING_WINDOW_COUNTER);
+        LocalRateLimiter limiter = new LocalRateLimiter(1);
+        long windowStart = 5_000;
+
+        for (int i = 0; i < 10; i++) {
+            assertTrue(limiter.tryAcquire("k", config, windowStart + 900));
+        }
+        assertFalse(limiter.tryAcquire("k", config, windowStart + 950));
+        // Halfway into the next window the previous one still counts for half: 10 * 0.5 = 5 used
+        assertEquals(5, limiter.available("k", config, windowStart + 1500));
+        for (int i = 0; i < 5; i++) {
+            assertTrue(limiter.tryAcquire("k", config, windowStart + 1500));
+        }
+        assertFalse(limiter.tryAcquire("k", config, windowStart + 1500));
+        assertEquals(10, limiter.available("k", config, windowStart + 3000));
+    }
+
+    @Test
+    void slidingWindowCounter_left_idle_for_a_million_windows_reads_as_empty() {
+        // One request per 1 ms window
+        RateLimiterConfig config = new RateLimiterConfig(1, 1000, RateLimiterType.SLIDING_WINDOW_COUNTER);
+        for (LocalRateLimiter limiter : new LocalRateLimiter[] {new LocalRateLimiter(1), new LocalRateLimiter(1, 1000, true)}) {
+            long now = 5_000;
+            assertTrue(limiter.tryAcquire("k", config, now));
+            assertFalse(limiter.tryAcquire("k", config, now));
+            // 2^20 windows later, where a 20-bit window index would wrap back to the same value
+            assertTrue(limiter.tryAcquire("k", config, now + (1L << 20)));
+        }
+    }
+
+    @Test
+    void slidingWindowCounter_denies_past_its_count_field_instead_of_saturating() {
+        RateLimiterConfig config = new RateLimiterConfig(10_000_000, 1000, RateLimiterType.SLIDING_WINDOW_COUNTER);
+        LocalRateLimiter limiter = new LocalRateLimiter(1);
+        long now = 5_000;
+
+        assertTrue(limiter.tryAcquire("k", config, now, (1 << 18) - 1));
+        assertFalse(limiter.tryAcquire("k", config, now));
+    }
+
+    @Test
+    void changing_type_starts_a_fresh_bucket() {
+        LocalRateLimiter limiter = new LocalRateLimiter(1);
+        long now = System.currentTimeMillis();
+        RateLimiterConfig token = new RateLimiterConfig(1, 1, RateLimiterType.TOKEN_BUCKET);
+        RateLimiterConfig counter = new RateLimiterConfig(1, 1, RateLimiterType.SLIDING_WINDOW_COUNTER);
+
+        assertTrue(limiter.tryAcquire("k", token, now));
+        assertFalse(limiter.tryAcquire("k", token, now));
+        assertTrue(limiter.tryAcquire("k", counter, now));
+        assertFalse(limiter.tryAcquire("k", counter, now));
+    }
+
+    @Test
+    void gcra_allows_burst_and_reports_retry_after() {
+        // Burst of 2, one request every 250 ms
+        RateLimiterConfig config = new RateLimiterConfig(2, 4, RateLimiterType.GCRA);
+        LocalRateLimiter limiter = new LocalRateLimiter(1);
+        long now = System.currentTimeMillis();
+
+        assertTrue(limiter.tryAcquire("k", config, now));
+        assertTrue(limiter.tryAcquire("k", config, now));
+        assertFalse(limiter.tryAcquire("k", config, now));
+        assertEquals(250, limiter.retryAfterMillis("k", config, now));
+        assertEquals(100, limiter.retryAfterMillis("k", config, now + 150));
+        assertTrue(limiter.tryAcquire("k", config, now + 250));
+        assertFalse(limiter.tryAcquire("k", config, now + 250));
+    }
+
+    @Test
+    void weighted_acquire_takes_all_permits_or_none() {
+        // 10 tokens, one every 100 ms
+        RateLimiterConfig config = new RateLimiterConfig(10, 10, RateLimiterType.TOKEN_BUCKET);
+        LocalRateLimiter limiter = new LocalRateLimiter(1);
+        long now = System.currentTimeMillis();
+
+        assertTrue(limiter.tryAcquire("k", config, now, 7));
+        assertFalse(limiter.tryAcquire("k", config, now, 4));
+        assertEquals(3, limiter.available("k", config, now));
+        assertEquals(100, limiter.retryAfterMillis("k", config, now, 4));
+        assertFalse(limiter.tryAcquire("k", config, now, 11));
+        assertTrue(limiter.tryAcquire("k", config, now + 100, 4));
+        assertEquals(1000, limiter.resetMillis("k", config, now + 100));
+    }
+
+    @Test
+    void reserve_books_ahead_and_later_callers_queue_behind() {
+        RateLimiterConfig config = new RateLimiterConfig(2, 10, RateLimiterType.GCRA);
+        LocalRateLimiter limiter = new LocalRateLimiter(1);
+        long now = System.currentTimeMillis();
+
+        assertEquals(0, limiter.reserve("k", config, now, 2, 1000));
+        // The bucket is empty, so the next two tokens are booked 200 ms out
+        assertEquals(200, limiter.reserve("k", config, now, 2, 1000));
+        assertFalse(limiter.tryAcquire("k", config, now + 299));
+        assertEquals(-1, limiter.reserve("k", config, now, 1, 100));
+        assertEquals(-1, limiter.reserve("k", config, now, 3, 10_000));
+        assertTrue(limiter.tryAcquire("k", config, now + 300));
+    }
+
+    @Test
+    void reserve_on_a_striped_key_waits_for_the_stripes_to_refill() {
+        // 8 tokens, one every 100 ms; over 4 stripes each holds 2 and refills one every 400 ms
+        RateLimiterConfig config = new RateLimiterConfig(8, 10, RateLimiterType.TOKEN_BUCKET);
+        LocalRateLimiter limiter = new LocalRateLimiter(4);
+        long now = 1_000_000;
+
+        assertTrue(limiter.tryAcquire("k", config, now));
+        limiter.promote("k", config, now);
+        assertTrue(limiter.isStriped("k"));
+        assertTrue(limiter.tryAcquire("k", config, now, 7));
+        assertFalse(limiter.tryAcquire("k", config, now));
+
+        assertEquals(400, limiter.retryAfterMillis("k", config, now, 2));
+        assertEquals(800, limiter.retryAfterMillis("k", config, now, 5));
+        // Too long a wait books nothing
+        assertEquals(-1, limiter.reserve("k", config, now, 5, 500));
+        assertEquals(400, limiter.reserve("k", config, now, 2, 500));
+        assertFalse(limiter.tryAcquire("k", config, now + 399));
+        // The two stripes not booked have refilled
+        assertTrue(limiter.tryAcquire("k", config, now + 400, 2));
+        assertFalse(limiter.tryAcquire("k", config, now + 400));
+        assertEquals(-1, limiter.reserve("k", config, now + 400, 9, 10_000));
+    }
+
+    @Test
+    void sliding_windows_take_several_permits() {
+        RateLimiterConfig log = new RateLimiterConfig(5, 5, RateLimiterType.SLIDING_WINDOW_LOG);
+        RateLimiterConfig counter = new RateLimiterConfig(5, 5, RateLimiterType.SLIDING_WINDOW_COUNTER);
+        LocalRateLimiter limiter = new LocalRateLimiter(1);
+        long now = 1_000_000;
+
+        assertTrue(limiter.tryAcquire("log", log, now, 3));
+        assertFalse(limiter.tryAcquire("log", log, now, 3));
+        assertTrue(limiter.tryAcquire("log", log, now, 2));
+        assertTrue(limiter.tryAcquire("counter", counter, now, 5));
+        assertFalse(limiter.tryAcquire("counter", counter, now, 1));
+        // Sliding windows cannot book ahead
+        assertEquals(-1, limiter.reserve("counter", counter, now, 1, 10_000));
+    }
+
+    @Test
+    void primitive_table_matches_the_map_store() {
+        RateLimiterConfig token = new RateLimiterConfig(3, 10, RateLimiterType.TOKEN_BUCKET);
+        RateLimiterConfig counter = new RateLimiterConfig(2, 2, RateLimiterType.SLIDING_WINDOW_COUNTER);
+        RateLimiterConfig log = new RateLimiterConfig(1, 1, RateLimiterType.SLIDING_WINDOW_LOG);
+        LocalRateLimiter limiter = new LocalRateLimiter(4, 1000, true);
+        long now = 1_000_000;
+
+        assertTrue(limiter.tryAcquire("t", token, now, 2));
+        assertEquals(1, limiter.available("t", token, now));
+        assertFalse(limiter.tryAcquire("t", token, now, 2));
+        assertEquals(100, limiter.retryAfterMillis("t", token, now, 2));
+        limiter.release("t", token, now);
+        assertEquals(2, limiter.available("t", token, now));
+        assertEquals(100, limiter.reserve("t", token, now, 3, 1000));
+        assertFalse(limiter.tryAcquire("t", token, now + 99));
+
+        assertTrue(limiter.tryAcquire("c", counter, now, 2));
+        assertFalse(limiter.tryAcquire("c", counter, now));
+        // The sliding-window log still lives in the map
+        assertTrue(limiter.tryAcquire("l", log, now));
+        assertFalse(limiter.tryAcquire("l", log, now));
+        assertEquals(3, limiter.size());
+        assertFalse(limiter.isStriped("t"));
+    }
+
+    @Test
+    void debit_takes_at_most_what_the_bucket_holds() {
+        RateLimiterConfig config = new RateLimiterConfig(5, 1, RateLimiterType.TOKEN_BUCKET);
+        LocalRateLimiter limiter = new LocalRateLimiter(1);
+        long now = 1_000_000;
+
+        assertEquals(3, limiter.debit("d", config, now, 3));
+        assertEquals(2, limiter.available("d", config, now));
+        assertEquals(2, limiter.debit("d", config, now, 4));
+        assertEquals(0, limiter.debit("d", config, now, 1));
+        assertFalse(limiter.tryAcquire("d", config, now));
+    }
+}
@@ -0,0 +1,86 @@
+package com.example.service;
+
+import com.example.model.RateLimiterConfig;
+import com.example.model.RateLimiterType;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class PeerSyncTest {
+    private static final RateLimiterConfig CONFIG = new RateLimiterConfig(10, 0, RateLimiterType.TOKEN_BUCKET);
+
+    static int freeUdpPort() throws IOException {
+        try (DatagramSocket socket = new DatagramSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    @Test
+    void usage_recorded_on_one_node_reaches_its_peer() throws Exception {
+        int portA = freeUdpPort();
+        int portB = freeUdpPort();
+        Map<String, Integer> heardByB = new ConcurrentHashMap<>();
+        try (PeerSync a = new PeerSync(portA, Collections.singletonList(new InetSocketAddress("127.0.0.1", portB)),
+                100, (key, config, permits) -> fail("a has no sender"));
+             PeerSync b = new PeerSync(portB, Collections.singletonList(new InetSocketAddress("127.0.0.1", portA)),
+                     100, (key, config, permits) -> heardByB.merge(key, permits, Integer::sum))) {
+            long now = System.currentTimeMillis();
+            a.record("k", CONFIG, 2, now);
+            a.record("k", CONFIG, 1, now);
+            assertEquals(3, a.unsent("k"));
+            assertEquals(1, b.liveMembers(now));
+
+            a.flush(now);
+            assertEquals(0, a.unsent("k"));
+            long deadline = System.currentTimeMillis() + 5000;
+            while (heardByB.isEmpty() && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            assertEquals(3, heardByB.get("k"));
+            assertEquals(2, b.liveMembers(System.currentTimeMillis()));
+        }
+    }
+
+    @Test
+    void large_batches_are_split_into_datagrams_that_fit() throws IOException {
+        List<FallbackDeltas.Delta> deltas = new ArrayList<>();
+        for (int i = 0; i < 500; i++) {
+            deltas.add(new FallbackDeltas.Delta("tenant:" + i, CONFIG, 1 + i % 10, 1000));
+        }
+        List<byte[]> datagrams = PeerSync.encode(deltas, 1000);
+        assertTrue(datagrams.size() > 1);
+
+        Map<String, Integer> decoded = new ConcurrentHashMap<>();
+        for (byte[] datagram : datagrams) {
+            assertTrue(datagram.length <= PeerSync.MAX_DATAGRAM);
+            PeerSync.decode(datagram, datagram.length, (key, config, permits) -> decoded.put(key, permits));
+        }
+        assertEquals(500, decoded.size());
+        assertEquals(8, decoded.get("tenant:17"));
+        // An empty flush still sends a heartbeat
+        assertEquals(1, PeerSync.encode(Collections.emptyList(), 1000).size());
+    }
+
+    @Test
+    void entries_carry_the_limit_the_sender_charged() throws IOException {
+        RateLimiterConfig perCaller = new RateLimiterConfig(3, 7, RateLimiterType.GCRA);
+        byte[] datagram = PeerSync.encode(Collections.singletonList(
+                new FallbackDeltas.Delta("search:alice", perCaller, 2, 1000)), 1000).get(0);
+
+        List<RateLimiterConfig> decoded = new ArrayList<>();
+        PeerSync.decode(datagram, datagram.length, (key, config, permits) -> decoded.add(config));
+        assertEquals(1, decoded.size());
+        assertEquals(3, decoded.get(0).getCapacity());
+        assertEquals(7, decoded.get(0).getRefillRate());
+        assertEquals(RateLimiterType.GCRA, decoded.get(0).getType());
+    }
+}
@@ -1,9 +1,21 @@
 package com.example.service;
 
 import com.example.model.*;
+import com.github.dockerjava.api.DockerClient;
 import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
 import org.junit.jupiter.api.*;
+import org.testcontainers.DockerClientFactory;
 import org.testcontainers.containers.GenericContainer;
+import redis.clients.jedis.HostAndPort;
+import redis.clients.jedis.JedisPoolConfig;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
 
 import static org.junit.jupiter.api.Assertions.*;
 
@@ -87,4 +99,235 @@ public class RateLimiterServiceFullTest {
         service.acquire("user5");
         assertTrue(service.getAllStatuses().containsKey("user5"));
     }
-}
\ No newline at end of file
+
+    @Test
+    void testStatusPagesScanUnconfiguredKeys() {
+        service.setConfig("user11", new RateLimiterConfig(3, 1, RateLimiterType.GCRA));
+        service.acquire("user11");
+        service.acquire("adhoc:11");
+
+        Map<String, RateLimiterStatus> statuses = new HashMap<>();
+        String cursor = "0";
+        do {
+            StatusPage page = service.getStatusPage(cursor, 2);
+            statuses.putAll(page.getStatuses());
+            cursor = page.getCursor();
+        } while (!"0".equals(cursor));
+        assertEquals(2, statuses.get("user11").getTokensLeft());
+        assertEquals(RateLimiterType.TOKEN_BUCKET, statuses.get("adhoc:11").getType());
+        assertEquals(9, statuses.get("adhoc:11").getTokensLeft());
+    }
+
+    @Test
+    void testAcquireChainConsumesOnlyWhenEveryTierAllows() {
+        service.setConfig("chainUser", new RateLimiterConfig(3, 1, RateLimiterType.TOKEN_BUCKET));
+        service.setConfig("chainTenant", new RateLimiterConfig(3, 1, RateLimiterType.SLIDING_WINDOW_LOG));
+        service.setConfig("chainGlobal", new RateLimiterConfig(1, 1, RateLimiterType.GCRA));
+        List<String> chain = Arrays.asList("chainUser", "chainTenant", "chainGlobal");
+
+        AcquireResult first = service.acquireChain(chain);
+        assertTrue(first.isAllowed());
+        assertEquals(0, first.getRemaining());
+        AcquireResult denied = service.acquireChain(chain);
+        assertFalse(denied.isAllowed());
+        assertTrue(denied.getRetryAfterMillis() > 0 && denied.getRetryAfterMillis() <= 1000);
+        assertEquals(2, service.getStatus("chainUser").getTokensLeft());
+        assertEquals(2, service.getStatus("chainTenant").getTokensLeft());
+    }
+
+    @Test
+    void testCompactLayoutReadsLegacyBucketsUntilRewritten() {
+        RateLimiterConfig config = new RateLimiterConfig(3, 1, RateLimiterType.TOKEN_BUCKET);
+        service.setConfig("compact1", config);
+        assertTrue(service.acquire("compact1"));
+        assertTrue(service.acquire("compact1"));
+
+        RateLimiterService compact = new RateLimiterService(new SimpleMeterRegistry(),
+                redis.getHost(), redis.getMappedPort(6379), LocalRateLimiter.DEFAULT_MAX_BUCKETS, true);
+        compact.setConfig("compact1", config);
+        assertEquals(1, compact.getStatus("compact1").getTokensLeft());
+        assertTrue(compact.acquire("compact1"));
+        assertFalse(compact.acquire("compact1"));
+        assertEquals(0, compact.getStatus("compact1").getTokensLeft());
+        assertTrue(compact.getStatusPage("0", 1000).getStatuses().containsKey("compact1"));
+        compact.shutdown();
+    }
+
+    @Test
+    void testAcquireAllPipelined() {
+        service.setConfig("batch1", new RateLimiterConfig(1, 1, RateLimiterType.TOKEN_BUCKET));
+        service.setConfig("batch2", new RateLimiterConfig(2, 1, RateLimiterType.LEAKY_BUCKET));
+        assertThrows(IllegalArgumentException.class,
+                () -> service.acquireAll(Arrays.asList("batch1", "batch2", "batch1")));
+        Map<String, Boolean> first = service.acquireAll(Arrays.asList("batch1", "batch2"));
+        assertEquals(2, first.size());
+        assertTrue(first.get("batch1"));
+        assertTrue(first.get("batch2"));
+
+        Map<String, Boolean> second = service.acquireAll(Arrays.asList("batch1", "batch2"));
+        assertFalse(second.get("batch1"));
+        assertTrue(second.get("batch2"));
+        assertFalse(service.acquire("batch2"));
+    }
+
+    @Test
+    void testAcquireSlidingWindowLogSuccessAndFail() {
+        RateLimiterConfig config = new RateLimiterConfig(2, 1, RateLimiterType.SLIDING_WINDOW_LOG);
+        service.setConfig("user6", config);
+        assertTrue(service.acquire("user6"));
+        assertTrue(service.acquire("user6"));
+        assertFalse(service.acquire("user6"));
+        assertEquals(0, service.getStatus("user6").getTokensLeft());
+        assertEquals(RateLimiterType.SLIDING_WINDOW_LOG, service.getStatus("user6").getType());
+    }
+
+    @Test
+    void testAcquireSlidingWindowCounterSuccessAndFail() {
+        RateLimiterConfig config = new RateLimiterConfig(2, 1, RateLimiterType.SLIDING_WINDOW_COUNTER);
+        service.setConfig("user7", config);
+        assertTrue(service.acquire("user7"));
+        assertTrue(service.acquire("user7"));
+        assertFalse(service.acquire("user7"));
+        assertTrue(service.getStatus("user7").getTokensLeft() <= config.getCapacity());
+    }
+
+    @Test
+    void testAcquireGcraReportsRetryAfter() {
+        RateLimiterConfig config = new RateLimiterConfig(2, 1, RateLimiterType.GCRA);
+        service.setConfig("user8", config);
+        assertTrue(service.acquire("user8"));
+        assertTrue(service.acquire("user8"));
+        AcquireResult denied = service.acquireWithResult("user8");
+        assertFalse(denied.isAllowed());
+        assertTrue(denied.getRetryAfterMillis() > 0 && denied.getRetryAfterMillis() <= 1000);
+        assertEquals(0, service.getStatus("user8").getTokensLeft());
+    }
+
+    @Test
+    void testDeniedKeyIsAnsweredFromDenyCache() {
+        RateLimiterConfig config = new RateLimiterConfig(1, 1, RateLimiterType.TOKEN_BUCKET);
+        service.setConfig("user10", config);
+        assertTrue(service.acquire("user10"));
+        AcquireResult first = service.acquireWithResult("user10");
+        assertFalse(first.isAllowed());
+        assertTrue(first.getRetryAfterMillis() > 0 && first.getRetryAfterMillis() <= 1000);
+        AcquireResult cached = service.acquireWithResult("user10");
+        assertFalse(cached.isAllowed());
+        assertTrue(cached.getRetryAfterMillis() <= first.getRetryAfterMillis());
+
+        // New limits invalidate the cached denial
+        service.setConfig("user10", new RateLimiterConfig(1, 1, RateLimiterType.LEAKY_BUCKET));
+        assertTrue(service.acquire("user10"));
+    }
+
+    @Test
+    void testAcquireAsyncPipelinesConcurrentCalls() {
+        service.setConfig("user9", new RateLimiterConfig(50, 0, RateLimiterType.TOKEN_BUCKET));
+        List<CompletableFuture<Boolean>> futures = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            futures.add(service.acquireAsync("user9"));
+        }
+        long allowed = futures.stream().map(CompletableFuture::join).filter(Boolean::booleanValue).count();
+        assertEquals(50, allowed);
+    }
+
+    @Test
+    void testWeightedAcquireAndReservation() {
+        service.setConfig("user13", new RateLimiterConfig(5, 1, RateLimiterType.TOKEN_BUCKET));
+        AcquireResult taken = service.acquireWithResult("user13", 4);
+        assertTrue(taken.isAllowed());
+        assertEquals(1, taken.getRemaining());
+        AcquireResult denied = service.acquireWithResult("user13", 3);
+        assertFalse(denied.isAllowed());
+        assertTrue(denied.getRetryAfterMillis() > 1000 && denied.getRetryAfterMillis() <= 2000);
+
+        // Books two seconds ahead; the bucket stays in debt until then
+        AcquireResult reserved = service.reserve("user13", 3, 5000);
+        assertTrue(reserved.isAllowed());
+        assertTrue(reserved.getRetryAfterMillis() > 1000);
+        assertFalse(service.acquire("user13"));
+        assertEquals(0, service.getStatus("user13").getTokensLeft());
+    }
+
+    @Test
+    void testFallbackUsageIsDebitedOnceRedisAnswers() throws InterruptedException {
+        RateLimiterConfig config = new RateLimiterConfig(10, 0, RateLimiterType.TOKEN_BUCKET);
+        service.setConfig("user12", config);
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < 4; i++) {
+            assertTrue(service.acquireInMemory("user12", config, now));
+        }
+        // The background reconciler runs every second
+        long deadline = System.currentTimeMillis() + 5000;
+        while (service.getStatus("user12").getTokensLeft() == 10 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(100);
+        }
+        assertEquals(6, service.getStatus("user12").getTokensLeft());
+    }
+
+    @Test
+    void testShardedChainRefundsEarlierNodeWhenLaterNodeDenies() {
+        try (GenericContainer<?> second = new GenericContainer<>("redis:7.2.4").withExposedPorts(6379)) {
+            second.start();
+            List<HostAndPort> nodes = Arrays.asList(new HostAndPort(redis.getHost(), redis.getMappedPort(6379)),
+                    new HostAndPort(second.getHost(), second.getMappedPort(6379)));
+            String user = "shardUser";
+            String global;
+            try (RedisShards ring = new RedisShards(nodes, new JedisPoolConfig(), 100)) {
+                int i = 0;
+                while (ring.indexFor("shardGlobal" + i) == ring.indexFor(user)) {
+                    i++;
+                }
+                global = "shardGlobal" + i;
+            }
+            RateLimiterService sharded = new RateLimiterService(new SimpleMeterRegistry(), nodes,
+                    RateLimiterService.poolConfig(8, 8, 0, 100), 100, LocalRateLimiter.DEFAULT_MAX_BUCKETS,
+                    false, false);
+            sharded.setConfig(user, new RateLimiterConfig(3, 1, RateLimiterType.TOKEN_BUCKET));
+            sharded.setConfig(global, new RateLimiterConfig(1, 1, RateLimiterType.GCRA));
+
+            assertTrue(sharded.acquireChain(Arrays.asList(user, global)).isAllowed());
+            assertFalse(sharded.acquireChain(Arrays.asList(user, global)).isAllowed());
+            // The user tier's token was handed back when the global tier denied
+            assertEquals(2, sharded.getStatus(user).getTokensLeft());
+
+            Map<String, RateLimiterStatus> statuses = new HashMap<>();
+            String cursor = "0";
+            do {
+                StatusPage page = sharded.getStatusPage(cursor, 100);
+                statuses.putAll(page.getStatuses());
+                cursor = page.getCursor();
+            } while (!"0".equals(cursor));
+            assertTrue(statuses.containsKey(user));
+            assertTrue(statuses.containsKey(global));
+            sharded.shutdown();
+        }
+    }
+
+    @Test
+    void testAsyncTrafficAloneClosesTheCircuitAfterAnOutage() throws Exception {
+        try (GenericContainer<?> flaky = new GenericContainer<>("redis:7.2.4").withExposedPorts(6379)) {
+            flaky.start();
+            SimpleMeterRegistry registry = new SimpleMeterRegistry();
+            RateLimiterService async = new RateLimiterService(registry, flaky.getHost(), flaky.getMappedPort(6379));
+            async.setConfig("async1", new RateLimiterConfig(100, 0, RateLimiterType.TOKEN_BUCKET));
+            DockerClient docker = DockerClientFactory.instance().client();
+
+            docker.pauseContainerCmd(flaky.getContainerId()).exec();
+            for (int i = 0; i < 5; i++) {
+                async.acquireWithResultAsync("async1").get(5, TimeUnit.SECONDS);
+            }
+            assertEquals(1, registry.get("ratelimiter_redis_circuit_transitions")
+                    .tags("from", "closed", "to", "open").counter().count());
+            docker.unpauseContainerCmd(flaky.getContainerId()).exec();
+
+            Thread.sleep(5_100);
+            assertTrue(async.acquireWithResultAsync("async1").get(5, TimeUnit.SECONDS).isAllowed());
+            assertEquals(1, registry.get("ratelimiter_redis_circuit_transitions")
+                    .tags("from", "half_open", "to", "closed").counter().count());
+            assertEquals(1, registry.get("ratelimiter_decision_latency")
+                    .tags("type", "token_bucket", "backend", "redis").timer().count());
+            async.shutdown();
+        }
+    }
+}
@@ -3,14 +3,43 @@ package com.example.service;
 import com.example.model.*;
 import org.junit.jupiter.api.Test;
 import org.testcontainers.containers.GenericContainer;
+import redis.clients.jedis.HostAndPort;
+import redis.clients.jedis.JedisPoolConfig;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.junit.jupiter.api.Assertions.*;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
 import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
 
 public class RateLimiterServiceUnitTest {
 
     static GenericContainer<?> redis = new GenericContainer<>("redis:7.2.4").withExposedPorts(6379);
 
+    // Nothing listens on ports 1 and 2, so every Redis call fails and decisions fall back to memory
+    private static final List<HostAndPort> TWO_NODES_DOWN = RedisShards.parseNodes("localhost:1,localhost:2");
+
+    private static RateLimiterService redisDown(MeterRegistry registry) {
+        return new RateLimiterService(registry, "localhost", 1);
+    }
+
+    private static RateLimiterService redisDown() {
+        return redisDown(new SimpleMeterRegistry());
+    }
+
+    private static RateLimiterService twoNodesDown() {
+        return new RateLimiterService(new SimpleMeterRegistry(), TWO_NODES_DOWN,
+                RateLimiterService.poolConfig(8, 8, 0, 100), 100, LocalRateLimiter.DEFAULT_MAX_BUCKETS, false, false);
+    }
+
     @Test
     void tokenBucket_allows_within_capacity() {
         RateLimiterConfig config = new RateLimiterConfig(3, 1, RateLimiterType.TOKEN_BUCKET);
@@ -46,4 +75,406 @@ public class RateLimiterServiceUnitTest {
         // Simulate 1 second later
         assertTrue(service.acquireInMemory("user3", config, now + 1000));
     }
-}
\ No newline at end of file
+
+    @Test
+    void tokenLease_serves_granted_block_until_expiry() {
+        TokenLease lease = new TokenLease(new RateLimiterConfig(1000, 100, RateLimiterType.TOKEN_BUCKET, true));
+        long now = System.currentTimeMillis();
+
+        assertFalse(lease.tryTake(now));
+        lease.renew(2, now, 1000, 0);
+        assertTrue(lease.tryTake(now));
+        assertTrue(lease.tryTake(now));
+        assertFalse(lease.tryTake(now));
+
+        lease.renew(1, now, 1000, 0);
+        assertFalse(lease.tryTake(now + 1000));
+        assertEquals(1, lease.drain());
+
+        // Redis had nothing left; its bucket holds a token again 250 ms after the renewal
+        lease.renew(0, now, 1000, 250);
+        assertEquals(150, lease.retryAfterMillis(now + 100));
+        lease.renew(0, now, 1000, -1);
+        assertEquals(-1, lease.retryAfterMillis(now + 100));
+    }
+
+    @Test
+    void tokenLease_callers_share_one_renewal_at_a_time() {
+        TokenLease lease = new TokenLease(new RateLimiterConfig(1000, 100, RateLimiterType.TOKEN_BUCKET, true));
+        CompletableFuture<Void> redis = new CompletableFuture<>();
+        AtomicInteger started = new AtomicInteger();
+
+        CompletableFuture<Void> first = lease.renewal(() -> {
+            started.incrementAndGet();
+            return redis;
+        });
+        assertSame(first, lease.renewal(() -> {
+            started.incrementAndGet();
+            return new CompletableFuture<>();
+        }));
+        assertEquals(1, started.get());
+        redis.completeExceptionally(new IllegalStateException("Redis is down"));
+        assertTrue(first.isCompletedExceptionally());
+
+        CompletableFuture<Void> second = lease.renewal(() -> {
+            started.incrementAndGet();
+            return CompletableFuture.completedFuture(null);
+        });
+        assertNotSame(first, second);
+        assertEquals(2, started.get());
+    }
+
+    @Test
+    void leased_async_acquire_falls_back_when_the_renewal_fails() throws Exception {
+        RateLimiterService service = redisDown();
+        service.setConfig("user16", new RateLimiterConfig(1, 0, RateLimiterType.TOKEN_BUCKET, true));
+
+        assertTrue(service.acquireWithResultAsync("user16").get(5, TimeUnit.SECONDS).isAllowed());
+        assertFalse(service.acquireWithResultAsync("user16").get(5, TimeUnit.SECONDS).isAllowed());
+        service.shutdown();
+    }
+
+    @Test
+    void tokenLease_size_adapts_to_rate_and_is_capped() {
+        TokenLease lease = new TokenLease(new RateLimiterConfig(1000, 100, RateLimiterType.TOKEN_BUCKET, true));
+        long now = System.currentTimeMillis();
+        assertEquals(1, lease.nextLeaseSize(1000));
+
+        // 50 tokens used in 10 ms is roughly 5000/s, i.e. 500 tokens per 100 ms lease
+        lease.renew(50, now, 1000, 0);
+        for (int i = 0; i < 50; i++) {
+            assertTrue(lease.tryTake(now));
+        }
+        lease.renew(0, now + 10, 1000, 0);
+        assertEquals(100, lease.nextLeaseSize(1000));
+        assertTrue(lease.nextLeaseSize(100000) > 100);
+    }
+
+    @Test
+    void unreachable_redis_falls_back_to_in_memory() {
+        // Nothing listens on port 1, so every Redis call fails and the breaker eventually opens
+        RateLimiterService service = redisDown();
+        service.setConfig("user4", new RateLimiterConfig(2, 1, RateLimiterType.TOKEN_BUCKET));
+
+        assertTrue(service.acquire("user4"));
+        assertTrue(service.acquire("user4"));
+        assertFalse(service.acquire("user4"));
+        assertEquals(0, service.getStatus("user4").getTokensLeft());
+        service.shutdown();
+    }
+
+    @Test
+    void acquireChain_is_all_or_nothing_without_redis() {
+        RateLimiterService service = redisDown();
+        service.setConfig("user7", new RateLimiterConfig(3, 1, RateLimiterType.TOKEN_BUCKET));
+        service.setConfig("tenant7", new RateLimiterConfig(1, 1, RateLimiterType.LEAKY_BUCKET));
+
+        assertTrue(service.acquireChain(List.of("user7", "tenant7")).isAllowed());
+        AcquireResult denied = service.acquireChain(List.of("user7", "tenant7"));
+        assertFalse(denied.isAllowed());
+        assertTrue(denied.getRetryAfterMillis() > 0);
+        assertEquals(2, service.getStatus("user7").getTokensLeft());
+        service.shutdown();
+    }
+
+    @Test
+    void pattern_rules_apply_to_keys_without_their_own_config() {
+        RateLimiterService service = redisDown();
+        RateLimiterConfig rule = new RateLimiterConfig(1, 1, RateLimiterType.TOKEN_BUCKET);
+        RateLimiterConfig exact = new RateLimiterConfig(5, 1, RateLimiterType.TOKEN_BUCKET);
+        service.setConfig("api:*", rule);
+        service.setConfig("api:vip", exact);
+
+        assertSame(rule, service.getConfig("api:123"));
+        assertSame(exact, service.getConfig("api:vip"));
+        assertSame(service.getConfig("global"), service.getConfig("web:123"));
+        assertTrue(service.acquire("api:123"));
+        assertFalse(service.acquire("api:123"));
+        assertFalse(service.getConfigMap().containsKey("api:*"));
+        service.shutdown();
+    }
+
+    @Test
+    void removed_configs_fall_back_to_rules_then_global() {
+        RateLimiterService service = new RateLimiterService(new SimpleMeterRegistry());
+        RateLimiterConfig rule = new RateLimiterConfig(5, 1, RateLimiterType.TOKEN_BUCKET);
+        RateLimiterConfig exact = new RateLimiterConfig(9, 1, RateLimiterType.TOKEN_BUCKET);
+        service.setConfig("api:*", rule);
+        service.setConfig("api:vip", exact);
+
+        assertTrue(service.removeConfig("api:vip"));
+        assertSame(rule, service.getConfig("api:vip"));
+        assertFalse(service.removeConfig("api:vip"));
+        assertTrue(service.removeConfig("api:*"));
+        assertSame(service.getConfig("global"), service.getConfig("api:vip"));
+        assertTrue(service.getConfigRules().isEmpty());
+        assertThrows(IllegalArgumentException.class, () -> service.removeConfig("global"));
+        service.shutdown();
+    }
+
+    @Test
+    void statusPage_lists_configured_keys_when_redis_is_unreachable() {
+        RateLimiterService service = redisDown();
+        service.setConfig("user6", new RateLimiterConfig(2, 1, RateLimiterType.TOKEN_BUCKET));
+        service.acquire("user6");
+
+        StatusPage page = service.getStatusPage("0", 100);
+        assertEquals("0", page.getCursor());
+        assertEquals(1, page.getStatuses().get("user6").getTokensLeft());
+        assertTrue(page.getStatuses().containsKey("global"));
+        service.shutdown();
+    }
+
+    @Test
+    void status_of_a_shared_config_bucket_uses_the_config_it_was_charged_with() {
+        RateLimiterService service = redisDown();
+        RateLimiterConfig search = new RateLimiterConfig(5, 0, RateLimiterType.LEAKY_BUCKET);
+        service.setConfig("search", search);
+        // A rule the bucket name also matches must not win over the config that charged it
+        service.setConfig("search:*", new RateLimiterConfig(50, 0, RateLimiterType.TOKEN_BUCKET));
+        service.acquireWithResult("search:alice", search);
+
+        RateLimiterStatus status = service.getStatus("search:alice");
+        assertEquals(5, status.getCapacity());
+        assertEquals(4, status.getTokensLeft());
+        // Never charged under a shared config, so read under its own
+        assertEquals(50, service.getStatus("search:bob").getCapacity());
+        service.shutdown();
+    }
+
+    @Test
+    void statusPage_rejects_cursors_it_did_not_hand_out() {
+        RateLimiterService service = redisDown();
+        for (String cursor : Arrays.asList("", "abc", "-1", "1:0", "x:0", ":0", "0:", "0:12a", "99999999999999999999")) {
+            assertThrows(IllegalArgumentException.class, () -> service.getStatusPage(cursor, 100), cursor);
+        }
+        service.shutdown();
+    }
+
+    @Test
+    void statusPage_skips_an_unreachable_shard_instead_of_restarting() {
+        RateLimiterService service = twoNodesDown();
+
+        StatusPage first = service.getStatusPage("0", 100);
+        assertEquals("1:0", first.getCursor());
+        assertTrue(first.getStatuses().isEmpty());
+        StatusPage last = service.getStatusPage("1:1536", 100);
+        assertEquals("0", last.getCursor());
+        assertTrue(last.getStatuses().isEmpty());
+        service.shutdown();
+    }
+
+    @Test
+    void acquireAsync_falls_back_when_redis_is_unreachable() throws Exception {
+        RateLimiterService service = redisDown();
+        service.setConfig("user5", new RateLimiterConfig(1, 1, RateLimiterType.TOKEN_BUCKET));
+
+        assertTrue(service.acquireAsync("user5").get(5, java.util.concurrent.TimeUnit.SECONDS));
+        assertFalse(service.acquireAsync("user5").get(5, java.util.concurrent.TimeUnit.SECONDS));
+        service.shutdown();
+    }
+
+    @Test
+    void weighted_acquire_and_reserve_fall_back_when_redis_is_unreachable() {
+        RateLimiterService service = redisDown();
+        service.setConfig("user7", new RateLimiterConfig(4, 2, RateLimiterType.TOKEN_BUCKET));
+
+        AcquireResult taken = service.acquireWithResult("user7", 3);
+        assertTrue(taken.isAllowed());
+        assertEquals(1, taken.getRemaining());
+        AcquireResult denied = service.acquireWithResult("user7", 2);
+        assertFalse(denied.isAllowed());
+        assertTrue(denied.getRetryAfterMillis() > 0 && denied.getRetryAfterMillis() <= 500);
+        assertTrue(denied.getResetMillis() > 1000);
+
+        AcquireResult reserved = service.reserve("user7", 2, -1);
+        assertTrue(reserved.isAllowed());
+        assertTrue(reserved.getRetryAfterMillis() > 0);
+        assertThrows(IllegalArgumentException.class, () -> service.acquire("user7", 0));
+        service.shutdown();
+    }
+
+    @Test
+    void bucket_that_never_refills_reports_it_instead_of_a_zero_wait() {
+        RateLimiterService service = redisDown();
+        service.setConfig("user10", new RateLimiterConfig(1, 0, RateLimiterType.TOKEN_BUCKET));
+
+        assertTrue(service.acquire("user10"));
+        AcquireResult denied = service.acquireWithResult("user10");
+        assertFalse(denied.isAllowed());
+        assertEquals(-1, denied.getRetryAfterMillis());
+        assertEquals(-1, denied.getResetMillis());
+        assertEquals(-1, service.acquireWithResult("user10", 2).getRetryAfterMillis());
+        service.shutdown();
+    }
+
+    @Test
+    void sharded_service_falls_back_per_key_when_nodes_are_unreachable() {
+        RateLimiterService service = twoNodesDown();
+        service.setConfig("user8", new RateLimiterConfig(1, 1, RateLimiterType.TOKEN_BUCKET));
+        service.setConfig("user9", new RateLimiterConfig(1, 1, RateLimiterType.TOKEN_BUCKET));
+
+        assertThrows(IllegalArgumentException.class, () -> service.acquireAll(Arrays.asList("user8", "user9", "user8")));
+        Map<String, Boolean> first = service.acquireAll(Arrays.asList("user8", "user9"));
+        assertEquals(Arrays.asList("user8", "user9"), new ArrayList<>(first.keySet()));
+        assertTrue(first.get("user8"));
+        assertTrue(first.get("user9"));
+        assertFalse(service.acquireChain(Arrays.asList("user8", "user9")).isAllowed());
+        assertEquals(0, service.getStatus("user9").getTokensLeft());
+        service.shutdown();
+    }
+
+    @Test
+    void chains_spanning_nodes_only_allow_one_node_with_tiers_that_cannot_be_refunded() {
+        RateLimiterService service = twoNodesDown();
+        String user = "spanUser";
+        String other;
+        try (RedisShards ring = new RedisShards(TWO_NODES_DOWN, new JedisPoolConfig(), 100)) {
+            int i = 0;
+            while (ring.indexFor("spanOther" + i) == ring.indexFor(user)) {
+                i++;
+            }
+            other = "spanOther" + i;
+        }
+        service.setConfig(user, new RateLimiterConfig(1, 1, RateLimiterType.GCRA));
+        service.setConfig(other, new RateLimiterConfig(1, 1, RateLimiterType.TOKEN_BUCKET));
+        assertTrue(service.acquireChain(Arrays.asList(user, other)).isAllowed());
+
+        service.setConfig(other, new RateLimiterConfig(1, 1, RateLimiterType.SLIDING_WINDOW_COUNTER));
+        assertThrows(IllegalArgumentException.class, () -> service.acquireChain(Arrays.asList(user, other)));
+        service.shutdown();
+    }
+
+    @Test
+    void async_acquires_alone_probe_redis_once_the_open_timeout_passes() throws Exception {
+        SimpleMeterRegistry registry = new SimpleMeterRegistry();
+        RateLimiterService service = redisDown(registry);
+        // Nothing is ever granted, so no fallback usage is left for the reconciler to probe with
+        service.setConfig("user14", new RateLimiterConfig(0, 0, RateLimiterType.TOKEN_BUCKET));
+
+        for (int i = 0; i < 5; i++) {
+            service.acquireWithResultAsync("user14").get(5, TimeUnit.SECONDS);
+        }
+        assertEquals(1, transitions(registry, "closed", "open"));
+        Thread.sleep(5_100);
+        assertFalse(service.acquireWithResultAsync("user14").get(5, TimeUnit.SECONDS).isAllowed());
+        // The probe went out to Redis, failed, and opened the circuit again
+        assertEquals(1, transitions(registry, "open", "half_open"));
+        assertEquals(1, transitions(registry, "half_open", "open"));
+        service.shutdown();
+    }
+
+    @Test
+    void reconciling_fallback_usage_alone_probes_redis() throws Exception {
+        SimpleMeterRegistry registry = new SimpleMeterRegistry();
+        RateLimiterService service = redisDown(registry);
+        service.setConfig("user15", new RateLimiterConfig(10, 0, RateLimiterType.TOKEN_BUCKET));
+
+        for (int i = 0; i < 5; i++) {
+            assertTrue(service.acquire("user15"));
+        }
+        assertEquals(1, transitions(registry, "closed", "open"));
+        // No more requests: the reconciler, running every second, takes the probe after the open timeout.
+        // Without refill the usage it owes Redis never runs out before then
+        long deadline = System.currentTimeMillis() + 8_000;
+        while (transitions(registry, "open", "half_open") == 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(100);
+        }
+        assertEquals(1, transitions(registry, "open", "half_open"));
+        service.shutdown();
+    }
+
+    private static double transitions(MeterRegistry registry, String from, String to) {
+        Counter counter = registry.find("ratelimiter_redis_circuit_transitions").tags("from", from, "to", to).counter();
+        return counter == null ? 0 : counter.count();
+    }
+
+    @Test
+    void peer_mode_without_redis_shares_usage_between_nodes() throws Exception {
+        int portA = PeerSyncTest.freeUdpPort();
+        int portB = PeerSyncTest.freeUdpPort();
+        List<HostAndPort> unused = RedisShards.parseNodes("localhost:1");
+        RateLimiterService a = new RateLimiterService(new SimpleMeterRegistry(), unused,
+                RateLimiterService.poolConfig(8, 8, 0, 100), 100, LocalRateLimiter.DEFAULT_MAX_BUCKETS,
+                false, false, false, portA, PeerSync.parsePeers("127.0.0.1:" + portB));
+        RateLimiterService b = new RateLimiterService(new SimpleMeterRegistry(), unused,
+                RateLimiterService.poolConfig(8, 8, 0, 100), 100, LocalRateLimiter.DEFAULT_MAX_BUCKETS,
+                false, false, false, portB, PeerSync.parsePeers("127.0.0.1:" + portA));
+        RateLimiterConfig config = new RateLimiterConfig(10, 0, RateLimiterType.TOKEN_BUCKET);
+        a.setConfig("edge", config);
+        b.setConfig("edge", config);
+
+        assertTrue(a.acquireWithResult("edge", 4).isAllowed());
+        // B hears of A's usage at the next sync, off its request path
+        long deadline = System.currentTimeMillis() + 5000;
+        while (b.getStatus("edge").getTokensLeft() == 10 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(20);
+        }
+        assertEquals(6, b.getStatus("edge").getTokensLeft());
+        assertTrue(b.acquireWithResult("edge", 5).isAllowed());
+        assertFalse(b.acquireWithResult("edge", 2).isAllowed());
+        a.shutdown();
+        b.shutdown();
+    }
+
+    @Test
+    void without_redis_every_decision_stays_local() {
+        SimpleMeterRegistry registry = new SimpleMeterRegistry();
+        RateLimiterService service = new RateLimiterService(registry, RedisShards.parseNodes("localhost:1"),
+                RateLimiterService.poolConfig(8, 8, 0, 100), 100, LocalRateLimiter.DEFAULT_MAX_BUCKETS,
+                false, false, false, 0, Collections.emptyList());
+        // Leases come from Redis, so a leased key is decided in memory like any other
+        service.setConfig("leased", new RateLimiterConfig(2, 0, RateLimiterType.TOKEN_BUCKET, true));
+        service.setConfig("plain", new RateLimiterConfig(2, 0, RateLimiterType.TOKEN_BUCKET));
+
+        assertTrue(service.acquire("leased"));
+        assertTrue(service.acquire("leased"));
+        assertFalse(service.acquire("leased"));
+        assertTrue(service.acquireChain(Arrays.asList("plain", "other")).isAllowed());
+        assertTrue(service.acquireAll(Arrays.asList("plain", "other")).get("plain"));
+        assertFalse(service.acquire("plain"));
+        assertEquals(0, service.getStatus("plain").getTokensLeft());
+        assertEquals("0", service.getStatusPage("0", 100).getCursor());
+
+        // Four single-key acquires and the two keys of acquireAll
+        assertEquals(6, registry.get("ratelimiter_decision_latency")
+                .tags("type", "token_bucket", "backend", "local").timer().count());
+        assertEquals(0, registry.find("ratelimiter_fallback_decisions").counters().stream()
+                .mapToDouble(Counter::count).sum());
+        service.shutdown();
+    }
+
+    @Test
+    void fallback_decisions_are_timed_counted_and_sketched() {
+        SimpleMeterRegistry registry = new SimpleMeterRegistry();
+        RateLimiterService service = redisDown(registry);
+        service.setConfig("tenant", new RateLimiterConfig(2, 0, RateLimiterType.TOKEN_BUCKET));
+        service.setConfig("other", new RateLimiterConfig(2, 0, RateLimiterType.LEAKY_BUCKET));
+
+        for (int i = 0; i < 2_000; i++) {
+            service.acquire("tenant");
+        }
+        for (int i = 0; i < 200; i++) {
+            service.acquire("other");
+        }
+
+        assertEquals(2_000, registry.get("ratelimiter_decision_latency")
+                .tags("type", "token_bucket", "backend", "fallback").timer().count());
+        assertEquals(200, registry.get("ratelimiter_decision_latency")
+                .tags("type", "leaky_bucket", "backend", "fallback").timer().count());
+        assertEquals(0, registry.get("ratelimiter_decision_latency")
+                .tags("type", "token_bucket", "backend", "redis").timer().count());
+        // Five failed calls open the breaker; later decisions do not even try
+        assertEquals(5, registry.get("ratelimiter_fallback_decisions").tag("reason", "error").counter().count());
+        assertEquals(2_195, registry.get("ratelimiter_fallback_decisions").tag("reason", "circuit_open").counter().count());
+        assertEquals(5, registry.get("ratelimiter_redis_pool_wait").timer().count());
+        // Decisions are sampled into the sketches, so counts are close rather than exact
+        assertEquals(Arrays.asList("tenant", "other"), new ArrayList<>(service.getHotKeys().keySet()));
+        long tenant = service.getHotKeys().get("tenant");
+        assertTrue(tenant > 1_000 && tenant < 3_000, "tenant estimated at " + tenant);
+        long denied = service.getMostDeniedKeys().get("tenant");
+        assertTrue(denied > 1_000 && denied < 3_000, "tenant denials estimated at " + denied);
+        assertEquals(tenant, registry.get("ratelimiter_top_key_decisions").tags("list", "hot", "rank", "1").gauge().value());
+        service.shutdown();
+    }
+}
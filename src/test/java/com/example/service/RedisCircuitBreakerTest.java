@@ -0,0 +1,101 @@
+package com.example.service;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class RedisCircuitBreakerTest {
+
+    private final List<String> transitions = new ArrayList<>();
+    private final RedisCircuitBreaker breaker =
+            new RedisCircuitBreaker(3, 1000, (from, to) -> transitions.add(from + "->" + to));
+
+    @Test
+    void opens_after_consecutive_failures() {
+        long now = 0;
+        failCall(now);
+        failCall(now);
+        breaker.onSuccess(breaker.tryAcquirePermission(now));
+        failCall(now);
+        failCall(now);
+        assertEquals(RedisCircuitBreaker.State.CLOSED, breaker.getState());
+
+        failCall(now);
+        assertEquals(RedisCircuitBreaker.State.OPEN, breaker.getState());
+        assertEquals(RedisCircuitBreaker.NO_PERMISSION, breaker.tryAcquirePermission(now + 999));
+    }
+
+    @Test
+    void half_open_lets_one_probe_through_and_closes_on_success() {
+        open();
+        long probe = breaker.tryAcquirePermission(1000);
+        assertNotEquals(RedisCircuitBreaker.NO_PERMISSION, probe);
+        assertEquals(RedisCircuitBreaker.State.HALF_OPEN, breaker.getState());
+        assertEquals(RedisCircuitBreaker.NO_PERMISSION, breaker.tryAcquirePermission(1000));
+
+        breaker.onSuccess(probe);
+        assertEquals(RedisCircuitBreaker.State.CLOSED, breaker.getState());
+        assertNotEquals(RedisCircuitBreaker.NO_PERMISSION, breaker.tryAcquirePermission(1000));
+        assertEquals(List.of("CLOSED->OPEN", "OPEN->HALF_OPEN", "HALF_OPEN->CLOSED"), transitions);
+    }
+
+    @Test
+    void failed_probe_reopens() {
+        open();
+        long probe = breaker.tryAcquirePermission(1000);
+        breaker.onFailure(probe, 1000);
+        assertEquals(RedisCircuitBreaker.State.OPEN, breaker.getState());
+        assertEquals(RedisCircuitBreaker.NO_PERMISSION, breaker.tryAcquirePermission(1500));
+        assertNotEquals(RedisCircuitBreaker.NO_PERMISSION, breaker.tryAcquirePermission(2000));
+    }
+
+    @Test
+    void calls_admitted_before_the_circuit_opened_are_ignored() {
+        long slow = breaker.tryAcquirePermission(0);
+        open();
+        long probe = breaker.tryAcquirePermission(1000);
+
+        // A late failure from the closed circuit neither re-opens it nor frees the probe
+        breaker.onFailure(slow, 1000);
+        assertEquals(RedisCircuitBreaker.State.HALF_OPEN, breaker.getState());
+        assertEquals(RedisCircuitBreaker.NO_PERMISSION, breaker.tryAcquirePermission(1000));
+        // Nor does a late success close it
+        breaker.onSuccess(slow);
+        assertEquals(RedisCircuitBreaker.State.HALF_OPEN, breaker.getState());
+
+        breaker.onSuccess(probe);
+        assertEquals(RedisCircuitBreaker.State.CLOSED, breaker.getState());
+        // Nor does it count towards opening the circuit again
+        breaker.onFailure(slow, 1000);
+        failCall(1000);
+        failCall(1000);
+        assertEquals(RedisCircuitBreaker.State.CLOSED, breaker.getState());
+        assertEquals(List.of("CLOSED->OPEN", "OPEN->HALF_OPEN", "HALF_OPEN->CLOSED"), transitions);
+    }
+
+    @Test
+    void stops_refusing_once_a_probe_may_go_out() {
+        open();
+        assertTrue(breaker.isRefusing(999));
+        assertFalse(breaker.isRefusing(1000));
+        assertEquals(RedisCircuitBreaker.State.OPEN, breaker.getState());
+
+        long probe = breaker.tryAcquirePermission(1000);
+        assertTrue(breaker.isRefusing(1000));
+        breaker.onSuccess(probe);
+        assertFalse(breaker.isRefusing(1000));
+    }
+
+    private void open() {
+        for (int i = 0; i < 3; i++) {
+            failCall(0);
+        }
+    }
+
+    private void failCall(long now) {
+        breaker.onFailure(breaker.tryAcquirePermission(now), now);
+    }
+}
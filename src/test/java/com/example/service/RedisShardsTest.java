@@ -0,0 +1,57 @@
+package com.example.service;
+
+import org.junit.jupiter.api.Test;
+import redis.clients.jedis.HostAndPort;
+import redis.clients.jedis.JedisPoolConfig;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class RedisShardsTest {
+
+    private static RedisShards shards(String nodes) {
+        return new RedisShards(RedisShards.parseNodes(nodes), new JedisPoolConfig(), 100);
+    }
+
+    @Test
+    void parses_comma_separated_nodes() {
+        List<HostAndPort> nodes = RedisShards.parseNodes(" redis-a:6379, redis-b:6380 ,");
+        assertEquals(2, nodes.size());
+        assertEquals(new HostAndPort("redis-a", 6379), nodes.get(0));
+        assertEquals(new HostAndPort("redis-b", 6380), nodes.get(1));
+        assertThrows(IllegalArgumentException.class, () -> RedisShards.parseNodes("redis-a"));
+        assertThrows(IllegalArgumentException.class, () -> shards(""));
+    }
+
+    @Test
+    void spreads_keys_evenly() {
+        try (RedisShards shards = shards("a:6379,b:6379,c:6379")) {
+            int[] counts = new int[3];
+            for (int i = 0; i < 30_000; i++) {
+                counts[shards.indexFor("user:" + i)]++;
+            }
+            for (int count : counts) {
+                assertTrue(count > 8_500 && count < 11_500, "shard holds " + count + " of 30000 keys");
+            }
+            assertEquals(shards.indexFor("user:42"), shards.indexFor("user:42"));
+        }
+    }
+
+    @Test
+    void adding_a_node_only_moves_keys_to_it() {
+        try (RedisShards three = shards("a:6379,b:6379,c:6379");
+             RedisShards four = shards("a:6379,b:6379,c:6379,d:6379")) {
+            List<String> moved = new ArrayList<>();
+            for (int i = 0; i < 20_000; i++) {
+                String key = "user:" + i;
+                if (three.indexFor(key) != four.indexFor(key)) {
+                    moved.add(key);
+                    assertEquals(3, four.indexFor(key));
+                }
+            }
+            assertTrue(moved.size() > 3_500 && moved.size() < 6_500, moved.size() + " of 20000 keys moved");
+        }
+    }
+}